@@ -0,0 +1,223 @@
+package com.qwertovsky.mailer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Set of email addresses of one send operation.
+ * <br />Set keeps 64-bit hashes of normalized addresses in primitive array
+ * with open addressing, 8 bytes for address instead of {@code InternetAddress} object.
+ * Different addresses with equal hash are very rare, but second address is lost.
+ * <br />With exact check addresses are written to spill file and hash match is checked
+ * by address from file. Array of file offsets takes 8 bytes more for address.
+ * @author Qwertovsky
+ *
+ */
+class AddressSet implements Closeable
+{
+	private static final int MIN_CAPACITY = 1 << 16;
+	private static final double MAX_LOAD = 0.75;
+
+	private long[] hashes = new long[MIN_CAPACITY];
+	private long[] offsets;
+	private int size = 0;
+	private File spillFile;
+	private OutputStream spillOut;
+	private RandomAccessFile spillIn;
+	private long spillLength = 0;
+
+	//--------------------------------------------
+	/**
+	 * @param exact true - check hash matches by addresses in spill file
+	 * @throws IOException error create spill file
+	 */
+	AddressSet(boolean exact) throws IOException
+	{
+		if(!exact)
+			return;
+		offsets = new long[MIN_CAPACITY];
+		spillFile = File.createTempFile("qwertomailer", ".addresses");
+		spillFile.deleteOnExit();
+		spillOut = new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16);
+		spillIn = new RandomAccessFile(spillFile, "r");
+	}
+
+	//--------------------------------------------
+	/**
+	 * Add address. Case of letters and spaces around address are ignored.
+	 * @param address email address
+	 * @return false if address is in set
+	 * @throws IOException error read or write spill file
+	 */
+	synchronized boolean add(String address) throws IOException
+	{
+		String normalized = normalize(address);
+		long hash = hash(normalized);
+		int slot = find(normalized, hash);
+		if(slot >= 0)
+			return false;
+		slot = -slot - 1;
+		hashes[slot] = hash;
+		if(offsets != null)
+			offsets[slot] = spill(normalized.getBytes("UTF-8"));
+		size++;
+		if(size > hashes.length * MAX_LOAD)
+			grow();
+		return true;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that address is in set. Case of letters and spaces around address are ignored.
+	 * @param address email address
+	 * @return true if address is in set
+	 * @throws IOException error read spill file
+	 */
+	synchronized boolean contains(String address) throws IOException
+	{
+		String normalized = normalize(address);
+		return find(normalized, hash(normalized)) >= 0;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return count of addresses
+	 */
+	synchronized int size()
+	{
+		return size;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Delete spill file
+	 */
+	public synchronized void close() throws IOException
+	{
+		hashes = new long[0];
+		if(spillFile == null)
+			return;
+		spillOut.close();
+		spillIn.close();
+		spillFile.delete();
+		spillFile = null;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Find slot of address
+	 * @return slot of address or (-slot - 1) of empty slot
+	 */
+	private int find(String normalized, long hash) throws IOException
+	{
+		int mask = hashes.length - 1;
+		int slot = (int) hash & mask;
+		byte[] bytes = null;
+		while(hashes[slot] != 0)
+		{
+			if(hashes[slot] == hash)
+			{
+				if(offsets == null)
+					return slot;
+				if(bytes == null)
+					bytes = normalized.getBytes("UTF-8");
+				if(isSpilled(offsets[slot], bytes))
+					return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -slot - 1;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Write address to spill file
+	 * @return offset of address record
+	 */
+	private long spill(byte[] bytes) throws IOException
+	{
+		long offset = spillLength;
+		spillOut.write(bytes.length >>> 8);
+		spillOut.write(bytes.length);
+		spillOut.write(bytes);
+		spillLength += bytes.length + 2;
+		return offset;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Compare address with address record in spill file
+	 */
+	private boolean isSpilled(long offset, byte[] bytes) throws IOException
+	{
+		spillOut.flush();
+		spillIn.seek(offset);
+		int length = spillIn.readUnsignedShort();
+		if(length != bytes.length)
+			return false;
+		byte[] spilled = new byte[length];
+		spillIn.readFully(spilled);
+		return Arrays.equals(spilled, bytes);
+	}
+
+	//--------------------------------------------
+	private void grow()
+	{
+		long[] oldHashes = hashes;
+		long[] oldOffsets = offsets;
+		hashes = new long[oldHashes.length * 2];
+		if(oldOffsets != null)
+			offsets = new long[hashes.length];
+		int mask = hashes.length - 1;
+		for(int i = 0; i < oldHashes.length; i++)
+		{
+			if(oldHashes[i] == 0)
+				continue;
+			int slot = (int) oldHashes[i] & mask;
+			while(hashes[slot] != 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+			hashes[slot] = oldHashes[i];
+			if(oldOffsets != null)
+				offsets[slot] = oldOffsets[i];
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Remove spaces around address and convert it to lower case
+	 */
+	static String normalize(String address)
+	{
+		return address.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	//--------------------------------------------
+	/**
+	 * 64-bit FNV-1a with final mix of bits. 0 is empty slot and is not returned.
+	 * @param value normalized address
+	 */
+	static long hash(String value)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < value.length(); i++)
+		{
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+}
@@ -0,0 +1,153 @@
+package com.qwertovsky.mailer;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+
+import javax.mail.MessagingException;
+
+/**
+ * Adaptive limit of messages that are sent at the same time (AIMD).
+ * <br />Limit grows by one per round of successful sends while latency
+ * stays near the lowest observed latency. Limit is halved when server
+ * answers with 4xx reply or does not answer in time.
+ * <br />Limit is decreased once per round, so concurrent failures of messages
+ * that were sent before decrease do not drop limit to minimum.
+ * @author Qwertovsky
+ *
+ */
+class ConcurrencyLimiter
+{
+	/** latency that is bigger than min latency in this times means queueing on server */
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final double BACKOFF_RATIO = 0.5;
+	/** weight of new latency sample */
+	private static final double SMOOTHING = 0.2;
+	
+	private int minLimit;
+	private int maxLimit;
+	private double limit;
+	private int inFlight = 0;
+	private long minLatency = Long.MAX_VALUE;
+	private double latency = 0;
+	private long lastDecrease = 0;
+	
+	/** outcome of send */
+	enum Outcome
+	{
+		/** server has answered (message is sent or rejected permanently) */
+		SUCCESS,
+		/** 4xx reply or timeout */
+		DROPPED,
+		/** send has not been done (rate limit, local error) */
+		IGNORED
+	}
+	
+	//--------------------------------------------
+	/**
+	 * @param minLimit initial and min limit
+	 * @param maxLimit max limit
+	 */
+	ConcurrencyLimiter(int minLimit, int maxLimit)
+	{
+		if(minLimit < 1)
+			minLimit = 1;
+		if(maxLimit < minLimit)
+			maxLimit = minLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = minLimit;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Wait until count of sends is less than limit and start send
+	 * @return start time of send for {@link #release(long, Outcome)}
+	 * @throws InterruptedException
+	 */
+	synchronized long acquire() throws InterruptedException
+	{
+		while(inFlight >= getLimit())
+			wait();
+		inFlight++;
+		return System.nanoTime();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Finish send and update limit
+	 * @param start time that was returned by {@link #acquire()}
+	 * @param outcome result of send
+	 */
+	synchronized void release(long start, Outcome outcome)
+	{
+		inFlight--;
+		long now = System.nanoTime();
+		if(outcome == Outcome.DROPPED)
+		{
+			//one decrease for sends that were started before last decrease
+			if(start - lastDecrease > 0 || lastDecrease == 0)
+			{
+				limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+				lastDecrease = now;
+			}
+		}
+		else if(outcome == Outcome.SUCCESS)
+		{
+			long sample = now - start;
+			minLatency = Math.min(minLatency, sample);
+			if(latency == 0)
+				latency = sample;
+			else
+				latency = latency * (1 - SMOOTHING) + sample * SMOOTHING;
+			if(latency <= minLatency * LATENCY_TOLERANCE && inFlight + 1 >= getLimit())
+			{
+				//limit is used fully and latency is flat
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+		}
+		notifyAll();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * @return current limit of messages sent at the same time
+	 */
+	synchronized int getLimit()
+	{
+		return (int) limit;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get outcome of send by exception.
+	 * 4xx replies, timeouts and refused connections mean overload of server.
+	 * @param e exception of send or null if message is sent
+	 */
+	static Outcome getOutcome(Exception e)
+	{
+		if(e == null)
+			return Outcome.SUCCESS;
+		if(e instanceof ThrottledException)
+			return Outcome.IGNORED;
+		Throwable t = e;
+		while(t != null)
+		{
+			if(t instanceof InterruptedIOException || t instanceof ConnectException)
+				return Outcome.DROPPED;
+			String message = t.getMessage();
+			if(message != null && message.length() >= 3 && message.charAt(0) == '4'
+					&& Character.isDigit(message.charAt(1))
+					&& Character.isDigit(message.charAt(2)))
+				return Outcome.DROPPED;
+			Throwable next = null;
+			if(t instanceof MessagingException)
+				next = ((MessagingException) t).getNextException();
+			if(next == null)
+				next = t.getCause();
+			if(next == t)
+				break;
+			t = next;
+		}
+		return Outcome.SUCCESS;
+	}
+}
@@ -0,0 +1,176 @@
+package com.qwertovsky.mailer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Parameters of recipients from CSV file.
+ * <br />First line of file contains headers. Rows are read one by one while they are sent
+ * , so file is never loaded to memory. Each iteration reads file again.
+ * <br />File is memory-mapped and parsed on bytes with rules of opencsv CSVReader.
+ * Strings are created only for used columns, see {@link #setColumns(Collection)}.
+ * <br />File can be parsed in several threads, see {@link #setParallelism(int, boolean)}.
+ * @author Qwertovsky
+ * @see Sender#send(MessageContent, String[], Iterable, boolean)
+ */
+public class CsvRecipientSource implements Iterable<String[]>
+{
+	private File file;
+	private String charset;
+	private String[] headers;
+	private boolean[] columns;
+	private int threads = 1;
+	private boolean ordered = true;
+
+	//--------------------------------------------
+	/**
+	 * Read headers of file
+	 * @param file CSV file with headers in first line
+	 * @param charset charset of file
+	 * @throws java.io.FileNotFoundException file not exists
+	 * @throws java.io.UnsupportedEncodingException charset is not found
+	 * @throws IOException error read file
+	 */
+	public CsvRecipientSource(File file, String charset) throws IOException
+	{
+		this.file = file;
+		this.charset = charset;
+		MappedCsvReader reader = new MappedCsvReader(file, charset);
+		try
+		{
+			headers = reader.readNext();
+		} finally
+		{
+			reader.close();
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return first line of file or null if file is empty
+	 */
+	public String[] getHeaders()
+	{
+		return headers;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Set columns that are used in messages. Values of other columns are null
+	 * , also in bad parameters, results of sending and content hash of idempotency index.
+	 * Set columns only if parameters of rows are not reported.
+	 * @param usedHeaders headers of used columns, null - all columns
+	 */
+	public void setColumns(Collection<String> usedHeaders)
+	{
+		if(usedHeaders == null || headers == null)
+		{
+			columns = null;
+			return;
+		}
+		columns = new boolean[headers.length];
+		for(int i = 0; i < headers.length; i++)
+		{
+			columns[i] = usedHeaders.contains(headers[i]);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Parse file in several threads.
+	 * <br />File is split to ranges on line breaks outside quotes.
+	 * File with quotes escaped by '\' is parsed in one thread.
+	 * @param threads count of threads, 1 - parse in current thread
+	 * @param ordered true - rows are returned in order of file
+	 * , false - rows of range are returned as soon as range is parsed
+	 */
+	public void setParallelism(int threads, boolean ordered)
+	{
+		this.threads = threads;
+		this.ordered = ordered;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Open file and skip headers. File is closed when last row is read.
+	 * @throws IllegalStateException error read file
+	 */
+	public Iterator<String[]> iterator()
+	{
+		try
+		{
+			if(threads > 1)
+				return new ParallelCsvReader(file, charset, columns, threads, ordered);
+			MappedCsvReader reader = new MappedCsvReader(file, charset);
+			reader.readNext();
+			reader.setColumns(columns);
+			return new RowIterator(reader);
+		} catch (IOException ioe)
+		{
+			throw new IllegalStateException("Error read file " + file
+					+ " (" + ioe.getMessage() + ")", ioe);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Reads one row ahead
+	 */
+	private class RowIterator implements Iterator<String[]>
+	{
+		private MappedCsvReader reader;
+		private String[] next;
+
+		//--------------------------------------------
+		RowIterator(MappedCsvReader reader) throws IOException
+		{
+			this.reader = reader;
+			advance();
+		}
+
+		//--------------------------------------------
+		public boolean hasNext()
+		{
+			return next != null;
+		}
+
+		//--------------------------------------------
+		public String[] next()
+		{
+			if(next == null)
+				throw new NoSuchElementException();
+			String[] row = next;
+			try
+			{
+				advance();
+			} catch (IOException ioe)
+			{
+				throw new IllegalStateException("Error read file " + file
+						+ " (" + ioe.getMessage() + ")", ioe);
+			}
+			return row;
+		}
+
+		//--------------------------------------------
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		//--------------------------------------------
+		private void advance() throws IOException
+		{
+			if(reader == null)
+				return;
+			next = reader.readNext();
+			if(next == null)
+			{
+				reader.close();
+				reader = null;
+			}
+		}
+	}
+}
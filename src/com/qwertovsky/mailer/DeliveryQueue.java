@@ -0,0 +1,161 @@
+package com.qwertovsky.mailer;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.PriorityQueue;
+
+/**
+ * Queue of messages for sending threads.
+ * <br />Message that can't be sent now is put back with delay. Delayed message
+ * does not block other messages.
+ * <br />Queue is finished when producer has closed it and all taken messages are done.
+ * Each taken message must be either {@link #done()} or {@link #retry(Object, long)}.
+ * @author Qwertovsky
+ *
+ */
+class DeliveryQueue<E>
+{
+	private ArrayDeque<E> ready = new ArrayDeque<E>();
+	private PriorityQueue<Delayed<E>> delayed = new PriorityQueue<Delayed<E>>();
+	private int capacity;
+	private int pending = 0;
+	private boolean closed = false;
+	private long sequence = 0;
+	
+	//--------------------------------------------
+	/**
+	 * @param capacity max count of ready messages. Producer waits if queue is full
+	 */
+	DeliveryQueue(int capacity)
+	{
+		if(capacity < 1)
+			capacity = 1;
+		this.capacity = capacity;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Put message. Wait if queue is full
+	 * @throws InterruptedException
+	 */
+	synchronized void put(E element) throws InterruptedException
+	{
+		while(ready.size() >= capacity)
+			wait();
+		ready.addLast(element);
+		pending++;
+		notifyAll();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Put all messages and close queue
+	 */
+	synchronized void putAll(Collection<? extends E> elements)
+	{
+		for(E element:elements)
+		{
+			ready.addLast(element);
+			pending++;
+		}
+		closed = true;
+		notifyAll();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * No more messages will be put
+	 */
+	synchronized void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Take message that is ready for sending.
+	 * Wait if there is no ready message.
+	 * @return message or null if queue is finished
+	 * @throws InterruptedException
+	 */
+	synchronized E take() throws InterruptedException
+	{
+		while(true)
+		{
+			long now = System.nanoTime();
+			while(!delayed.isEmpty() && delayed.peek().readyTime - now <= 0)
+			{
+				ready.addLast(delayed.poll().element);
+			}
+			if(!ready.isEmpty())
+			{
+				E element = ready.pollFirst();
+				notifyAll();
+				return element;
+			}
+			if(closed && pending == 0)
+				return null;
+			if(delayed.isEmpty())
+				wait();
+			else
+			{
+				long waitNanos = delayed.peek().readyTime - now;
+				wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Taken message is sent or failed
+	 */
+	synchronized void done()
+	{
+		pending--;
+		notifyAll();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Put taken message back. It will be ready after delay.
+	 * @param delayNanos delay in nanoseconds
+	 */
+	synchronized void retry(E element, long delayNanos)
+	{
+		delayed.add(new Delayed<E>(element, System.nanoTime() + delayNanos, sequence++));
+		notifyAll();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * @return count of messages that are put and are not done
+	 */
+	synchronized int size()
+	{
+		return pending;
+	}
+	
+	//--------------------------------------------
+	private static class Delayed<E> implements Comparable<Delayed<E>>
+	{
+		E element;
+		long readyTime;
+		long sequence;
+		
+		Delayed(E element, long readyTime, long sequence)
+		{
+			this.element = element;
+			this.readyTime = readyTime;
+			this.sequence = sequence;
+		}
+		
+		public int compareTo(Delayed<E> o)
+		{
+			long diff = readyTime - o.readyTime;
+			if(diff == 0)
+				diff = sequence - o.sequence;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.qwertovsky.mailer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream for content of SMTP command DATA.
+ * <br />Converts line ends to CRLF and doubles dot at the beginning of line.
+ * {@link #finish()} writes end of data mark.
+ * @author Qwertovsky
+ *
+ */
+class DotStuffingOutputStream extends FilterOutputStream
+{
+	private int lastByte = '\n';
+	private boolean lineStart = true;
+
+	//--------------------------------------------
+	DotStuffingOutputStream(OutputStream out)
+	{
+		super(out);
+	}
+
+	//--------------------------------------------
+	@Override
+	public void write(int b) throws IOException
+	{
+		if(b == '\r')
+		{
+			out.write('\r');
+			out.write('\n');
+			lineStart = true;
+		}
+		else if(b == '\n')
+		{
+			if(lastByte != '\r')
+			{
+				out.write('\r');
+				out.write('\n');
+			}
+			lineStart = true;
+		}
+		else
+		{
+			if(lineStart && b == '.')
+				out.write('.');
+			out.write(b);
+			lineStart = false;
+		}
+		lastByte = b;
+	}
+
+	//--------------------------------------------
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		for(int i = off; i < off + len; i++)
+		{
+			write(b[i]);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Write end of data mark and flush stream. Underlying stream is not closed.
+	 * @throws IOException
+	 */
+	void finish() throws IOException
+	{
+		if(!lineStart)
+		{
+			out.write('\r');
+			out.write('\n');
+		}
+		out.write('.');
+		out.write('\r');
+		out.write('\n');
+		out.flush();
+	}
+
+	//--------------------------------------------
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+	}
+}
@@ -0,0 +1,22 @@
+package com.qwertovsky.mailer;
+
+/**
+ * How {@link Sender} runs building and delivery of messages
+ * @author Qwertovsky
+ *
+ */
+public enum ExecutionMode
+{
+	/**
+	 * Messages are built in calling thread and sent by fixed count of threads
+	 * @see Sender#setThreads(int)
+	 */
+	PLATFORM_THREADS,
+	
+	/**
+	 * Each message is built and sent in own virtual thread.
+	 * Count of messages in progress is limited.
+	 * If JVM has no virtual threads, new thread is created for each message.
+	 */
+	VIRTUAL_THREADS
+}
@@ -0,0 +1,347 @@
+package com.qwertovsky.mailer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistent index of sent messages for several runs of sending.
+ * <br />Key is recipient address, template id and hash of content.
+ * Index is hash table with open addressing in memory-mapped file
+ * , so lookup reads one or few slots and table is not loaded to heap.
+ * <br />Slot keeps 128-bit MD5 of key. Table is doubled when it is filled by 70%:
+ * new table is written after old table in the same file and header is switched
+ * to it at the end, so index stays valid if growth fails. Space of old table
+ * is not reused.
+ * @author Qwertovsky
+ * @see Sender#setIdempotencyStore(IdempotencyStore, String)
+ */
+public class IdempotencyStore implements Closeable
+{
+	private static final long MAGIC = 0x514D494458310000L;
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 16;
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+	private static final long MIN_CAPACITY = 1 << 16;
+	private static final double MAX_LOAD = 0.7;
+
+	private File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer[] segments;
+	private long tableOffset;
+	private long capacity;
+	private long count;
+
+	//--------------------------------------------
+	/**
+	 * Open index or create new index if file not exists
+	 * @param file index file
+	 * @throws IOException error map file, file is not index
+	 */
+	public IdempotencyStore(File file) throws IOException
+	{
+		this.file = file;
+		if(file.exists() && file.length() > 0)
+			open(file);
+		else
+			create(file, MIN_CAPACITY);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that message has been sent to recipient
+	 * @param email address of recipient
+	 * @param templateId id of message template
+	 * @param contentHash hash of personal content
+	 * @return true if key is in index
+	 */
+	public boolean contains(String email, String templateId, String contentHash)
+	{
+		long[] key = hashKey(email, templateId, contentHash);
+		synchronized(this)
+		{
+			return find(key[0], key[1]) >= 0;
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Add key of sent message
+	 * @param email address of recipient
+	 * @param templateId id of message template
+	 * @param contentHash hash of personal content
+	 * @return false if key is already in index
+	 * @throws IOException error grow index
+	 */
+	public boolean add(String email, String templateId, String contentHash) throws IOException
+	{
+		long[] key = hashKey(email, templateId, contentHash);
+		synchronized(this)
+		{
+			long slot = find(key[0], key[1]);
+			if(slot >= 0)
+				return false;
+			if(count + 1 > capacity * MAX_LOAD)
+			{
+				grow();
+				slot = find(key[0], key[1]);
+			}
+			putSlot(-slot - 1, key[0], key[1]);
+			count++;
+			putLong(16, count);
+			return true;
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return count of keys
+	 */
+	public synchronized long size()
+	{
+		return count;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Write index to disk and close file
+	 */
+	public synchronized void close() throws IOException
+	{
+		if(segments == null)
+			return;
+		force();
+		segments = null;
+		raf.close();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get hash of personal parameters. Order of parameters is not important.
+	 * <br />Columns of emails and person are not hashed: recipient is part of key
+	 * , so other case of email in next run gives same hash.
+	 * @param parameters parameters of recipient or null
+	 * @return hex string
+	 */
+	static String hashContent(Map<String, String> parameters)
+	{
+		StringBuilder sb = new StringBuilder();
+		if(parameters != null)
+		{
+			for(Map.Entry<String, String> entry
+					:new TreeMap<String, String>(parameters).entrySet())
+			{
+				String role = entry.getKey().toLowerCase(Locale.ENGLISH).trim();
+				if(role.startsWith("email") || role.equals("person"))
+					continue;
+				sb.append(entry.getKey()).append('=');
+				if(entry.getValue() != null)
+					sb.append(entry.getValue());
+				sb.append('\n');
+			}
+		}
+		byte[] digest = md5(sb.toString());
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for(byte b:digest)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Find slot of key
+	 * @return slot of key or (-slot - 1) of empty slot
+	 */
+	private long find(long h1, long h2)
+	{
+		long mask = capacity - 1;
+		long slot = h1 & mask;
+		while(true)
+		{
+			long offset = tableOffset + slot * SLOT_SIZE;
+			long a = getLong(offset);
+			long b = getLong(offset + 8);
+			if(a == 0 && b == 0)
+				return -slot - 1;
+			if(a == h1 && b == h2)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	//--------------------------------------------
+	private void putSlot(long slot, long h1, long h2)
+	{
+		long offset = tableOffset + slot * SLOT_SIZE;
+		putLong(offset, h1);
+		putLong(offset + 8, h2);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Copy keys to table of double capacity after current table and switch header to it.
+	 * <br />File is not replaced, so mapped file is not renamed (it fails on Windows).
+	 * If file can't be extended or mapped, current table is used.
+	 */
+	private void grow() throws IOException
+	{
+		long oldOffset = tableOffset;
+		long oldCapacity = capacity;
+		long newOffset = tableOffset + capacity * SLOT_SIZE;
+		long newCapacity = capacity * 2;
+		raf.setLength(newOffset + newCapacity * SLOT_SIZE);
+		map();
+		//space may be left by failed growth
+		for(long offset = newOffset; offset < newOffset + newCapacity * SLOT_SIZE; offset += 8)
+		{
+			putLong(offset, 0);
+		}
+		tableOffset = newOffset;
+		capacity = newCapacity;
+		for(long slot = 0; slot < oldCapacity; slot++)
+		{
+			long offset = oldOffset + slot * SLOT_SIZE;
+			long a = getLong(offset);
+			long b = getLong(offset + 8);
+			if(a == 0 && b == 0)
+				continue;
+			putSlot(-find(a, b) - 1, a, b);
+		}
+		force();
+		putLong(24, tableOffset);
+		putLong(8, capacity);
+		segments[0].force();
+	}
+
+	//--------------------------------------------
+	private void create(File file, long capacity) throws IOException
+	{
+		raf = new RandomAccessFile(file, "rw");
+		//file is sparse, empty slots are zeros
+		raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE);
+		this.capacity = capacity;
+		tableOffset = HEADER_SIZE;
+		count = 0;
+		map();
+		putLong(0, MAGIC);
+		putLong(8, capacity);
+		putLong(16, count);
+		putLong(24, tableOffset);
+	}
+
+	//--------------------------------------------
+	private void open(File file) throws IOException
+	{
+		raf = new RandomAccessFile(file, "rw");
+		long length = raf.length();
+		if(length < HEADER_SIZE)
+		{
+			raf.close();
+			throw new IOException("File is not index: " + file);
+		}
+		map();
+		capacity = getLong(8);
+		count = getLong(16);
+		//0 in index of previous version
+		tableOffset = getLong(24);
+		if(tableOffset == 0)
+			tableOffset = HEADER_SIZE;
+		//file is longer than table if growth is failed
+		if(getLong(0) != MAGIC || Long.bitCount(capacity) != 1
+				|| tableOffset < HEADER_SIZE || (tableOffset - HEADER_SIZE) % SLOT_SIZE != 0
+				|| length < tableOffset + capacity * SLOT_SIZE)
+		{
+			close();
+			throw new IOException("File is not index: " + file);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Map file by segments of 1 GB. Slots do not cross segments.
+	 * <br />Current mapping is kept if file can't be mapped.
+	 */
+	private void map() throws IOException
+	{
+		FileChannel channel = raf.getChannel();
+		long length = channel.size();
+		int segmentCount = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+		MappedByteBuffer[] mapped = new MappedByteBuffer[segmentCount];
+		for(int i = 0; i < segmentCount; i++)
+		{
+			long start = (long) i << SEGMENT_SHIFT;
+			mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start
+					, Math.min(SEGMENT_MASK + 1, length - start));
+		}
+		segments = mapped;
+	}
+
+	//--------------------------------------------
+	private void force()
+	{
+		for(MappedByteBuffer segment:segments)
+		{
+			segment.force();
+		}
+	}
+
+	//--------------------------------------------
+	private long getLong(long offset)
+	{
+		return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & SEGMENT_MASK));
+	}
+
+	//--------------------------------------------
+	private void putLong(long offset, long value)
+	{
+		segments[(int) (offset >>> SEGMENT_SHIFT)].putLong((int) (offset & SEGMENT_MASK), value);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get 128-bit hash of key. Empty slot value is not returned.
+	 */
+	private static long[] hashKey(String email, String templateId, String contentHash)
+	{
+		byte[] digest = md5(email.toLowerCase(Locale.ENGLISH) + '\n' + templateId
+				+ '\n' + contentHash);
+		long h1 = 0;
+		long h2 = 0;
+		for(int i = 0; i < 8; i++)
+		{
+			h1 = (h1 << 8) | (digest[i] & 0xFF);
+			h2 = (h2 << 8) | (digest[i + 8] & 0xFF);
+		}
+		if(h1 == 0 && h2 == 0)
+			h2 = 1;
+		return new long[]{h1, h2};
+	}
+
+	//--------------------------------------------
+	private static byte[] md5(String value)
+	{
+		try
+		{
+			return MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException nsae)
+		{
+			throw new IllegalStateException(nsae);
+		} catch (UnsupportedEncodingException uee)
+		{
+			throw new IllegalStateException(uee);
+		}
+	}
+}
@@ -1,24 +1,23 @@
 package com.qwertovsky.mailer;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
 
 import org.apache.commons.cli.CommandLine;
@@ -35,8 +34,6 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
-import au.com.bytecode.opencsv.CSVReader;
-
 /**
  * @author Qwertovsky
  *
@@ -113,8 +110,10 @@ class Mailer
 		String emailFrom = null;
 		String personFrom = null;
 		boolean haltOnFailure = false;
+		int parseThreads = 1;
+		int buildThreads = 1;
 		Set<InternetAddress> emailsTo = new HashSet<InternetAddress>();
-		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		CsvRecipientSource personParameters = null;
 		String[] personParamHeaders = null;
 		
 		CommandLine commandLine = null;
@@ -165,6 +164,42 @@ class Mailer
 			smtpPassword = commandLine.getOptionValue("smtpPassword");
 		if(commandLine.hasOption("hostname"))
 			hostname = commandLine.getOptionValue("hostname");
+		if(commandLine.hasOption("parseThreads"))
+		{
+			try
+			{
+				long threads = (Long)commandLine.getParsedOptionValue("parseThreads");
+				parseThreads = (int) threads;
+			} catch (ParseException pe)
+			{
+				logger.error("parseThreads has bad format");
+				System.err.println("parseThreads has bad format");
+				return;
+			} catch (ClassCastException cce)
+			{
+				logger.error("parseThreads has bad format");
+				System.err.println("parseThreads has bad format");
+				return;
+			}
+		}
+		if(commandLine.hasOption("buildThreads"))
+		{
+			try
+			{
+				long threads = (Long)commandLine.getParsedOptionValue("buildThreads");
+				buildThreads = (int) threads;
+			} catch (ParseException pe)
+			{
+				logger.error("buildThreads has bad format");
+				System.err.println("buildThreads has bad format");
+				return;
+			} catch (ClassCastException cce)
+			{
+				logger.error("buildThreads has bad format");
+				System.err.println("buildThreads has bad format");
+				return;
+			}
+		}
 		charset = commandLine.getOptionValue("charset", "UTF-8");
 		contentTransferEncoding = commandLine.getOptionValue("mimeTransport", "8bit");
 		
@@ -255,7 +290,9 @@ class Mailer
 		else if(commandLine.hasOption("emailToFile"))
 		{
 			String file = commandLine.getOptionValue("emailToFile");
-			personParamHeaders = getPersonParametersFromFile(personParameters, file, charset);
+			personParameters = getPersonParametersFromFile(file, charset);
+			personParamHeaders = personParameters.getHeaders();
+			personParameters.setParallelism(parseThreads, true);
 		}
 		
 		String alttext = null;
@@ -335,6 +372,113 @@ class Mailer
 			System.exit(1);
 		}
 		
+		//count sent messages, messages are not kept in memory
+		final AtomicInteger sentCount = new AtomicInteger();
+		final List<SendResult> notSentResults = Collections.synchronizedList(
+				new ArrayList<SendResult>());
+		sender.setSendListener(new SendListener()
+		{
+			public void onSent(SendResult result)
+			{
+				sentCount.incrementAndGet();
+			}
+			
+			public void onFailed(SendResult result)
+			{
+				notSentResults.add(result);
+			}
+			
+			public void onBadAddress(String email)
+			{
+			}
+			
+			public void onBadParameters(Map<String, String> parameters)
+			{
+			}
+		});
+		
+		//unsubscribed and bounced recipients
+		SuppressionList suppressionList = null;
+		if(commandLine.hasOption("suppressionList"))
+		{
+			File listFile = new File(commandLine.getOptionValue("suppressionList"));
+			try
+			{
+				suppressionList = new SuppressionList(listFile);
+			} catch (FileNotFoundException fnfe)
+			{
+				System.err.println("Suppression list not exists: " + listFile);
+				logger.error("Suppression list not exists: " + listFile.getAbsolutePath());
+				System.exit(1);
+			} catch (IOException ioe)
+			{
+				System.err.println("Error read suppression list: " + listFile
+						+ " (" + ioe.getMessage() + ")");
+				logger.error("Error read suppression list: " + listFile.getAbsolutePath()
+						+ " (" + ioe.getMessage() + ")");
+				System.exit(1);
+			}
+			logger.info("Suppressed emails in list: " + suppressionList.size());
+			sender.setSuppressionList(suppressionList);
+		}
+		
+		sender.setBuildThreads(buildThreads);
+		if(commandLine.hasOption("deduplicate"))
+			sender.setDeduplicateRecipients(true, true);
+		
+		//journal of sent rows
+		SendJournal journal = null;
+		if(commandLine.hasOption("journal"))
+		{
+			File journalFile = new File(commandLine.getOptionValue("journal"));
+			boolean resume = commandLine.hasOption("resume");
+			try
+			{
+				journal = new SendJournal(journalFile, resume);
+			} catch (IOException ioe)
+			{
+				System.err.println("Error open journal: " + journalFile + " (" + ioe.getMessage() + ")");
+				logger.error("Error open journal: " + journalFile.getAbsolutePath()
+						+ " (" + ioe.getMessage() + ")");
+				System.exit(1);
+			}
+			if(resume)
+				logger.info("Resume sending. Skip rows: " + journal.getDoneCount());
+			sender.setJournal(journal);
+		}
+		else if(commandLine.hasOption("resume"))
+		{
+			System.err.println("Resume requires journal");
+			logger.error("Resume requires journal");
+			return;
+		}
+		
+		//recipients that have got message in previous runs
+		IdempotencyStore sentIndex = null;
+		if(commandLine.hasOption("sentIndex"))
+		{
+			File indexFile = new File(commandLine.getOptionValue("sentIndex"));
+			try
+			{
+				sentIndex = new IdempotencyStore(indexFile);
+			} catch (IOException ioe)
+			{
+				System.err.println("Error open index of sent messages: " + indexFile
+						+ " (" + ioe.getMessage() + ")");
+				logger.error("Error open index of sent messages: " + indexFile.getAbsolutePath()
+						+ " (" + ioe.getMessage() + ")");
+				System.exit(1);
+			}
+			//same template gives same id by default
+			String templateId = commandLine.getOptionValue("templateId");
+			if(templateId == null && emlFile != null)
+				templateId = emlFile.getName();
+			else if(templateId == null)
+				templateId = IdempotencyStore.hashContent(
+						Collections.singletonMap("template", subject + "\n" + text));
+			sender.setIdempotencyStore(sentIndex, templateId);
+		}
+		
 		//send message
 		try
 		{
@@ -345,8 +489,7 @@ class Mailer
 			}
 			else
 			{
-				//send with parameters
-				logger.info("Message count for send: " + personParameters.size());
+				//send with parameters, rows are read from file while messages are sent
 				sender.send(message, personParamHeaders, personParameters, haltOnFailure);
 			}
 		}catch(Exception e)
@@ -363,11 +506,41 @@ class Mailer
 				System.err.println("Error");
 			}
 		}
+		if(suppressionList != null)
+		{
+			try
+			{
+				suppressionList.close();
+			} catch (IOException ioe)
+			{
+				logger.warn("Error close suppression list (" + ioe.getMessage() + ")");
+			}
+		}
+		if(sentIndex != null)
+		{
+			try
+			{
+				sentIndex.close();
+			} catch (IOException ioe)
+			{
+				System.err.println("Error write index of sent messages (" + ioe.getMessage() + ")");
+				logger.error("Error write index of sent messages (" + ioe.getMessage() + ")");
+			}
+		}
+		if(journal != null)
+		{
+			try
+			{
+				journal.close();
+			} catch (IOException ioe)
+			{
+				System.err.println("Error write journal (" + ioe.getMessage() + ")");
+				logger.error("Error write journal (" + ioe.getMessage() + ")");
+			}
+		}
 		
-		List<Message> sentMessages = sender.getSentMessages();
 		logger.info("----");
-		logger.info("Sent messages count: " 
-				+ (sentMessages != null ? sentMessages.size() : 0));
+		logger.info("Sent messages count: " + sentCount.get());
 		
 		//print bad emails
 		List<String> badEmails = sender.getBadEmails();
@@ -382,6 +555,18 @@ class Mailer
 			}
 		}
 		
+		//print suppressed emails
+		List<String> suppressedEmails = sender.getSuppressedEmails();
+		if(suppressedEmails != null && !suppressedEmails.isEmpty())
+		{
+			logger.info("----");
+			logger.info("Suppressed emails count: " + suppressedEmails.size());
+			for(String suppressedEmail:suppressedEmails)
+			{
+				logger.info(suppressedEmail);
+			}
+		}
+		
 		//print bad emails
 		List<Map<String, String>> badParameters = sender.getBadParameters();
 		if(badParameters != null && !badParameters.isEmpty())
@@ -404,35 +589,27 @@ class Mailer
 		}
 		
 		//print not sent messages
-		List<Message> notSentMessages = sender.getNotSentMessages();
-		if(notSentMessages != null && !notSentMessages.isEmpty())
+		if(!notSentResults.isEmpty())
 		{
 			System.err.println("Some messages not been sent");
 			logger.warn("-----");
 			logger.warn("Some messages not been sent");
-			for(Message notSentMessage:notSentMessages)
+			for(SendResult notSentResult:notSentResults)
 			{
 				StringBuilder sb = new StringBuilder();
-				Address[] recipients = null;
-				try
-				{
-					recipients = notSentMessage.getAllRecipients();
-					int i=0;
-					for(; i < 3 && i < recipients.length; i++)
-					{
-						if(sb.length() > 0)
-							sb.append(", ");
-						sb.append(((InternetAddress)recipients[i]).getAddress());
-					}
-					if(i < recipients.length)
-						sb.append("...");
-				} catch (Exception e1)
+				List<String> recipients = notSentResult.getRecipients();
+				int i=0;
+				for(; i < 3 && i < recipients.size(); i++)
 				{
-					sb.append("error get recipients");
+					if(sb.length() > 0)
+						sb.append(", ");
+					sb.append(recipients.get(i));
 				}
+				if(i < recipients.size())
+					sb.append("...");
 				//append parameters
 				StringBuilder sbParameters = new StringBuilder();
-				Map<String, String> parametersForMessage = notSentMessage.getParameters();
+				Map<String, String> parametersForMessage = notSentResult.getParameters();
 				if(parametersForMessage != null)
 				{
 					
@@ -552,21 +729,14 @@ class Mailer
 	}
 	
 	//--------------------------------------------
-	private static String[] getPersonParametersFromFile(List<String[]> personParameters
-			, String file, String charset)
+	private static CsvRecipientSource getPersonParametersFromFile(String file, String charset)
 	{
 		File emailsFile = new File(file);
 		logger.info("Get person parameters from file: " + emailsFile.getAbsolutePath());
-		String[] headers = null;
-		CSVReader reader = null;
+		CsvRecipientSource source = null;
 		try
 		{
-			FileInputStream fis = new FileInputStream(emailsFile);
-			InputStreamReader isr = new InputStreamReader(fis, charset);
-			reader=new CSVReader(isr, ',','"',false);
-			headers = reader.readNext();
-			personParameters.addAll(reader.readAll());
-			reader.close();
+			source = new CsvRecipientSource(emailsFile, charset);
 		}catch (FileNotFoundException fnfe)
 		{
 			System.err.println("File with emails not exists: " + file);
@@ -585,7 +755,7 @@ class Mailer
 			System.exit(1);
 		}
 		
-        return headers;
+        return source;
 	}
 
 	//--------------------------------------------
@@ -693,6 +863,16 @@ class Mailer
 				.withDescription("specify file with recipients list")
 				.hasArg()
 				.create("emailToFile");
+		Option oParseThreads = OptionBuilder.withArgName("threads")
+				.withDescription("specify count of threads that parse file with recipients (default 1)")
+				.hasArg()
+				.withType(Number.class)
+				.create("parseThreads");
+		Option oBuildThreads = OptionBuilder.withArgName("threads")
+				.withDescription("specify count of threads that build messages (default 1)")
+				.hasArg()
+				.withType(Number.class)
+				.create("buildThreads");
 		OptionGroup ogEmailTo = new OptionGroup();
 		ogEmailTo.setRequired(true); 
 		ogEmailTo.addOption(oEmailTo);
@@ -739,6 +919,34 @@ class Mailer
 				.withDescription("Set trace log level. Send messages will be saved on disk")
 				.create("trace");
 		
+		Option oJournal = OptionBuilder.withArgName("file")
+				.withDescription("write sent rows of file with recipients to journal")
+				.hasArg()
+				.create("journal");
+		Option oResume = OptionBuilder
+				.withDescription("skip rows that are sent according to journal")
+				.create("resume");
+		
+		Option oSentIndex = OptionBuilder.withArgName("file")
+				.withDescription("skip recipients that have got message according to index"
+						+ " and add new recipients to it")
+				.hasArg()
+				.create("sentIndex");
+		Option oTemplateId = OptionBuilder.withArgName("id")
+				.withDescription("specify id of message for index of sent messages"
+						+ " (default hash of subject and text)")
+				.hasArg()
+				.create("templateId");
+		
+		Option oDeduplicate = OptionBuilder
+				.withDescription("send one message to email that is in several rows")
+				.create("deduplicate");
+		
+		Option oSuppressionList = OptionBuilder.withArgName("file")
+				.withDescription("skip emails from file (one email in line)")
+				.hasArg()
+				.create("suppressionList");
+		
 		Option oHaltOnFailure = OptionBuilder
 				.withDescription("Stop program if exists bad emails or wrong parameters")
 				.create("haltOnFailure");
@@ -755,12 +963,20 @@ class Mailer
 		options.addOptionGroup(ogSubject);
 		options.addOption(oEmailFrom);
 		options.addOptionGroup(ogEmailTo);
+		options.addOption(oParseThreads);
+		options.addOption(oBuildThreads);
 		options.addOption(oPersonFrom);
 		options.addOptionGroup(ogAttach);
 		options.addOptionGroup(ogAltText);
 		options.addOption(oRelated);
 		options.addOption(oTrace);
 		options.addOption(oHaltOnFailure);
+		options.addOption(oJournal);
+		options.addOption(oResume);
+		options.addOption(oSentIndex);
+		options.addOption(oTemplateId);
+		options.addOption(oDeduplicate);
+		options.addOption(oSuppressionList);
 		return options;
 	}
 
@@ -0,0 +1,378 @@
+package com.qwertovsky.mailer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * CSV reader over memory-mapped file.
+ * <br />Field boundaries are found on bytes, strings are created only for used columns.
+ * Rules are the same as {@link CSVReader} with separator ',', quote '"' and escape '\':
+ * doubled or escaped quote in quoted field, line breaks in quoted field become '\n'.
+ * <br />Fast path works for UTF-8 and single-byte charsets, where these characters
+ * are single ASCII bytes. File with another charset is read by {@link CSVReader}.
+ * <br />Large file is mapped by windows, row must not be longer than window.
+ * @author Qwertovsky
+ *
+ */
+class MappedCsvReader implements Closeable
+{
+	private static final int WINDOW_SIZE = 1 << 28;
+	private static final byte SEPARATOR = ',';
+	private static final byte QUOTE = '"';
+	private static final byte ESCAPE = '\\';
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	private Charset charset;
+	private boolean utf8;
+	private boolean[] columns;
+	private CSVReader csvReader;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long fileSize;
+	private int windowSize;
+	private MappedByteBuffer buffer;
+	private long windowStart;
+	private long position = 0;
+	private long end = Long.MAX_VALUE;
+	private byte[] field = new byte[256];
+	private int fieldLength;
+	private List<String> tokens = new ArrayList<String>();
+
+	//--------------------------------------------
+	/**
+	 * @param file CSV file
+	 * @param charset charset of file
+	 * @throws java.io.FileNotFoundException file not exists
+	 * @throws UnsupportedEncodingException charset is not found
+	 * @throws IOException error map file
+	 */
+	MappedCsvReader(File file, String charset) throws IOException
+	{
+		this(file, charset, WINDOW_SIZE);
+	}
+
+	//--------------------------------------------
+	/**
+	 * @param windowSize max count of bytes mapped at once
+	 */
+	MappedCsvReader(File file, String charset, int windowSize) throws IOException
+	{
+		this(file, charset, 0, Long.MAX_VALUE, windowSize);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Read rows that start in range of file. Last row may end after range.
+	 * Range is ignored if charset has no fast path.
+	 * @param start offset of first row
+	 * @param end offset after that rows are not read
+	 * @param windowSize max count of bytes mapped at once
+	 */
+	MappedCsvReader(File file, String charset, long start, long end, int windowSize)
+		throws IOException
+	{
+		this.charset = getCharset(charset);
+		utf8 = this.charset.name().equalsIgnoreCase("UTF-8");
+		this.windowSize = windowSize;
+		if(!isByteCompatible(this.charset))
+		{
+			FileInputStream fis = new FileInputStream(file);
+			csvReader = new CSVReader(new InputStreamReader(fis, this.charset), ',', '"', false);
+			return;
+		}
+		this.file = new RandomAccessFile(file, "r");
+		channel = this.file.getChannel();
+		fileSize = channel.size();
+		this.end = end;
+		position = Math.min(start, fileSize);
+		map(position);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Set columns that are read. Values of other columns are null.
+	 * @param columns true for used column index, null - all columns
+	 */
+	void setColumns(boolean[] columns)
+	{
+		this.columns = columns;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Read next row
+	 * @return values of row or null if end of file
+	 * @throws IOException error read file or row is longer than window
+	 */
+	String[] readNext() throws IOException
+	{
+		if(csvReader != null)
+			return select(csvReader.readNext());
+		while(true)
+		{
+			if(position >= fileSize || position >= end)
+				return null;
+			String[] row = parseRow();
+			if(row != null || position >= fileSize)
+				return row;
+			//row is not complete in window
+			if(windowStart == position)
+				throw new IOException("Row is longer than " + windowSize + " bytes at " + position);
+			map(position);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return offset of next row
+	 */
+	long getPosition()
+	{
+		return position;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return true if file is parsed on bytes
+	 */
+	boolean isMapped()
+	{
+		return csvReader == null;
+	}
+
+	//--------------------------------------------
+	public void close() throws IOException
+	{
+		if(csvReader != null)
+			csvReader.close();
+		if(file != null)
+			file.close();
+		buffer = null;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Parse row from window
+	 * @return values or null if row is not complete in window
+	 * or if file ends with unterminated quoted field only
+	 */
+	private String[] parseRow()
+	{
+		int limit = buffer.limit();
+		boolean lastWindow = windowStart + limit >= fileSize;
+		int p = (int) (position - windowStart);
+		tokens.clear();
+		fieldLength = 0;
+		boolean inQuotes = false;
+		boolean inField = false;
+		while(true)
+		{
+			//find end of line
+			int lineStart = p;
+			int lineEnd = p;
+			while(lineEnd < limit)
+			{
+				byte b = buffer.get(lineEnd);
+				if(b == LF || b == CR)
+					break;
+				lineEnd++;
+			}
+			if(!lastWindow && (lineEnd == limit
+					|| (lineEnd == limit - 1 && buffer.get(lineEnd) == CR)))
+			{
+				//end of line or CRLF is in next window
+				return null;
+			}
+
+			for(int i = lineStart; i < lineEnd; i++)
+			{
+				byte c = buffer.get(i);
+				boolean hasNext = i + 1 < lineEnd;
+				if(c == ESCAPE)
+				{
+					if((inQuotes || inField) && hasNext)
+					{
+						byte next = buffer.get(i + 1);
+						if(next == QUOTE || next == ESCAPE)
+						{
+							append(next);
+							i++;
+						}
+					}
+				}
+				else if(c == QUOTE)
+				{
+					if((inQuotes || inField) && hasNext && buffer.get(i + 1) == QUOTE)
+					{
+						append(QUOTE);
+						i++;
+					}
+					else
+					{
+						//quote in the middle of field: a,bc"d"ef,g
+						if(i - lineStart > 2 && hasNext && buffer.get(i - 1) != SEPARATOR
+								&& buffer.get(i + 1) != SEPARATOR && isAfterLineStart(lineStart, i))
+						{
+							if(fieldLength > 0 && isWhiteSpace())
+								fieldLength = 0;
+							else
+								append(c);
+						}
+						inQuotes = !inQuotes;
+					}
+					inField = !inField;
+				}
+				else if(c == SEPARATOR && !inQuotes)
+				{
+					addToken();
+					inField = false;
+				}
+				else
+				{
+					append(c);
+					inField = true;
+				}
+			}
+
+			//skip line terminator
+			p = lineEnd;
+			if(p < limit)
+			{
+				if(buffer.get(p) == CR && p + 1 < limit && buffer.get(p + 1) == LF)
+					p += 2;
+				else
+					p++;
+			}
+			if(!inQuotes)
+				break;
+			if(p >= limit)
+			{
+				if(!lastWindow)
+					return null;
+				//unterminated quoted field at end of file is lost
+				position = windowStart + p;
+				return tokens.isEmpty() ? null : tokens.toArray(new String[tokens.size()]);
+			}
+			append(LF);
+		}
+		addToken();
+		position = windowStart + p;
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	//--------------------------------------------
+	private void append(byte b)
+	{
+		if(fieldLength == field.length)
+			field = Arrays.copyOf(field, field.length * 2);
+		field[fieldLength++] = b;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Create string of field if column is used
+	 */
+	private void addToken()
+	{
+		int column = tokens.size();
+		if(columns == null || (column < columns.length && columns[column]))
+			tokens.add(new String(field, 0, fieldLength, charset));
+		else
+			tokens.add(null);
+		fieldLength = 0;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that character at byte index is not one of first three characters of line
+	 */
+	private boolean isAfterLineStart(int lineStart, int i)
+	{
+		if(!utf8)
+			return i - lineStart > 2;
+		int chars = 0;
+		for(int j = lineStart; j < i && chars <= 2; j++)
+		{
+			//continuation bytes of UTF-8 are 10xxxxxx
+			if((buffer.get(j) & 0xC0) != 0x80)
+				chars++;
+		}
+		return chars > 2;
+	}
+
+	//--------------------------------------------
+	private boolean isWhiteSpace()
+	{
+		for(int i = 0; i < fieldLength; i++)
+		{
+			if(field[i] < 0 || !Character.isWhitespace((char) field[i]))
+				return false;
+		}
+		return true;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Remove values of unused columns
+	 */
+	private String[] select(String[] row)
+	{
+		if(row == null || columns == null)
+			return row;
+		for(int i = 0; i < row.length; i++)
+		{
+			if(i >= columns.length || !columns[i])
+				row[i] = null;
+		}
+		return row;
+	}
+
+	//--------------------------------------------
+	private void map(long start) throws IOException
+	{
+		long size = Math.min(windowSize, fileSize - start);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		windowStart = start;
+	}
+
+	//--------------------------------------------
+	private static Charset getCharset(String charset) throws IOException
+	{
+		try
+		{
+			return Charset.forName(charset);
+		} catch (IllegalArgumentException iae)
+		{
+			throw new UnsupportedEncodingException(charset);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that separator, quote, escape and line breaks are single ASCII bytes
+	 * and can't be part of other character
+	 */
+	static boolean isByteCompatible(Charset charset)
+	{
+		if(charset.name().equalsIgnoreCase("UTF-8"))
+			return true;
+		if(!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1)
+			return false;
+		byte[] bytes = ",\"\\\r\n".getBytes(charset);
+		return Arrays.equals(bytes, new byte[]{SEPARATOR, QUOTE, ESCAPE, CR, LF});
+	}
+}
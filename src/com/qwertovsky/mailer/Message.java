@@ -1,5 +1,7 @@
 package com.qwertovsky.mailer;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -14,6 +16,9 @@ import javax.mail.internet.MimeMessage;
 public class Message extends MimeMessage
 {
 	private Map<String, String> parameters;
+	private long encodedSize = -1;
+	private String serverResponse;
+	private int row = -1;
 		
 	protected Message(Session session)
 	{
@@ -53,4 +58,77 @@ public class Message extends MimeMessage
 	{
 		return parameters;
 	}
+	
+	//--------------------------------------------
+	/**
+	 * Set index of parameters row for journal
+	 */
+	void setRow(int row)
+	{
+		this.row = row;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * @return index of parameters row or -1 if message is not built from row
+	 */
+	int getRow()
+	{
+		return row;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Save last reply of server to message
+	 */
+	void setServerResponse(String response)
+	{
+		serverResponse = response;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * @return last reply of server when message has been sent or null
+	 */
+	String getServerResponse()
+	{
+		return serverResponse;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get size of message as it is sent to server.
+	 * Size is counted once.
+	 * @return bytes
+	 * @throws MessagingException error write message
+	 */
+	long getEncodedSize() throws MessagingException
+	{
+		if(encodedSize >= 0)
+			return encodedSize;
+		final long[] count = new long[1];
+		OutputStream counter = new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+				count[0]++;
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len)
+			{
+				count[0] += len;
+			}
+		};
+		try
+		{
+			writeTo(counter);
+		} catch (IOException ioe)
+		{
+			throw new MessagingException("Error count message size", ioe);
+		}
+		encodedSize = count[0];
+		return encodedSize;
+	}
 }
@@ -1,5 +1,6 @@
 package com.qwertovsky.mailer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -35,7 +36,6 @@ import javax.mail.internet.ParseException;
 import javax.swing.text.html.parser.ParserDelegator;
 
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.Velocity;
 
 import com.qwertovsky.mailer.errors.QwertoMailerException;
 
@@ -68,6 +68,7 @@ public class MessageContent
 	private InternetAddress addressFrom = null;
 	private String charset = "UTF-8";
 	private String contentTransferEncoding = "8bit";
+	private TemplateCache templateCache = null;
 	
 	//--------------------------------------------
 	/**
@@ -106,6 +107,27 @@ public class MessageContent
 		this.contentType = new String(messageContent.getContentType());
 		this.contentTransferEncoding = new String(messageContent.getContentTransferEncoding());
 		this.subject = new String(messageContent.getSubject());
+		//parse templates once for all copies
+		this.templateCache = messageContent.getTemplateCache();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Create copy that has no common body parts with this content.
+	 * <br />Content is written to EML and is parsed again. Copy uses templates of this content.
+	 * @throws Exception error write or parse content
+	 */
+	synchronized MessageContent copyParts() throws Exception
+	{
+		MessageContent copy = new MessageContent(this);
+		if(content instanceof Multipart)
+		{
+			Session session = Session.getDefaultInstance(new Properties(), null);
+			MimeMessage mimeMessage = new MimeMessage(session
+					, new ByteArrayInputStream(toByteArray()));
+			copy.content = mimeMessage.getContent();
+		}
+		return copy;
 	}
 	
 	//--------------------------------------------
@@ -1013,6 +1035,28 @@ public class MessageContent
 	{
 		return contentTransferEncoding;
 	}
+	
+	//--------------------------------------------
+	/**
+	 * Get compiled templates of message parts. Copies of message share them.
+	 */
+	synchronized TemplateCache getTemplateCache()
+	{
+		if(templateCache == null)
+			templateCache = new TemplateCache();
+		return templateCache;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Use templates of sender. It is set to personal copy of message
+	 * , so senders of same message don't replace templates of each other.
+	 * @param templateCache templates that are parsed by runtime of sender
+	 */
+	synchronized void setTemplateCache(TemplateCache templateCache)
+	{
+		this.templateCache = templateCache;
+	}
 
 	//--------------------------------------------
 	/**
@@ -1069,6 +1113,7 @@ public class MessageContent
 			throw new QwertoMailerException("Parameters can't be null or have length equal to 0");
 		
 		Set<String> headers = parameters.keySet();
+		TemplateCache templates = getTemplateCache();
 		
 		VelocityContext context = new VelocityContext();
 		for(String header:headers)
@@ -1092,11 +1137,15 @@ public class MessageContent
 				//get alternative text
 				BodyPart altPart = ((Multipart)body).getBodyPart(0);
 				String alterText = (String) altPart.getContent();
-				StringWriter alterTextWriter = new StringWriter();
-				Velocity.evaluate(context, alterTextWriter, "message body", alterText);
-				alterTextWriter.flush();
-				alterTextWriter.close();
-				alterText = alterTextWriter.toString();
+				boolean alterTextStatic = templates.isStatic(alterText);
+				if(!alterTextStatic)
+				{
+					StringWriter alterTextWriter = new StringWriter();
+					templates.merge(context, alterTextWriter, alterText);
+					alterTextWriter.flush();
+					alterTextWriter.close();
+					alterText = alterTextWriter.toString();
+				}
 				ContentType ct = new ContentType(altPart.getContentType());
 				String alterTextCharset = ct.getParameter("charset");
 				
@@ -1116,28 +1165,31 @@ public class MessageContent
 					
 					//replace html
 					String html = (String)  ((Multipart)mainPart).getBodyPart(0).getContent();
-					StringWriter mailBody = new StringWriter();
-					Velocity.evaluate(context, mailBody, "message body", html);
-					mailBody.flush();
-					mailBody.close();
-					html = mailBody.toString();
-					MimeBodyPart htmlPart = new MimeBodyPart();
-					htmlPart.setContent(html, ((Multipart)mainPart).getBodyPart(0).getContentType());
-					htmlPart.setHeader("Content-Type", ((Multipart)mainPart).getBodyPart(0).getContentType());
-					htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
-					((Multipart)mainPart).removeBodyPart(0);
-					((Multipart)mainPart).addBodyPart(htmlPart, 0);
-					//replace related
-					MimeBodyPart bodyPart = new MimeBodyPart();
-					bodyPart.setContent(((Multipart)mainPart));
-					((Multipart)body).removeBodyPart(1);
-					((Multipart)body).addBodyPart(bodyPart);
-					
-					//replace body
-					((Multipart)content).removeBodyPart(0);
-					bodyPart = new MimeBodyPart();
-					bodyPart.setContent(((Multipart)body));
-					((Multipart)content).addBodyPart(bodyPart, 0);
+					if(!templates.isStatic(html))
+					{
+						StringWriter mailBody = new StringWriter();
+						templates.merge(context, mailBody, html);
+						mailBody.flush();
+						mailBody.close();
+						html = mailBody.toString();
+						MimeBodyPart htmlPart = new MimeBodyPart();
+						htmlPart.setContent(html, ((Multipart)mainPart).getBodyPart(0).getContentType());
+						htmlPart.setHeader("Content-Type", ((Multipart)mainPart).getBodyPart(0).getContentType());
+						htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
+						((Multipart)mainPart).removeBodyPart(0);
+						((Multipart)mainPart).addBodyPart(htmlPart, 0);
+						//replace related
+						MimeBodyPart bodyPart = new MimeBodyPart();
+						bodyPart.setContent(((Multipart)mainPart));
+						((Multipart)body).removeBodyPart(1);
+						((Multipart)body).addBodyPart(bodyPart);
+						
+						//replace body
+						((Multipart)content).removeBodyPart(0);
+						bodyPart = new MimeBodyPart();
+						bodyPart.setContent(((Multipart)body));
+						((Multipart)content).addBodyPart(bodyPart, 0);
+					}
 				}
 				else
 				{
@@ -1150,31 +1202,37 @@ public class MessageContent
 					 */
 					//replace html
 					String html = (String)  ((Multipart)body).getBodyPart(1).getContent();
-					StringWriter mailBody = new StringWriter();
-					Velocity.evaluate(context, mailBody, "message body", html);
-					mailBody.flush();
-					mailBody.close();
-					html = mailBody.toString();
-					MimeBodyPart htmlPart = new MimeBodyPart();
-					htmlPart.setContent(html, ((Multipart)body).getBodyPart(1).getContentType());
-					htmlPart.setHeader("Content-Type", ((Multipart)body).getBodyPart(1).getContentType());
-					htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
-					
-					//replace html
-					((Multipart)body).removeBodyPart(1);
-					((Multipart)body).addBodyPart(htmlPart, 1);
-					
-					//replace body
-					((Multipart)content).removeBodyPart(0);
-					MimeBodyPart bodyPart = new MimeBodyPart();
-					bodyPart.setContent(((Multipart)body));
-					((Multipart)content).addBodyPart(bodyPart, 0);
+					if(!templates.isStatic(html))
+					{
+						StringWriter mailBody = new StringWriter();
+						templates.merge(context, mailBody, html);
+						mailBody.flush();
+						mailBody.close();
+						html = mailBody.toString();
+						MimeBodyPart htmlPart = new MimeBodyPart();
+						htmlPart.setContent(html, ((Multipart)body).getBodyPart(1).getContentType());
+						htmlPart.setHeader("Content-Type", ((Multipart)body).getBodyPart(1).getContentType());
+						htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
+						
+						//replace html
+						((Multipart)body).removeBodyPart(1);
+						((Multipart)body).addBodyPart(htmlPart, 1);
+						
+						//replace body
+						((Multipart)content).removeBodyPart(0);
+						MimeBodyPart bodyPart = new MimeBodyPart();
+						bodyPart.setContent(((Multipart)body));
+						((Multipart)content).addBodyPart(bodyPart, 0);
+					}
 				}
 				
-				if(alterTextCharset != null)
-					setAlternativeText(alterText, alterTextCharset);
-				else
-					setAlternativeText(alterText, charset);
+				if(!alterTextStatic)
+				{
+					if(alterTextCharset != null)
+						setAlternativeText(alterText, alterTextCharset);
+					else
+						setAlternativeText(alterText, charset);
+				}
 			}
 			else if(body instanceof Multipart
 					&& ((Multipart)body).getContentType().startsWith("multipart/related"))
@@ -1189,23 +1247,26 @@ public class MessageContent
 				
 				//replace html
 				String html = (String) ((Multipart)body).getBodyPart(0).getContent();;
-				StringWriter mailBody = new StringWriter();
-				Velocity.evaluate(context, mailBody, "message body", html);
-				mailBody.flush();
-				mailBody.close();
-				html = mailBody.toString();
-				MimeBodyPart htmlPart = new MimeBodyPart();
-				htmlPart.setContent(html, ((Multipart)body).getBodyPart(0).getContentType());
-				htmlPart.setHeader("Content-Type", ((Multipart)body).getBodyPart(0).getContentType());
-				htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
-				((Multipart)body).removeBodyPart(0);
-				((Multipart)body).addBodyPart(htmlPart, 0);
-				
-				//replace body
-				((Multipart)content).removeBodyPart(0);
-				MimeBodyPart bodyPart = new MimeBodyPart();
-				bodyPart.setContent(((Multipart)body));
-				((Multipart)content).addBodyPart(bodyPart, 0);
+				if(!templates.isStatic(html))
+				{
+					StringWriter mailBody = new StringWriter();
+					templates.merge(context, mailBody, html);
+					mailBody.flush();
+					mailBody.close();
+					html = mailBody.toString();
+					MimeBodyPart htmlPart = new MimeBodyPart();
+					htmlPart.setContent(html, ((Multipart)body).getBodyPart(0).getContentType());
+					htmlPart.setHeader("Content-Type", ((Multipart)body).getBodyPart(0).getContentType());
+					htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
+					((Multipart)body).removeBodyPart(0);
+					((Multipart)body).addBodyPart(htmlPart, 0);
+					
+					//replace body
+					((Multipart)content).removeBodyPart(0);
+					MimeBodyPart bodyPart = new MimeBodyPart();
+					bodyPart.setContent(((Multipart)body));
+					((Multipart)content).addBodyPart(bodyPart, 0);
+				}
 			}
 			else
 			{
@@ -1217,18 +1278,21 @@ public class MessageContent
 				
 				//replace html
 				String html = (String) ((Multipart)content).getBodyPart(0).getContent();
-				StringWriter mailBody = new StringWriter();
-				Velocity.evaluate(context, mailBody, "message body", html);
-				mailBody.flush();
-				mailBody.close();
-				html = mailBody.toString();
-				MimeBodyPart htmlPart = new MimeBodyPart();
-				htmlPart.setContent(html, ((Multipart)content).getBodyPart(0).getContentType());
-				htmlPart.setHeader("Content-Type", ((Multipart)content).getBodyPart(0).getContentType());
-				htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
-				
-				((Multipart)content).removeBodyPart(0);
-				((Multipart)content).addBodyPart(htmlPart, 0);
+				if(!templates.isStatic(html))
+				{
+					StringWriter mailBody = new StringWriter();
+					templates.merge(context, mailBody, html);
+					mailBody.flush();
+					mailBody.close();
+					html = mailBody.toString();
+					MimeBodyPart htmlPart = new MimeBodyPart();
+					htmlPart.setContent(html, ((Multipart)content).getBodyPart(0).getContentType());
+					htmlPart.setHeader("Content-Type", ((Multipart)content).getBodyPart(0).getContentType());
+					htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
+					
+					((Multipart)content).removeBodyPart(0);
+					((Multipart)content).addBodyPart(htmlPart, 0);
+				}
 			}
 		}
 		else 
@@ -1239,11 +1303,15 @@ public class MessageContent
 				//get alternative text
 				BodyPart altPart = ((Multipart)content).getBodyPart(0);
 				String alterText = (String) altPart.getContent();
-				StringWriter alterTextWriter = new StringWriter();
-				Velocity.evaluate(context, alterTextWriter, "message body", alterText);
-				alterTextWriter.flush();
-				alterTextWriter.close();
-				alterText = alterTextWriter.toString();
+				boolean alterTextStatic = templates.isStatic(alterText);
+				if(!alterTextStatic)
+				{
+					StringWriter alterTextWriter = new StringWriter();
+					templates.merge(context, alterTextWriter, alterText);
+					alterTextWriter.flush();
+					alterTextWriter.close();
+					alterText = alterTextWriter.toString();
+				}
 				ContentType ct = new ContentType(altPart.getContentType());
 				String alterTextCharset = ct.getParameter("charset");
 				
@@ -1261,23 +1329,25 @@ public class MessageContent
 					
 					//replace html
 					String html = (String) ((Multipart)body).getBodyPart(0).getContent();
-					StringWriter mailBody = new StringWriter();
-					Velocity.evaluate(context, mailBody, "message body", html);
-					mailBody.flush();
-					mailBody.close();
-					html = mailBody.toString();
-					MimeBodyPart htmlPart = new MimeBodyPart();
-					htmlPart.setContent(html, ((Multipart)body).getBodyPart(0).getContentType());
-					htmlPart.setHeader("Content-Type", ((Multipart)body).getBodyPart(0).getContentType());
-					htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
-					((Multipart)body).removeBodyPart(0);
-					((Multipart)body).addBodyPart(htmlPart, 0);
-					//replace related
-					((Multipart)content).removeBodyPart(1);
-					MimeBodyPart relatedPart = new MimeBodyPart();
-					relatedPart.setContent((Multipart) body);
-					((Multipart)content).addBodyPart(relatedPart, 1);
-					
+					if(!templates.isStatic(html))
+					{
+						StringWriter mailBody = new StringWriter();
+						templates.merge(context, mailBody, html);
+						mailBody.flush();
+						mailBody.close();
+						html = mailBody.toString();
+						MimeBodyPart htmlPart = new MimeBodyPart();
+						htmlPart.setContent(html, ((Multipart)body).getBodyPart(0).getContentType());
+						htmlPart.setHeader("Content-Type", ((Multipart)body).getBodyPart(0).getContentType());
+						htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
+						((Multipart)body).removeBodyPart(0);
+						((Multipart)body).addBodyPart(htmlPart, 0);
+						//replace related
+						((Multipart)content).removeBodyPart(1);
+						MimeBodyPart relatedPart = new MimeBodyPart();
+						relatedPart.setContent((Multipart) body);
+						((Multipart)content).addBodyPart(relatedPart, 1);
+					}
 				}
 				else
 				{
@@ -1289,24 +1359,30 @@ public class MessageContent
 					
 					//replace html
 					String html = (String) ((Multipart)content).getBodyPart(1).getContent();
-					StringWriter mailBody = new StringWriter();
-					Velocity.evaluate(context, mailBody, "message body", html);
-					mailBody.flush();
-					mailBody.close();
-					html = mailBody.toString();
-					MimeBodyPart htmlPart = new MimeBodyPart();
-					htmlPart.setContent(html, ((Multipart)content).getBodyPart(1).getContentType());
-					htmlPart.setHeader("Content-Type", ((Multipart)content).getBodyPart(1).getContentType());
-					htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
-					
-					((Multipart)content).removeBodyPart(1);
-					((Multipart)content).addBodyPart(htmlPart);
+					if(!templates.isStatic(html))
+					{
+						StringWriter mailBody = new StringWriter();
+						templates.merge(context, mailBody, html);
+						mailBody.flush();
+						mailBody.close();
+						html = mailBody.toString();
+						MimeBodyPart htmlPart = new MimeBodyPart();
+						htmlPart.setContent(html, ((Multipart)content).getBodyPart(1).getContentType());
+						htmlPart.setHeader("Content-Type", ((Multipart)content).getBodyPart(1).getContentType());
+						htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
+						
+						((Multipart)content).removeBodyPart(1);
+						((Multipart)content).addBodyPart(htmlPart);
+					}
 				}
 				
-				if(alterTextCharset != null)
-					setAlternativeText(alterText, alterTextCharset);
-				else
-					setAlternativeText(alterText, charset);
+				if(!alterTextStatic)
+				{
+					if(alterTextCharset != null)
+						setAlternativeText(alterText, alterTextCharset);
+					else
+						setAlternativeText(alterText, charset);
+				}
 			}
 			else if(content instanceof Multipart
 					&& ((Multipart)content).getContentType().startsWith("multipart/related"))
@@ -1319,17 +1395,20 @@ public class MessageContent
 				
 				//replace html
 				String html = (String) ((Multipart)content).getBodyPart(0).getContent();
-				StringWriter mailBody = new StringWriter();
-				Velocity.evaluate(context, mailBody, "message body", html);
-				mailBody.flush();
-				mailBody.close();
-				html = mailBody.toString();
-				MimeBodyPart htmlPart = new MimeBodyPart();
-				htmlPart.setContent(html, ((Multipart)content).getBodyPart(0).getContentType());
-				htmlPart.setHeader("Content-Type", ((Multipart)content).getBodyPart(0).getContentType());
-				htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
-				((Multipart)content).removeBodyPart(0);
-				((Multipart)content).addBodyPart(htmlPart, 0);
+				if(!templates.isStatic(html))
+				{
+					StringWriter mailBody = new StringWriter();
+					templates.merge(context, mailBody, html);
+					mailBody.flush();
+					mailBody.close();
+					html = mailBody.toString();
+					MimeBodyPart htmlPart = new MimeBodyPart();
+					htmlPart.setContent(html, ((Multipart)content).getBodyPart(0).getContentType());
+					htmlPart.setHeader("Content-Type", ((Multipart)content).getBodyPart(0).getContentType());
+					htmlPart.setHeader("Content-Transfer-Encoding", contentTransferEncoding);
+					((Multipart)content).removeBodyPart(0);
+					((Multipart)content).addBodyPart(htmlPart, 0);
+				}
 			}
 			else 
 			{
@@ -1339,20 +1418,26 @@ public class MessageContent
 				
 				//replace html html
 				String html = (String) content;
-				StringWriter mailBody = new StringWriter();
-				Velocity.evaluate(context, mailBody, "message body", html);
-				mailBody.flush();
-				mailBody.close();
-				html = mailBody.toString();
-				content = html;
+				if(!templates.isStatic(html))
+				{
+					StringWriter mailBody = new StringWriter();
+					templates.merge(context, mailBody, html);
+					mailBody.flush();
+					mailBody.close();
+					html = mailBody.toString();
+					content = html;
+				}
 			}
 		}
 		
-		StringWriter subjectWriter = new StringWriter();
-		Velocity.evaluate(context, subjectWriter, "message body", subject);
-		subjectWriter.flush();
-		subjectWriter.close();
-		subject = subjectWriter.toString();
+		if(!templates.isStatic(subject))
+		{
+			StringWriter subjectWriter = new StringWriter();
+			templates.merge(context, subjectWriter, subject);
+			subjectWriter.flush();
+			subjectWriter.close();
+			subject = subjectWriter.toString();
+		}
 		
 	}
 	
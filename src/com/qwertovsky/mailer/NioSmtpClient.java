@@ -0,0 +1,515 @@
+package com.qwertovsky.mailer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Event-driven SMTP client on java.nio channels.
+ * <br />Few reactor threads drive many SMTP connections. Messages are sent
+ * asynchronously, result is passed to {@link Callback} in reactor thread.
+ * <br />Each mail session (SMTP server) has up to max count of connections.
+ * Messages wait in queue of session until connection is free.
+ * @author Qwertovsky
+ *
+ */
+class NioSmtpClient
+{
+	/**
+	 * Result of message sending
+	 */
+	interface Callback
+	{
+		/**
+		 * Message is sent to all recipients
+		 */
+		void completed(Message message);
+
+		/**
+		 * Message is not sent or some recipients are rejected
+		 * ({@link SendFailedException})
+		 */
+		void failed(Message message, MessagingException me);
+	}
+
+	private Reactor[] reactors;
+	private int nextReactor = 0;
+	private int maxConnections;
+	private int messagesPerConnection;
+	private Map<Session, Route> routes = new HashMap<Session, Route>();
+	private boolean closed = false;
+
+	final Logger logger = LoggerFactory.getLogger(NioSmtpClient.class);
+
+	//--------------------------------------------
+	/**
+	 * Start reactor threads
+	 * @param ioThreads count of reactor threads
+	 * @param maxConnections max count of connections to each server
+	 * @param messagesPerConnection count of messages after that connection will be reopened
+	 * (0 - never)
+	 * @throws IOException error open selector
+	 */
+	NioSmtpClient(int ioThreads, int maxConnections, int messagesPerConnection)
+		throws IOException
+	{
+		if(ioThreads < 1)
+			ioThreads = 1;
+		if(maxConnections < 1)
+			maxConnections = 1;
+		this.maxConnections = maxConnections;
+		this.messagesPerConnection = messagesPerConnection;
+		reactors = new Reactor[ioThreads];
+		for(int i = 0; i < ioThreads; i++)
+		{
+			reactors[i] = new Reactor("qwertomailer-nio-" + i);
+			reactors[i].start();
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Put message to queue of server. Method does not wait for result.
+	 * @param session mail session with server settings
+	 * @param message message with updated headers
+	 * @param callback receiver of result
+	 * @throws MessagingException error write message content
+	 */
+	void send(Session session, Message message, Callback callback) throws MessagingException
+	{
+		Address[] from = message.getFrom();
+		Address[] recipients = message.getAllRecipients();
+		if(from == null || from.length == 0)
+			throw new MessagingException("From email has not been specified");
+		if(recipients == null || recipients.length == 0)
+			throw new SendFailedException("No recipient addresses");
+
+		//content is prepared in caller thread
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		DotStuffingOutputStream dataStream = new DotStuffingOutputStream(content);
+		try
+		{
+			message.writeTo(dataStream);
+			dataStream.finish();
+		} catch (IOException ioe)
+		{
+			throw new MessagingException("Error write message", ioe);
+		}
+		Job job = new Job(message, callback, ((InternetAddress)from[0]).getAddress()
+				, recipients, content.toByteArray());
+		getRoute(session).submit(job);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Close connections and stop reactor threads.
+	 * Messages in queues are failed.
+	 */
+	void close()
+	{
+		List<Route> closingRoutes;
+		synchronized(this)
+		{
+			closed = true;
+			closingRoutes = new ArrayList<Route>(routes.values());
+		}
+		for(Route route:closingRoutes)
+		{
+			route.close();
+		}
+		for(Reactor reactor:reactors)
+		{
+			reactor.shutdown();
+		}
+		for(Reactor reactor:reactors)
+		{
+			try
+			{
+				reactor.join(30000);
+			} catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	//--------------------------------------------
+	private synchronized Route getRoute(Session session) throws MessagingException
+	{
+		if(closed)
+			throw new MessagingException("SMTP client is closed");
+		Route route = routes.get(session);
+		if(route == null)
+		{
+			route = new Route(session);
+			routes.put(session, route);
+		}
+		return route;
+	}
+
+	//--------------------------------------------
+	private synchronized Reactor nextReactor()
+	{
+		Reactor reactor = reactors[nextReactor];
+		nextReactor = (nextReactor + 1) % reactors.length;
+		return reactor;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Message in queue
+	 */
+	static class Job
+	{
+		Message message;
+		Callback callback;
+		String from;
+		Address[] recipients;
+		byte[] content;
+
+		Job(Message message, Callback callback, String from, Address[] recipients
+				, byte[] content)
+		{
+			this.message = message;
+			this.callback = callback;
+			this.from = from;
+			this.recipients = recipients;
+			this.content = content;
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Connections and queue of messages of one server
+	 */
+	class Route
+	{
+		Session session;
+		String localHost;
+		int messagesPerConnection;
+		private ArrayDeque<Job> pending = new ArrayDeque<Job>();
+		private LinkedList<NioSmtpConnection> idle = new LinkedList<NioSmtpConnection>();
+		private Set<NioSmtpConnection> connections = new HashSet<NioSmtpConnection>();
+		private int connecting = 0;
+		private boolean closed = false;
+
+		//--------------------------------------------
+		Route(Session session)
+		{
+			this.session = session;
+			this.localHost = SmtpClient.getLocalHost(session.getProperties());
+			this.messagesPerConnection = NioSmtpClient.this.messagesPerConnection;
+		}
+
+		//--------------------------------------------
+		/**
+		 * Put message to queue and pass it to idle connection
+		 * or open new connection
+		 */
+		void submit(Job job)
+		{
+			synchronized(this)
+			{
+				if(!closed)
+				{
+					pending.add(job);
+					dispatch();
+					return;
+				}
+			}
+			job.callback.failed(job.message, new MessagingException("SMTP client is closed"));
+		}
+
+		//--------------------------------------------
+		private void dispatch()
+		{
+			while(!pending.isEmpty() && !idle.isEmpty())
+			{
+				final NioSmtpConnection connection = idle.removeFirst();
+				final Job job = pending.poll();
+				connection.getReactor().execute(new Runnable()
+				{
+					public void run()
+					{
+						connection.start(job);
+					}
+				});
+			}
+			while(pending.size() > connecting && connections.size() < maxConnections)
+			{
+				final NioSmtpConnection connection = new NioSmtpConnection(this, nextReactor());
+				connections.add(connection);
+				connecting++;
+				connection.getReactor().execute(new Runnable()
+				{
+					public void run()
+					{
+						connection.open();
+					}
+				});
+			}
+		}
+
+		//--------------------------------------------
+		/**
+		 * Connection is ready for next message
+		 * @param first true - connection has been opened
+		 * @return message to send or null if connection becomes idle
+		 */
+		synchronized Job connectionReady(NioSmtpConnection connection, boolean first)
+		{
+			if(first)
+				connecting--;
+			if(closed)
+			{
+				idle.add(connection);
+				connection.quit();
+				return null;
+			}
+			Job job = pending.poll();
+			if(job == null)
+				idle.addFirst(connection);
+			return job;
+		}
+
+		//--------------------------------------------
+		/**
+		 * Connection is going to be closed after count of messages.
+		 * New connection is opened if messages are waiting.
+		 * @param first true - connection has been opened
+		 */
+		synchronized void connectionRetired(NioSmtpConnection connection, boolean first)
+		{
+			if(first)
+				connecting--;
+			connections.remove(connection);
+			dispatch();
+		}
+
+		//--------------------------------------------
+		/**
+		 * Connection is closed
+		 * @param error reason or null
+		 * @param wasReady true - connection was ready before
+		 */
+		void connectionClosed(NioSmtpConnection connection, MessagingException error
+				, boolean wasReady)
+		{
+			List<Job> failed = null;
+			synchronized(this)
+			{
+				if(!wasReady)
+					connecting--;
+				connections.remove(connection);
+				idle.remove(connection);
+				if(error != null && !wasReady)
+				{
+					//connection can't be opened, new connection is not opened
+					if(connections.size() == connecting)
+					{
+						//server is not available
+						failed = new ArrayList<Job>(pending);
+						pending.clear();
+					}
+				}
+				else if(!closed)
+					dispatch();
+			}
+			if(failed != null)
+			{
+				for(Job job:failed)
+				{
+					finish(job, error);
+				}
+			}
+		}
+
+		//--------------------------------------------
+		/**
+		 * Pass result of message to callback
+		 * @param error null if message is sent
+		 */
+		void finish(Job job, MessagingException error)
+		{
+			try
+			{
+				if(error == null)
+					job.callback.completed(job.message);
+				else
+					job.callback.failed(job.message, error);
+			} catch (RuntimeException e)
+			{
+				logger.error("Error in send callback: " + e.getMessage(), e);
+			}
+		}
+
+		//--------------------------------------------
+		/**
+		 * Fail waiting messages and quit idle connections
+		 */
+		void close()
+		{
+			List<Job> failed;
+			synchronized(this)
+			{
+				closed = true;
+				failed = new ArrayList<Job>(pending);
+				pending.clear();
+				for(final NioSmtpConnection connection:idle)
+				{
+					connection.getReactor().execute(new Runnable()
+					{
+						public void run()
+						{
+							connection.quit();
+						}
+					});
+				}
+				idle.clear();
+			}
+			for(Job job:failed)
+			{
+				finish(job, new MessagingException("SMTP client is closed"));
+			}
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Thread with selector that drives connections
+	 */
+	class Reactor extends Thread
+	{
+		private Selector selector;
+		private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private Set<NioSmtpConnection> connections = new HashSet<NioSmtpConnection>();
+		private volatile boolean stopping = false;
+
+		//--------------------------------------------
+		Reactor(String name) throws IOException
+		{
+			super(name);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		//--------------------------------------------
+		/**
+		 * Run task in reactor thread
+		 */
+		void execute(Runnable task)
+		{
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		//--------------------------------------------
+		/**
+		 * Stop thread when all connections are closed
+		 */
+		void shutdown()
+		{
+			stopping = true;
+			selector.wakeup();
+		}
+
+		//--------------------------------------------
+		SelectionKey register(SocketChannel channel, NioSmtpConnection connection)
+			throws ClosedChannelException
+		{
+			connections.add(connection);
+			return channel.register(selector, 0, connection);
+		}
+
+		//--------------------------------------------
+		void unregister(NioSmtpConnection connection)
+		{
+			connections.remove(connection);
+		}
+
+		//--------------------------------------------
+		@Override
+		public void run()
+		{
+			long stopDeadline = 0;
+			try
+			{
+				while(true)
+				{
+					Runnable task;
+					while((task = tasks.poll()) != null)
+					{
+						task.run();
+					}
+					long now = System.currentTimeMillis();
+					if(stopping)
+					{
+						if(stopDeadline == 0)
+							stopDeadline = now + 10000;
+						if(connections.isEmpty() && tasks.isEmpty())
+							break;
+						if(now >= stopDeadline)
+						{
+							for(NioSmtpConnection connection
+									:new ArrayList<NioSmtpConnection>(connections))
+							{
+								connection.close(new MessagingException("SMTP client is closed"));
+							}
+							break;
+						}
+					}
+					selector.select(100);
+					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+					while(iterator.hasNext())
+					{
+						SelectionKey key = iterator.next();
+						iterator.remove();
+						if(key.isValid())
+							((NioSmtpConnection) key.attachment()).handle(key);
+					}
+					now = System.currentTimeMillis();
+					for(NioSmtpConnection connection:new ArrayList<NioSmtpConnection>(connections))
+					{
+						connection.checkTimeout(now);
+					}
+				}
+			} catch (IOException ioe)
+			{
+				logger.error("Error in SMTP reactor: " + ioe.getMessage(), ioe);
+			} finally
+			{
+				try
+				{
+					selector.close();
+				} catch (IOException e)
+				{
+					//nothing
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,1007 @@
+package com.qwertovsky.mailer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.qwertovsky.mailer.NioSmtpClient.Job;
+import com.qwertovsky.mailer.NioSmtpClient.Reactor;
+import com.qwertovsky.mailer.NioSmtpClient.Route;
+
+/**
+ * Non-blocking SMTP connection of {@link NioSmtpClient}.
+ * <br />Connection is a state machine that is driven by selector events
+ * of its reactor thread. All methods are called in reactor thread.
+ * <br />Dialog is the same as in {@link SmtpClient}: SSL from the start (SMTPS)
+ * or STARTTLS by {@link SSLEngine}, EHLO (HELO), AUTH PLAIN or LOGIN
+ * , pipelined or lockstep envelope.
+ * @author Qwertovsky
+ *
+ */
+class NioSmtpConnection
+{
+	private enum State
+	{
+		CONNECTING, GREETING, EHLO, HELO, STARTTLS, HANDSHAKE, AUTH
+		, IDLE, ENVELOPE, CONTENT, RESET, QUIT, CLOSED
+	}
+
+	private Route route;
+	private Reactor reactor;
+	private String host;
+	private int port;
+	private int connectionTimeout;
+	private int timeout;
+	//SMTPS
+	private boolean implicitTls = false;
+	private int tlsPort;
+	private boolean tlsFallback = false;
+
+	private State state = State.CONNECTING;
+	private boolean ready = false;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private long deadline = 0;
+	private Set<String> extensions = new HashSet<String>();
+	private int messageCount = 0;
+
+	//input
+	//enough for TLS packet
+	private ByteBuffer netIn = ByteBuffer.allocate(32768);
+	private StringBuilder line = new StringBuilder();
+	private StringBuilder response = new StringBuilder();
+	private String lastServerResponse;
+
+	//output
+	private ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<ByteBuffer>();
+
+	//TLS
+	private SSLEngine sslEngine;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+
+	//authentication
+	private int authStep = 0;
+	private String user;
+	private String password;
+
+	//transaction
+	private Job job;
+	private Address[] recipients;
+	private boolean pipelining;
+	private boolean sendPartial;
+	private int replyIndex;
+	private int mailReply;
+	private String mailResponse;
+	private List<Address> validAddresses = new ArrayList<Address>();
+	private List<Address> validUnsentAddresses = new ArrayList<Address>();
+	private List<Address> invalidAddresses = new ArrayList<Address>();
+	private StringBuilder rejectReplies = new StringBuilder();
+	private int resetReplies;
+
+	final Logger logger = LoggerFactory.getLogger(NioSmtpConnection.class);
+
+	//--------------------------------------------
+	/**
+	 * @param route server settings and queue of messages
+	 * @param reactor thread that drives connection
+	 */
+	NioSmtpConnection(Route route, Reactor reactor)
+	{
+		this.route = route;
+		this.reactor = reactor;
+		Properties properties = route.session.getProperties();
+		host = properties.getProperty("mail.smtp.host");
+		port = SmtpClient.getIntProperty(properties, "mail.smtp.port", 25);
+		connectionTimeout = SmtpClient.getIntProperty(properties, "mail.smtp.connectiontimeout", 0);
+		timeout = SmtpClient.getIntProperty(properties, "mail.smtp.timeout", 0);
+		
+		//SSL settings like in SmtpClient, SSL socket factory is replaced by SSLEngine
+		tlsPort = port;
+		String factoryClass = properties.getProperty("mail.smtp.socketFactory.class");
+		if("true".equals(properties.getProperty("mail.smtp.ssl.enable")))
+			implicitTls = true;
+		else if(factoryClass != null && factoryClass.length() > 0)
+		{
+			implicitTls = isSslFactory(factoryClass);
+			if(!implicitTls)
+				logger.debug("Socket factory " + factoryClass
+						+ " is not SSL factory and is not used by non-blocking client");
+			tlsPort = SmtpClient.getIntProperty(properties, "mail.smtp.socketFactory.port", port);
+			tlsFallback = !"false".equals(
+					properties.getProperty("mail.smtp.socketFactory.fallback"));
+		}
+	}
+
+	//--------------------------------------------
+	private static boolean isSslFactory(String className)
+	{
+		try
+		{
+			return SSLSocketFactory.class.isAssignableFrom(Class.forName(className));
+		} catch (ClassNotFoundException e)
+		{
+			return false;
+		}
+	}
+
+	//--------------------------------------------
+	Reactor getReactor()
+	{
+		return reactor;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Start connect to server
+	 */
+	void open()
+	{
+		try
+		{
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			key = reactor.register(channel, this);
+			setDeadline(connectionTimeout);
+			if(channel.connect(new InetSocketAddress(host, implicitTls ? tlsPort : port)))
+				onConnected();
+			else
+				key.interestOps(SelectionKey.OP_CONNECT);
+		} catch (IOException ioe)
+		{
+			if(fallback(ioe))
+				return;
+			fail(new MessagingException("Could not connect to SMTP host: "
+					+ host + ", port: " + port, ioe));
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Connect by plain socket after error of SSL connection
+	 * if property mail.smtp.socketFactory.fallback is not false
+	 * @return true if plain connection is started
+	 */
+	private boolean fallback(IOException ioe)
+	{
+		if(!implicitTls || !tlsFallback
+				|| (state != State.CONNECTING && state != State.HANDSHAKE))
+			return false;
+		logger.debug("Could not connect by SSL (" + ioe.getMessage()
+				+ "). Connect by plain socket");
+		if(key != null)
+			key.cancel();
+		try
+		{
+			channel.close();
+		} catch (IOException e)
+		{
+			//nothing
+		}
+		implicitTls = false;
+		sslEngine = null;
+		netOut = null;
+		appIn = null;
+		netIn.clear();
+		outQueue.clear();
+		state = State.CONNECTING;
+		open();
+		return true;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Start transaction of message. Connection must be idle.
+	 * @param job message to send
+	 */
+	void start(Job job)
+	{
+		if(state != State.IDLE)
+		{
+			//connection has been closed while job was passed
+			route.submit(job);
+			return;
+		}
+		this.job = job;
+		recipients = job.recipients;
+		pipelining = extensions.contains("PIPELINING");
+		sendPartial = "true".equals(
+				route.session.getProperties().getProperty("mail.smtp.sendpartial"));
+		replyIndex = 0;
+		validAddresses.clear();
+		validUnsentAddresses.clear();
+		invalidAddresses.clear();
+		rejectReplies.setLength(0);
+		state = State.ENVELOPE;
+		setDeadline(timeout);
+		write("MAIL FROM:<" + job.from + ">");
+		if(pipelining)
+		{
+			for(Address recipient:recipients)
+			{
+				write("RCPT TO:<" + ((InternetAddress)recipient).getAddress() + ">");
+			}
+			//without partial send DATA waits replies of recipients
+			if(sendPartial)
+				write("DATA");
+		}
+		flush();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Say QUIT and close connection after reply
+	 */
+	void quit()
+	{
+		if(state == State.CLOSED || state == State.QUIT)
+			return;
+		if(channel == null || !ready)
+		{
+			close(null);
+			return;
+		}
+		state = State.QUIT;
+		setDeadline(timeout > 0 ? timeout : 10000);
+		write("QUIT");
+		flush();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Handle selector event
+	 */
+	void handle(SelectionKey selectionKey)
+	{
+		try
+		{
+			if(selectionKey.isConnectable())
+			{
+				if(channel.finishConnect())
+					onConnected();
+				return;
+			}
+			if(selectionKey.isWritable())
+				flush();
+			if(selectionKey.isValid() && selectionKey.isReadable())
+				read();
+		} catch (IOException ioe)
+		{
+			if(fallback(ioe))
+				return;
+			if(state == State.CONNECTING)
+				fail(new MessagingException("Could not connect to SMTP host: "
+						+ host + ", port: " + port, ioe));
+			else
+				fail(new MessagingException("Exception reading response", ioe));
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Close connection if server has not answered in time
+	 * @param now current time in milliseconds
+	 */
+	void checkTimeout(long now)
+	{
+		if(deadline > 0 && now >= deadline)
+		{
+			if(state == State.QUIT)
+				close(null);
+			else
+				fail(new MessagingException("Timeout waiting for SMTP server " + host
+						+ ", port: " + port, new SocketTimeoutException("Read timed out")));
+		}
+	}
+
+	//--------------------------------------------
+	private void onConnected() throws IOException
+	{
+		state = State.GREETING;
+		setDeadline(timeout);
+		key.interestOps(SelectionKey.OP_READ);
+		if(implicitTls)
+		{
+			//SMTPS server sends greeting after handshake
+			startTls();
+			handshake();
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Read bytes from channel and pass replies to state machine
+	 */
+	private void read() throws IOException
+	{
+		int count = channel.read(netIn);
+		if(count < 0)
+			throw new EOFException("Connection closed by server");
+		if(count > 0)
+			progress();
+		process();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Decrypt bytes of input buffer and pass replies to state machine
+	 */
+	private void process() throws IOException
+	{
+		netIn.flip();
+		if(sslEngine == null)
+		{
+			parse(netIn);
+			netIn.compact();
+			//reply of STARTTLS is got
+			if(state == State.HANDSHAKE)
+				handshake();
+			return;
+		}
+		if(state == State.HANDSHAKE)
+		{
+			netIn.compact();
+			handshake();
+			return;
+		}
+		while(netIn.hasRemaining())
+		{
+			SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+			if(result.getStatus() == Status.BUFFER_OVERFLOW)
+			{
+				appIn = enlarge(appIn, sslEngine.getSession().getApplicationBufferSize());
+				continue;
+			}
+			if(result.getStatus() == Status.BUFFER_UNDERFLOW)
+				break;
+			if(result.getStatus() == Status.CLOSED)
+				throw new EOFException("Connection closed by server");
+			runHandshakeTasks(result.getHandshakeStatus());
+			if(result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+				break;
+			appIn.flip();
+			parse(appIn);
+			appIn.compact();
+			if(state == State.CLOSED)
+				return;
+		}
+		netIn.compact();
+		if(!netIn.hasRemaining())
+			netIn = enlarge(netIn, netIn.capacity() * 2);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get lines from buffer. Complete reply is passed to {@link #onReply(int, String)}
+	 */
+	private void parse(ByteBuffer buffer)
+	{
+		while(buffer.hasRemaining() && state != State.CLOSED)
+		{
+			char c = (char) (buffer.get() & 0xff);
+			if(c == '\r')
+				continue;
+			if(c != '\n')
+			{
+				line.append(c);
+				continue;
+			}
+			if(response.length() > 0)
+				response.append("\n");
+			response.append(line);
+			String lastLine = line.toString();
+			line.setLength(0);
+			if(lastLine.length() > 3 && lastLine.charAt(3) == '-')
+				continue;
+			lastServerResponse = response.toString();
+			response.setLength(0);
+			if(logger.isTraceEnabled())
+				logger.trace("S: " + lastServerResponse);
+			int code;
+			try
+			{
+				code = Integer.parseInt(lastLine.substring(0, 3));
+			} catch (RuntimeException e)
+			{
+				code = -1;
+			}
+			onReply(code, lastServerResponse);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * State machine
+	 * @param code reply code
+	 * @param text reply lines
+	 */
+	private void onReply(int code, String text)
+	{
+		try
+		{
+			switch(state)
+			{
+			case GREETING:
+				if(code != 220)
+					throw new MessagingException("Could not connect to SMTP host: "
+							+ host + ", port: " + port + ", response: " + text);
+				ehlo();
+				break;
+			case EHLO:
+				if(code != 250)
+				{
+					state = State.HELO;
+					write("HELO " + route.localHost);
+					flush();
+					break;
+				}
+				SmtpClient.parseExtensions(text, extensions);
+				if(sslEngine == null && extensions.contains("STARTTLS")
+						&& "true".equals(route.session.getProperties()
+								.getProperty("mail.smtp.starttls.enable")))
+				{
+					state = State.STARTTLS;
+					write("STARTTLS");
+					flush();
+					break;
+				}
+				authenticate();
+				break;
+			case HELO:
+				if(code != 250)
+					throw new MessagingException(text);
+				extensions.clear();
+				authenticate();
+				break;
+			case STARTTLS:
+				if(code != 220)
+					throw new MessagingException(text);
+				startTls();
+				break;
+			case AUTH:
+				authenticate(code);
+				break;
+			case ENVELOPE:
+				envelopeReply(code, text);
+				break;
+			case CONTENT:
+				contentReply(code, text);
+				break;
+			case RESET:
+				resetReplies--;
+				if(resetReplies <= 0)
+					ready();
+				break;
+			case QUIT:
+				close(null);
+				break;
+			default:
+				logger.debug("Unexpected reply: " + text);
+			}
+		} catch (MessagingException me)
+		{
+			fail(me);
+		} catch (IOException ioe)
+		{
+			fail(new MessagingException("Exception reading response", ioe));
+		}
+	}
+
+	//--------------------------------------------
+	private void ehlo()
+	{
+		state = State.EHLO;
+		write("EHLO " + route.localHost);
+		flush();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Start authentication with credentials from session authenticator
+	 */
+	private void authenticate() throws MessagingException
+	{
+		PasswordAuthentication credentials = null;
+		if("true".equals(route.session.getProperties().getProperty("mail.smtp.auth"))
+				&& extensions.contains("AUTH"))
+			credentials = route.session.requestPasswordAuthentication(
+				null, port, "smtp", null, null);
+		if(credentials == null || credentials.getUserName() == null
+				|| credentials.getUserName().length() == 0)
+		{
+			ready();
+			return;
+		}
+		user = credentials.getUserName();
+		password = credentials.getPassword();
+		state = State.AUTH;
+		authStep = 0;
+		try
+		{
+			if(SmtpClient.hasAuthMechanism(extensions, "PLAIN"))
+			{
+				authStep = 2;
+				write("AUTH PLAIN " + SmtpClient.base64("\0" + user + "\0" + password));
+			}
+			else
+				write("AUTH LOGIN");
+		} catch (UnsupportedEncodingException uee)
+		{
+			throw new MessagingException("Error encode credentials", uee);
+		}
+		flush();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Continue authentication
+	 * @param code reply code
+	 */
+	private void authenticate(int code) throws MessagingException, UnsupportedEncodingException
+	{
+		if(code == 235)
+		{
+			ready();
+			return;
+		}
+		if(code != 334 || authStep >= 2)
+			throw new AuthenticationFailedException(lastServerResponse);
+		write(SmtpClient.base64(authStep == 0 ? user : password));
+		authStep++;
+		flush();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Connection is ready for message
+	 */
+	private void ready()
+	{
+		state = State.IDLE;
+		deadline = 0;
+		boolean first = !ready;
+		ready = true;
+		if(route.messagesPerConnection > 0 && messageCount >= route.messagesPerConnection)
+		{
+			logger.debug("Recycle SMTP connection after " + messageCount + " messages");
+			route.connectionRetired(this, first);
+			quit();
+			return;
+		}
+		Job next = route.connectionReady(this, first);
+		if(next != null)
+			start(next);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Handle replies of MAIL FROM, RCPT TO and DATA
+	 */
+	private void envelopeReply(int code, String text)
+	{
+		int index = replyIndex++;
+		if(index == 0)
+		{
+			mailReply = code;
+			mailResponse = text;
+			if(!pipelining)
+			{
+				if(code == 250)
+					write("RCPT TO:<" + ((InternetAddress)recipients[0]).getAddress() + ">");
+				else
+				{
+					endEnvelope(0);
+					return;
+				}
+				flush();
+			}
+			return;
+		}
+		if(index <= recipients.length)
+		{
+			Address recipient = recipients[index - 1];
+			if(code == 250 || code == 251)
+				validAddresses.add(recipient);
+			else
+			{
+				//temporary failure (ex. greylisting) is not bad address
+				if(code >= 500)
+					invalidAddresses.add(recipient);
+				else
+					validUnsentAddresses.add(recipient);
+				if(rejectReplies.length() > 0)
+					rejectReplies.append("; ");
+				rejectReplies.append(text);
+			}
+			if(index < recipients.length)
+			{
+				if(!pipelining)
+				{
+					write("RCPT TO:<" + ((InternetAddress)recipients[index]).getAddress() + ">");
+					flush();
+				}
+				return;
+			}
+			//replies of all recipients are got
+			if(pipelining && sendPartial)
+				return;
+			if(mailReply == 250 && !validAddresses.isEmpty() && (sendPartial || !isRejected()))
+			{
+				write("DATA");
+				flush();
+			}
+			else
+				endEnvelope(0);
+			return;
+		}
+		endEnvelope(code);
+	}
+
+	//--------------------------------------------
+	/**
+	 * All envelope replies are got. Send content or reset transaction.
+	 * @param dataReply reply of DATA (0 - DATA is not sent)
+	 */
+	private void endEnvelope(int dataReply)
+	{
+		if(mailReply != 250)
+		{
+			reset(dataReply == 354);
+			finishJob(new MessagingException(mailResponse));
+			return;
+		}
+		if(validAddresses.isEmpty() || (isRejected() && !sendPartial))
+		{
+			//server may accept DATA even if all recipients are rejected
+			reset(dataReply == 354);
+			finishJob(new SendFailedException("Invalid Addresses (" + rejectReplies + ")"
+					, null, null, SmtpClient.concat(validAddresses, validUnsentAddresses)
+					, invalidAddresses.toArray(new Address[0])));
+			return;
+		}
+		if(dataReply != 354)
+		{
+			String dataResponse = lastServerResponse;
+			reset(false);
+			finishJob(new SendFailedException(dataResponse, null, null
+					, SmtpClient.concat(validAddresses, validUnsentAddresses)
+					, invalidAddresses.toArray(new Address[0])));
+			return;
+		}
+		state = State.CONTENT;
+		outQueue.add(ByteBuffer.wrap(job.content));
+		flush();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Handle reply of content
+	 */
+	private void contentReply(int code, String text)
+	{
+		messageCount++;
+		if(code != 250)
+		{
+			reset(false);
+			finishJob(new SendFailedException(text, null, null
+					, SmtpClient.concat(validAddresses, validUnsentAddresses)
+					, invalidAddresses.toArray(new Address[0])));
+			return;
+		}
+		job.message.setServerResponse(text);
+		MessagingException error = null;
+		if(isRejected())
+			error = new SendFailedException("Invalid Addresses (" + rejectReplies + ")", null
+					, validAddresses.toArray(new Address[0])
+					, validUnsentAddresses.toArray(new Address[0])
+					, invalidAddresses.toArray(new Address[0]));
+		Job finished = job;
+		job = null;
+		ready();
+		route.finish(finished, error);
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return true if some recipients are rejected
+	 */
+	private boolean isRejected()
+	{
+		return !invalidAddresses.isEmpty() || !validUnsentAddresses.isEmpty();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Reset transaction. Connection will be ready after replies.
+	 * @param endData true - DATA has been accepted and content must be terminated
+	 */
+	private void reset(boolean endData)
+	{
+		state = State.RESET;
+		resetReplies = 1;
+		if(endData)
+		{
+			outQueue.add(ByteBuffer.wrap(new byte[]{'.', '\r', '\n'}));
+			resetReplies++;
+		}
+		write("RSET");
+		flush();
+	}
+
+	//--------------------------------------------
+	private void finishJob(MessagingException error)
+	{
+		Job finished = job;
+		job = null;
+		route.finish(finished, error);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Put command to output queue
+	 */
+	private void write(String command)
+	{
+		if(logger.isTraceEnabled())
+			logger.trace("C: " + (command.startsWith("AUTH") ? "AUTH ..." : command));
+		try
+		{
+			outQueue.add(ByteBuffer.wrap((command + "\r\n").getBytes("US-ASCII")));
+		} catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Write output queue to channel as much as possible.
+	 * Wait for writable channel if something remains.
+	 */
+	private void flush()
+	{
+		if(state == State.CLOSED)
+			return;
+		try
+		{
+			if(sslEngine == null)
+			{
+				while(!outQueue.isEmpty())
+				{
+					ByteBuffer buffer = outQueue.peek();
+					if(channel.write(buffer) > 0)
+						progress();
+					if(buffer.hasRemaining())
+						break;
+					outQueue.poll();
+				}
+			}
+			else
+			{
+				flushNet();
+				while(netOut.position() == 0 && !outQueue.isEmpty())
+				{
+					ByteBuffer buffer = outQueue.peek();
+					SSLEngineResult result = sslEngine.wrap(buffer, netOut);
+					if(result.getStatus() == Status.CLOSED)
+						throw new EOFException("Connection closed");
+					if(!buffer.hasRemaining())
+						outQueue.poll();
+					flushNet();
+				}
+			}
+			boolean pending = !outQueue.isEmpty()
+					|| (netOut != null && netOut.position() > 0);
+			key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+					: SelectionKey.OP_READ);
+			if(state == State.HANDSHAKE && !pending)
+				handshake();
+		} catch (IOException ioe)
+		{
+			if(fallback(ioe))
+				return;
+			fail(new MessagingException("Exception reading response", ioe));
+		}
+	}
+
+	//--------------------------------------------
+	private void flushNet() throws IOException
+	{
+		netOut.flip();
+		if(channel.write(netOut) > 0)
+			progress();
+		netOut.compact();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Create SSL engine and start handshake.
+	 * Handshake is continued after reading of plain reply is finished.
+	 */
+	private void startTls() throws IOException
+	{
+		try
+		{
+			sslEngine = SSLContext.getDefault().createSSLEngine(host, port);
+		} catch (Exception e)
+		{
+			throw new IOException("Error create SSL engine: " + e.getMessage());
+		}
+		sslEngine.setUseClientMode(true);
+		netOut = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+		appIn = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+		state = State.HANDSHAKE;
+		sslEngine.beginHandshake();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Continue TLS handshake as far as data allows.
+	 * EHLO is sent again when handshake is finished.
+	 */
+	private void handshake() throws IOException
+	{
+		while(true)
+		{
+			HandshakeStatus status = sslEngine.getHandshakeStatus();
+			switch(status)
+			{
+			case NEED_TASK:
+				runHandshakeTasks(status);
+				break;
+			case NEED_WRAP:
+				if(netOut.position() > 0)
+				{
+					//wait writable channel
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				SSLEngineResult wrapResult = sslEngine.wrap(ByteBuffer.allocate(0), netOut);
+				if(wrapResult.getStatus() == Status.CLOSED)
+					throw new EOFException("Connection closed by server");
+				flushNet();
+				break;
+			case NEED_UNWRAP:
+				netIn.flip();
+				SSLEngineResult unwrapResult = sslEngine.unwrap(netIn, appIn);
+				netIn.compact();
+				if(unwrapResult.getStatus() == Status.BUFFER_UNDERFLOW)
+				{
+					if(!netIn.hasRemaining())
+						netIn = enlarge(netIn, netIn.capacity() * 2);
+					return;
+				}
+				if(unwrapResult.getStatus() == Status.CLOSED)
+					throw new EOFException("Connection closed by server");
+				break;
+			default:
+				//handshake is finished
+				if(netOut.position() > 0)
+				{
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				if(implicitTls)
+				{
+					//wait greeting, it may be read with last packet of handshake
+					state = State.GREETING;
+					if(netIn.position() > 0)
+						process();
+					return;
+				}
+				ehlo();
+				return;
+			}
+		}
+	}
+
+	//--------------------------------------------
+	private void runHandshakeTasks(HandshakeStatus status)
+	{
+		if(status != HandshakeStatus.NEED_TASK)
+			return;
+		Runnable task;
+		while((task = sslEngine.getDelegatedTask()) != null)
+		{
+			task.run();
+		}
+	}
+
+	//--------------------------------------------
+	private static ByteBuffer enlarge(ByteBuffer buffer, int capacity)
+	{
+		if(capacity <= buffer.capacity())
+			capacity = buffer.capacity() * 2;
+		ByteBuffer enlarged = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		enlarged.put(buffer);
+		return enlarged;
+	}
+
+	//--------------------------------------------
+	private void setDeadline(int millis)
+	{
+		deadline = millis > 0 ? System.currentTimeMillis() + millis : 0;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Move deadline when bytes are read or written, so timeout limits
+	 * each wait like timeout of socket read, not whole transaction.
+	 * Deadline of connect and QUIT is not moved.
+	 */
+	private void progress()
+	{
+		if(deadline > 0 && state != State.CONNECTING && state != State.QUIT)
+			setDeadline(timeout);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Close connection after error. Current message is failed.
+	 */
+	private void fail(MessagingException me)
+	{
+		logger.debug("SMTP connection error: " + me.getMessage());
+		close(me);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Close channel and remove connection from route
+	 * @param error reason or null
+	 */
+	void close(MessagingException error)
+	{
+		if(state == State.CLOSED)
+			return;
+		state = State.CLOSED;
+		deadline = 0;
+		if(key != null)
+			key.cancel();
+		if(channel != null)
+		{
+			try
+			{
+				channel.close();
+			} catch (IOException e)
+			{
+				//nothing
+			}
+		}
+		reactor.unregister(this);
+		Job failed = job;
+		job = null;
+		if(failed != null)
+			route.finish(failed, error != null ? error
+					: new MessagingException("Connection is closed"));
+		route.connectionClosed(this, error, ready);
+	}
+}
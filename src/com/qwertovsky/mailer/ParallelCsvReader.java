@@ -0,0 +1,433 @@
+package com.qwertovsky.mailer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Parses CSV file in several threads.
+ * <br />File is split to byte ranges. Range begins on line break outside quotes
+ * , so quoted field with line breaks is not split. Quote state is found by count
+ * of quotes before range: each quote switches it, doubled quote switches it twice.
+ * Quote escaped by '\' does not switch it, so file with escaped quotes is parsed
+ * in one thread.
+ * <br />Ranges are parsed by {@link MappedCsvReader} in fork/join pool.
+ * Rows are returned in order of file or in order of parsed ranges.
+ * Count of parsed ranges that wait for reading is limited.
+ * @author Qwertovsky
+ *
+ */
+class ParallelCsvReader implements Iterator<String[]>
+{
+	private static final int MIN_CHUNK_SIZE = 1 << 20;
+	private static final int MAX_CHUNK_SIZE = 1 << 26;
+	private static final byte QUOTE = '"';
+	private static final byte ESCAPE = '\\';
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	private File file;
+	private String charset;
+	private boolean[] columns;
+	private boolean ordered;
+	private int maxChunks;
+	private ForkJoinPool pool;
+	private long dataStart;
+	private long fileSize;
+	private long chunkSize;
+	private int chunkCount;
+	private boolean[] startInQuotes;
+	private int nextChunk = 0;
+	private ArrayDeque<Future<List<String[]>>> orderedChunks
+		= new ArrayDeque<Future<List<String[]>>>();
+	private BlockingQueue<Future<List<String[]>>> doneChunks
+		= new LinkedBlockingQueue<Future<List<String[]>>>();
+	private int pendingChunks = 0;
+	private MappedCsvReader sequentialReader;
+	private Iterator<String[]> rows = Collections.<String[]>emptyList().iterator();
+	private String[] next;
+
+	//--------------------------------------------
+	/**
+	 * Start parsing of rows after headers
+	 * @param file CSV file with headers in first line
+	 * @param charset charset of file
+	 * @param columns used columns or null
+	 * @param threads count of threads
+	 * @param ordered true - rows are returned in order of file
+	 * @throws IOException error read file
+	 */
+	ParallelCsvReader(File file, String charset, boolean[] columns, int threads
+			, boolean ordered) throws IOException
+	{
+		this(file, charset, columns, threads, ordered, 0);
+	}
+
+	//--------------------------------------------
+	/**
+	 * @param chunkSize size of range in bytes, 0 - depends on size of file
+	 */
+	ParallelCsvReader(File file, String charset, boolean[] columns, int threads
+			, boolean ordered, long chunkSize) throws IOException
+	{
+		this.file = file;
+		this.charset = charset;
+		this.columns = columns;
+		this.ordered = ordered;
+		this.maxChunks = threads * 2;
+		MappedCsvReader reader = new MappedCsvReader(file, charset);
+		reader.readNext();
+		if(!reader.isMapped() || threads < 2)
+		{
+			//charset has no fast path
+			reader.setColumns(columns);
+			sequentialReader = reader;
+			advance();
+			return;
+		}
+		dataStart = reader.getPosition();
+		reader.close();
+		fileSize = file.length();
+		if(chunkSize > 0)
+			this.chunkSize = chunkSize;
+		else
+			this.chunkSize = Math.max(MIN_CHUNK_SIZE
+					, Math.min(MAX_CHUNK_SIZE, (fileSize - dataStart) / (threads * 4) + 1));
+		chunkCount = (int) ((fileSize - dataStart + this.chunkSize - 1) / this.chunkSize);
+		pool = new ForkJoinPool(threads);
+		if(!countQuotes())
+		{
+			//escaped quotes: quote state can't be counted
+			pool.shutdown();
+			pool = null;
+			sequentialReader = new MappedCsvReader(file, charset);
+			sequentialReader.readNext();
+			sequentialReader.setColumns(columns);
+			advance();
+			return;
+		}
+		while(nextChunk < chunkCount && nextChunk < maxChunks)
+		{
+			submit();
+		}
+		advance();
+	}
+
+	//--------------------------------------------
+	public boolean hasNext()
+	{
+		return next != null;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @throws IllegalStateException error read file
+	 */
+	public String[] next()
+	{
+		if(next == null)
+			throw new NoSuchElementException();
+		String[] row = next;
+		advance();
+		return row;
+	}
+
+	//--------------------------------------------
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	//--------------------------------------------
+	private void advance()
+	{
+		try
+		{
+			if(sequentialReader != null)
+			{
+				next = sequentialReader.readNext();
+				if(next == null)
+					sequentialReader.close();
+				return;
+			}
+			while(!rows.hasNext())
+			{
+				List<String[]> chunk = takeChunk();
+				if(chunk == null)
+				{
+					next = null;
+					pool.shutdown();
+					return;
+				}
+				rows = chunk.iterator();
+			}
+			next = rows.next();
+		} catch (IOException ioe)
+		{
+			throw new IllegalStateException("Error read file " + file
+					+ " (" + ioe.getMessage() + ")", ioe);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Take parsed range and start next range
+	 * @return rows or null if all ranges are read
+	 */
+	private List<String[]> takeChunk() throws IOException
+	{
+		if(pendingChunks == 0)
+			return null;
+		Future<List<String[]>> future;
+		try
+		{
+			if(ordered)
+				future = orderedChunks.poll();
+			else
+				future = doneChunks.take();
+			List<String[]> chunk = future.get();
+			pendingChunks--;
+			if(nextChunk < chunkCount)
+				submit();
+			return chunk;
+		} catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Parsing has been interrupted");
+		} catch (ExecutionException ee)
+		{
+			throw getIOException(ee);
+		}
+	}
+
+	//--------------------------------------------
+	private void submit()
+	{
+		final int chunk = nextChunk++;
+		pendingChunks++;
+		final ForkJoinTask<List<String[]>> task = ForkJoinTask.adapt(
+				new Callable<List<String[]>>()
+		{
+			public List<String[]> call() throws IOException
+			{
+				return parseChunk(chunk);
+			}
+		});
+		if(ordered)
+		{
+			orderedChunks.add(task);
+			pool.execute(task);
+			return;
+		}
+		pool.execute(new Runnable()
+		{
+			public void run()
+			{
+				//error is thrown by get()
+				task.quietlyInvoke();
+				doneChunks.add(task);
+			}
+		});
+	}
+
+	//--------------------------------------------
+	/**
+	 * Parse rows that start in range
+	 */
+	private List<String[]> parseChunk(int chunk) throws IOException
+	{
+		long start = findRowStart(chunk);
+		long end = findRowStart(chunk + 1);
+		List<String[]> chunkRows = new ArrayList<String[]>();
+		if(start >= end)
+			return chunkRows;
+		//one byte more to see that CR is not followed by LF
+		MappedCsvReader reader = new MappedCsvReader(file, charset, start, end
+				, (int) Math.min(Integer.MAX_VALUE, end - start + 1));
+		try
+		{
+			reader.setColumns(columns);
+			String[] row;
+			while((row = reader.readNext()) != null)
+			{
+				chunkRows.add(row);
+			}
+		} finally
+		{
+			reader.close();
+		}
+		return chunkRows;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Count quotes of ranges in parallel and find quote state at start of each range
+	 * @return false if file contains escaped quotes
+	 */
+	private boolean countQuotes() throws IOException
+	{
+		List<ForkJoinTask<long[]>> tasks = new ArrayList<ForkJoinTask<long[]>>(chunkCount);
+		for(int i = 0; i < chunkCount; i++)
+		{
+			final int chunk = i;
+			ForkJoinTask<long[]> task = ForkJoinTask.adapt(new Callable<long[]>()
+			{
+				public long[] call() throws IOException
+				{
+					return countQuotes(chunk);
+				}
+			});
+			tasks.add(task);
+			pool.execute(task);
+		}
+		startInQuotes = new boolean[chunkCount + 1];
+		boolean inQuotes = false;
+		for(int i = 0; i < chunkCount; i++)
+		{
+			long[] count;
+			try
+			{
+				count = tasks.get(i).get();
+			} catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Parsing has been interrupted");
+			} catch (ExecutionException ee)
+			{
+				throw getIOException(ee);
+			}
+			if(count[1] > 0)
+				return false;
+			startInQuotes[i] = inQuotes;
+			if(count[0] % 2 == 1)
+				inQuotes = !inQuotes;
+		}
+		startInQuotes[chunkCount] = inQuotes;
+		return true;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return count of quotes and count of escaped quotes in range
+	 */
+	private long[] countQuotes(int chunk) throws IOException
+	{
+		long start = dataStart + chunk * chunkSize;
+		long size = Math.min(chunkSize, fileSize - start);
+		long quotes = 0;
+		long escaped = 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			//previous byte is escape of first byte
+			long mapStart = Math.max(dataStart, start - 1);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY
+					, mapStart, start + size - mapStart);
+			byte previous = 0;
+			for(int i = 0; i < buffer.limit(); i++)
+			{
+				byte b = buffer.get(i);
+				if(b == QUOTE && mapStart + i >= start)
+				{
+					quotes++;
+					if(previous == ESCAPE)
+						escaped++;
+				}
+				previous = b;
+			}
+		} finally
+		{
+			raf.close();
+		}
+		return new long[]{quotes, escaped};
+	}
+
+	//--------------------------------------------
+	/**
+	 * Find first line start outside quotes from start of range
+	 * @return offset of row or size of file
+	 */
+	private long findRowStart(int chunk) throws IOException
+	{
+		if(chunk == 0)
+			return dataStart;
+		if(chunk >= chunkCount)
+			return fileSize;
+		long start = dataStart + chunk * chunkSize;
+		boolean inQuotes = startInQuotes[chunk];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long position = start - 1;
+			while(position < fileSize)
+			{
+				long size = Math.min(MAX_CHUNK_SIZE, fileSize - position);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY
+						, position, size);
+				for(int i = 0; i < buffer.limit(); i++)
+				{
+					byte b = buffer.get(i);
+					long offset = position + i;
+					if(b == QUOTE && offset >= start)
+						inQuotes = !inQuotes;
+					if(inQuotes)
+						continue;
+					if(b == LF)
+						return offset + 1;
+					if(b == CR)
+					{
+						//CRLF is one line break
+						if(i + 1 < buffer.limit())
+						{
+							if(buffer.get(i + 1) != LF)
+								return offset + 1;
+						}
+						else if(offset + 1 >= fileSize || readByte(channel, offset + 1) != LF)
+							return offset + 1;
+					}
+				}
+				position += size;
+			}
+		} finally
+		{
+			raf.close();
+		}
+		return fileSize;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get error of task. Checked exception of task is wrapped by fork/join pool.
+	 */
+	private static IOException getIOException(ExecutionException ee)
+	{
+		Throwable cause = ee.getCause();
+		while(cause != null && !(cause instanceof IOException) && cause.getCause() != null)
+			cause = cause.getCause();
+		if(cause instanceof IOException)
+			return (IOException) cause;
+		return new IOException(String.valueOf(cause));
+	}
+
+	//--------------------------------------------
+	private byte readByte(FileChannel channel, long offset) throws IOException
+	{
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, 1).get(0);
+	}
+}
@@ -0,0 +1,206 @@
+package com.qwertovsky.mailer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Limits of messages per second and bytes per second
+ * for each SMTP server and each recipient domain.
+ * <br />Message takes tokens from buckets of server and of all its recipient domains
+ * at once, or takes nothing and gets time to wait.
+ * @author Qwertovsky
+ *
+ */
+class RateLimiter
+{
+	private double relayMessageRate = 0;
+	private double relayByteRate = 0;
+	private double domainMessageRate = 0;
+	private double domainByteRate = 0;
+	private Map<String, double[]> domainRates = new HashMap<String, double[]>();
+	
+	private Map<Object, TokenBucket[]> buckets = new HashMap<Object, TokenBucket[]>();
+	
+	//--------------------------------------------
+	/**
+	 * Set limits for each SMTP server
+	 * @param messageRate messages per second (0 - unlimited)
+	 * @param byteRate bytes per second (0 - unlimited)
+	 */
+	synchronized void setRelayRate(double messageRate, double byteRate)
+	{
+		relayMessageRate = messageRate;
+		relayByteRate = byteRate;
+		buckets.clear();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Set limits for each recipient domain
+	 * @param messageRate messages per second (0 - unlimited)
+	 * @param byteRate bytes per second (0 - unlimited)
+	 */
+	synchronized void setDomainRate(double messageRate, double byteRate)
+	{
+		domainMessageRate = messageRate;
+		domainByteRate = byteRate;
+		buckets.clear();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Set limits for recipient domain
+	 * @param domain domain of recipients
+	 * @param messageRate messages per second (0 - unlimited)
+	 * @param byteRate bytes per second (0 - unlimited)
+	 */
+	synchronized void setDomainRate(String domain, double messageRate, double byteRate)
+	{
+		domainRates.put(domain.toLowerCase(), new double[]{messageRate, byteRate});
+		buckets.clear();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * @return true if any limit is set
+	 */
+	synchronized boolean isEnabled()
+	{
+		return relayMessageRate > 0 || relayByteRate > 0
+				|| domainMessageRate > 0 || domainByteRate > 0
+				|| !domainRates.isEmpty();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Take tokens for message if all limits allow to send it now
+	 * @param relayState SMTP server
+	 * @param message message with recipients
+	 * @return nanoseconds to wait (0 - tokens are taken, message can be sent)
+	 * @throws MessagingException error get recipients or message size
+	 */
+	long acquire(RelayState relayState, Message message) throws MessagingException
+	{
+		if(!isEnabled())
+			return 0;
+		Set<String> domains = getDomains(message);
+		long size = 0;
+		if(needSize(domains))
+			size = message.getEncodedSize();
+		
+		synchronized(this)
+		{
+			long now = System.nanoTime();
+			TokenBucket[] relayBuckets = getBuckets(relayState
+					, relayMessageRate, relayByteRate);
+			long wait = getWaitTime(relayBuckets, size, now);
+			TokenBucket[][] domainBuckets = new TokenBucket[domains.size()][];
+			int i = 0;
+			for(String domain:domains)
+			{
+				double[] rates = getDomainRates(domain);
+				domainBuckets[i] = getBuckets(domain, rates[0], rates[1]);
+				wait = Math.max(wait, getWaitTime(domainBuckets[i], size, now));
+				i++;
+			}
+			if(wait > 0)
+				return wait;
+			consume(relayBuckets, size);
+			for(TokenBucket[] bucket:domainBuckets)
+			{
+				consume(bucket, size);
+			}
+			return 0;
+		}
+	}
+	
+	//--------------------------------------------
+	private synchronized boolean needSize(Set<String> domains)
+	{
+		if(relayByteRate > 0)
+			return true;
+		for(String domain:domains)
+		{
+			if(getDomainRates(domain)[1] > 0)
+				return true;
+		}
+		return false;
+	}
+	
+	//--------------------------------------------
+	private double[] getDomainRates(String domain)
+	{
+		double[] rates = domainRates.get(domain);
+		if(rates == null)
+			rates = new double[]{domainMessageRate, domainByteRate};
+		return rates;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get buckets of messages and bytes
+	 * @return array of two buckets, null bucket is unlimited
+	 */
+	private TokenBucket[] getBuckets(Object key, double messageRate, double byteRate)
+	{
+		TokenBucket[] keyBuckets = buckets.get(key);
+		if(keyBuckets == null)
+		{
+			keyBuckets = new TokenBucket[2];
+			if(messageRate > 0)
+				keyBuckets[0] = new TokenBucket(messageRate);
+			if(byteRate > 0)
+				keyBuckets[1] = new TokenBucket(byteRate);
+			buckets.put(key, keyBuckets);
+		}
+		return keyBuckets;
+	}
+	
+	//--------------------------------------------
+	private long getWaitTime(TokenBucket[] keyBuckets, long size, long now)
+	{
+		long wait = 0;
+		if(keyBuckets[0] != null)
+			wait = keyBuckets[0].getWaitTime(1, now);
+		if(keyBuckets[1] != null)
+			wait = Math.max(wait, keyBuckets[1].getWaitTime(size, now));
+		return wait;
+	}
+	
+	//--------------------------------------------
+	private void consume(TokenBucket[] keyBuckets, long size)
+	{
+		if(keyBuckets[0] != null)
+			keyBuckets[0].consume(1);
+		if(keyBuckets[1] != null)
+			keyBuckets[1].consume(size);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get domains of message recipients in lower case
+	 */
+	static Set<String> getDomains(Message message) throws MessagingException
+	{
+		Set<String> domains = new HashSet<String>();
+		Address[] recipients = message.getAllRecipients();
+		if(recipients == null)
+			return domains;
+		for(Address address:recipients)
+		{
+			if(!(address instanceof InternetAddress))
+				continue;
+			String email = ((InternetAddress)address).getAddress();
+			int at = email.lastIndexOf('@');
+			if(at >= 0)
+				domains.add(email.substring(at + 1).toLowerCase());
+		}
+		return domains;
+	}
+}
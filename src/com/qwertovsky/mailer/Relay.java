@@ -0,0 +1,64 @@
+package com.qwertovsky.mailer;
+
+/**
+ * SMTP server that is used by {@link Sender} together with other servers.
+ * <br />Messages are spread over servers by weight: server with weight 2
+ * gets two times more messages than server with weight 1.
+ * 
+ * <pre class="code">
+ * List&lt;Relay&gt; relays = new ArrayList&lt;Relay&gt;();
+ * relays.add(new Relay("smtp1.company.com", 25, 2));
+ * relays.add(new Relay("smtp2.company.com", 25, 1));
+ * Sender sender = new Sender(relays, "login", "password", "Company");</pre>
+ * 
+ * @author Qwertovsky
+ *
+ */
+public class Relay
+{
+	private String host;
+	private int port;
+	private int weight;
+	
+	//--------------------------------------------
+	/**
+	 * @param host SMTP server
+	 * @param port SMTP server port (default 25)
+	 * @param weight relative part of messages for this server (default 1)
+	 */
+	public Relay(String host, int port, int weight)
+	{
+		if(port == 0)
+			port = 25;
+		if(weight < 1)
+			weight = 1;
+		this.host = host;
+		this.port = port;
+		this.weight = weight;
+	}
+	
+	//--------------------------------------------
+	public String getHost()
+	{
+		return host;
+	}
+	
+	//--------------------------------------------
+	public int getPort()
+	{
+		return port;
+	}
+	
+	//--------------------------------------------
+	public int getWeight()
+	{
+		return weight;
+	}
+	
+	//--------------------------------------------
+	@Override
+	public String toString()
+	{
+		return host + ":" + port;
+	}
+}
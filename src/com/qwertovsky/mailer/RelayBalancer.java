@@ -0,0 +1,117 @@
+package com.qwertovsky.mailer;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses relay for next message by smooth weighted round-robin.
+ * <br />Relay is marked unhealthy after several connection failures in a row
+ * and is not chosen during retry interval. After that interval relay gets
+ * messages again; one more failure makes it unhealthy again.
+ * <br />The only relay is never marked unhealthy.
+ * @author Qwertovsky
+ *
+ */
+class RelayBalancer
+{
+	private List<RelayState> relays;
+	private int maxFailures;
+	private long retryInterval;
+	
+	final Logger logger = LoggerFactory.getLogger(RelayBalancer.class);
+	
+	//--------------------------------------------
+	/**
+	 * @param relays relays
+	 * @param maxFailures count of connection failures in a row that makes relay unhealthy
+	 * @param retryInterval milliseconds while unhealthy relay is not used
+	 */
+	RelayBalancer(List<RelayState> relays, int maxFailures, long retryInterval)
+	{
+		if(maxFailures < 1)
+			maxFailures = 1;
+		this.relays = relays;
+		this.maxFailures = maxFailures;
+		this.retryInterval = retryInterval;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Change failover settings
+	 * @param maxFailures count of connection failures in a row that makes relay unhealthy
+	 * @param retryInterval milliseconds while unhealthy relay is not used
+	 */
+	synchronized void configure(int maxFailures, long retryInterval)
+	{
+		if(maxFailures < 1)
+			maxFailures = 1;
+		this.maxFailures = maxFailures;
+		this.retryInterval = retryInterval;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Choose healthy relay
+	 * @param excluded relays that must not be chosen (already failed for message)
+	 * @return relay or null if all relays are unhealthy or excluded
+	 */
+	synchronized RelayState next(Collection<RelayState> excluded)
+	{
+		long now = System.currentTimeMillis();
+		RelayState best = null;
+		int totalWeight = 0;
+		for(RelayState state:relays)
+		{
+			if(!state.isHealthy(now) || (excluded != null && excluded.contains(state)))
+				continue;
+			state.currentWeight += state.relay.getWeight();
+			totalWeight += state.relay.getWeight();
+			if(best == null || state.currentWeight > best.currentWeight)
+				best = state;
+		}
+		if(best != null)
+			best.currentWeight -= totalWeight;
+		return best;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Message has been sent by relay
+	 */
+	synchronized void success(RelayState state)
+	{
+		state.failures = 0;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Relay has not accepted connection
+	 */
+	synchronized void failure(RelayState state)
+	{
+		//the only relay is always used
+		if(relays.size() < 2)
+			return;
+		state.failures++;
+		if(state.failures >= maxFailures && state.isHealthy(System.currentTimeMillis()))
+		{
+			state.unhealthyUntil = System.currentTimeMillis() + retryInterval;
+			//after retry interval one failure is enough
+			state.failures = maxFailures - 1;
+			logger.warn("Relay " + state + " is marked unhealthy for " + retryInterval + " ms");
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Relay is not available. Don't use it during retry interval
+	 */
+	synchronized void markUnhealthy(RelayState state)
+	{
+		state.unhealthyUntil = System.currentTimeMillis() + retryInterval;
+		state.failures = maxFailures - 1;
+	}
+}
@@ -0,0 +1,83 @@
+package com.qwertovsky.mailer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Results of SMTP server checks that are shared by all {@link Sender} objects.
+ * <br />Result is kept for time to live, then server is checked again.
+ * @author Qwertovsky
+ *
+ */
+class RelayHealthCache
+{
+	private static Map<String, Entry> entries = new HashMap<String, Entry>();
+	private static long ttl = 0;
+	
+	/**
+	 * Result of check
+	 */
+	static class Entry
+	{
+		boolean healthy;
+		String error;
+		long expires;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * @param ttl milliseconds while result is used (0 - results are not kept)
+	 */
+	static synchronized void setTtl(long ttl)
+	{
+		RelayHealthCache.ttl = ttl;
+		if(ttl <= 0)
+			entries.clear();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get result of check
+	 * @param key server and user
+	 * @return result or null if server must be checked
+	 */
+	static synchronized Entry get(String key)
+	{
+		Entry entry = entries.get(key);
+		if(entry == null)
+			return null;
+		if(entry.expires <= System.currentTimeMillis())
+		{
+			entries.remove(key);
+			return null;
+		}
+		return entry;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Keep result of check
+	 * @param key server and user
+	 * @param healthy true - connection is opened
+	 * @param error error message if connection is not opened
+	 */
+	static synchronized void put(String key, boolean healthy, String error)
+	{
+		if(ttl <= 0)
+			return;
+		Entry entry = new Entry();
+		entry.healthy = healthy;
+		entry.error = error;
+		entry.expires = System.currentTimeMillis() + ttl;
+		entries.put(key, entry);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get key of server and user
+	 */
+	static String getKey(Relay relay, String user)
+	{
+		return relay.getHost() + ":" + relay.getPort() + ":" + user;
+	}
+}
@@ -0,0 +1,86 @@
+package com.qwertovsky.mailer;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Mail session, connection pool and health of one relay in {@link Sender}
+ * @author Qwertovsky
+ *
+ */
+class RelayState
+{
+	Relay relay;
+	Session session;
+	SmtpConnectionPool connectionPool;
+	
+	//connection that was opened by check of server
+	private Transport probeTransport;
+	
+	//smooth weighted round-robin
+	int currentWeight = 0;
+	
+	//health
+	int failures = 0;
+	long unhealthyUntil = 0;
+	
+	//--------------------------------------------
+	RelayState(Relay relay, Session session)
+	{
+		this.relay = relay;
+		this.session = session;
+	}
+	
+	//--------------------------------------------
+	boolean isHealthy(long now)
+	{
+		return unhealthyUntil <= now;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Keep connection that was opened by check of server
+	 */
+	synchronized void setProbeTransport(Transport transport)
+	{
+		probeTransport = transport;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get connection that was opened by check of server. It is got once.
+	 * @return opened connection or null
+	 */
+	synchronized Transport takeProbeTransport()
+	{
+		Transport transport = probeTransport;
+		probeTransport = null;
+		return transport;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Close connection that was opened by check of server
+	 */
+	void closeProbeTransport()
+	{
+		Transport transport = takeProbeTransport();
+		if(transport == null)
+			return;
+		try
+		{
+			transport.close();
+		} catch (MessagingException e)
+		{
+			//nothing
+		}
+	}
+	
+	//--------------------------------------------
+	@Override
+	public String toString()
+	{
+		return relay.toString();
+	}
+}
@@ -0,0 +1,218 @@
+package com.qwertovsky.mailer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Columns of parameters rows. Schema is computed once for headers array.
+ * <br />Repeated header gets suffix "_1", "_2" and so on.
+ * Role of column is found by header: "email*" - emails of recipients
+ * , "person" - personal part of addresses, "attach*" - attachments
+ * , other headers are template variables.
+ * <br />Row is array of values with {@link Map} view for parameters API
+ * , so map is not created for each row.
+ * @author Qwertovsky
+ *
+ */
+class RowSchema
+{
+	private String[] names;
+	private Map<String, Integer> indexes;
+	private int[] emailColumns;
+	private int[] attachColumns;
+	private int personColumn = -1;
+
+	//--------------------------------------------
+	/**
+	 * @param headers headers of parameters
+	 */
+	RowSchema(String[] headers)
+	{
+		names = new String[headers.length];
+		indexes = new HashMap<String, Integer>(headers.length * 2);
+		int[] emails = new int[headers.length];
+		int emailCount = 0;
+		int[] attachments = new int[headers.length];
+		int attachCount = 0;
+		for(int i = 0; i < headers.length; i++)
+		{
+			String header = headers[i];
+			if(indexes.containsKey(header))
+			{
+				int index = 0;
+				do
+				{
+					index++;
+				}
+				while(indexes.containsKey(header + "_" + index));
+				header = header + "_" + index;
+			}
+			names[i] = header;
+			indexes.put(header, i);
+			if(header == null)
+				continue;
+			String role = header.toLowerCase().trim();
+			if(role.equals("person"))
+				personColumn = i;
+			if(role.startsWith("email"))
+				emails[emailCount++] = i;
+			if(role.startsWith("attach"))
+				attachments[attachCount++] = i;
+		}
+		emailColumns = Arrays.copyOf(emails, emailCount);
+		attachColumns = Arrays.copyOf(attachments, attachCount);
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return view of row
+	 */
+	Row createRow(String[] values)
+	{
+		return new Row(values);
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return names of columns with suffixes of repeated headers
+	 */
+	String[] getNames()
+	{
+		return names;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return columns of emails
+	 */
+	int[] getEmailColumns()
+	{
+		return emailColumns;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return columns of attachments
+	 */
+	int[] getAttachColumns()
+	{
+		return attachColumns;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return column of person or -1
+	 */
+	int getPersonColumn()
+	{
+		return personColumn;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Parameters of one row. Values are kept in array of row and are taken by column.
+	 * <br />Value of column that is absent in short row is null.
+	 * Map is read-only.
+	 */
+	class Row extends AbstractMap<String, String>
+	{
+		private String[] values;
+
+		//--------------------------------------------
+		private Row(String[] values)
+		{
+			this.values = values;
+		}
+
+		//--------------------------------------------
+		/**
+		 * @return schema of row
+		 */
+		RowSchema getSchema()
+		{
+			return RowSchema.this;
+		}
+
+		//--------------------------------------------
+		/**
+		 * @param column index of column
+		 * @return value or null
+		 */
+		String getValue(int column)
+		{
+			return column < values.length ? values[column] : null;
+		}
+
+		//--------------------------------------------
+		@Override
+		public String get(Object key)
+		{
+			Integer column = indexes.get(key);
+			return column == null ? null : getValue(column);
+		}
+
+		//--------------------------------------------
+		@Override
+		public boolean containsKey(Object key)
+		{
+			return indexes.containsKey(key);
+		}
+
+		//--------------------------------------------
+		@Override
+		public int size()
+		{
+			return names.length;
+		}
+
+		//--------------------------------------------
+		@Override
+		public Set<Map.Entry<String, String>> entrySet()
+		{
+			return new AbstractSet<Map.Entry<String, String>>()
+			{
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator()
+				{
+					return new Iterator<Map.Entry<String, String>>()
+					{
+						private int column = 0;
+
+						public boolean hasNext()
+						{
+							return column < names.length;
+						}
+
+						public Map.Entry<String, String> next()
+						{
+							if(column >= names.length)
+								throw new NoSuchElementException();
+							Map.Entry<String, String> entry
+								= new SimpleImmutableEntry<String, String>(names[column]
+										, getValue(column));
+							column++;
+							return entry;
+						}
+
+						public void remove()
+						{
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					return names.length;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package com.qwertovsky.mailer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Journal of sent rows for resuming of sending after crash.
+ * <br />Each line of file is index of row in parameters and outcome:
+ * S - sent, F - not sent, B - bad parameters or emails or all recipients are skipped.
+ * Lines are only appended. Last line that is not complete is removed on open.
+ * <br />Records are written by own thread and forced to disk by groups
+ * : all records that come while disk is synchronized are forced together.
+ * Records of last sync interval may be lost on crash, so these rows are sent again.
+ * <br />On resume rows that are sent or bad are skipped, not sent rows are sent again.
+ * @author Qwertovsky
+ * @see Sender#setJournal(SendJournal)
+ */
+public class SendJournal implements Closeable
+{
+	static final char SENT = 'S';
+	static final char FAILED = 'F';
+	static final char BAD = 'B';
+	private static final int BATCH_SIZE = 1000;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private BitSet done = new BitSet();
+	private int doneCount = 0;
+	private StringBuilder pending = new StringBuilder();
+	private int pendingCount = 0;
+	private volatile long syncInterval = 100;
+	private boolean closed = false;
+	private volatile IOException error;
+	private Thread writer;
+
+	final Logger logger = LoggerFactory.getLogger(SendJournal.class);
+
+	//--------------------------------------------
+	/**
+	 * Open journal
+	 * @param file journal file
+	 * @param resume true - read rows of existing journal and append to it
+	 * , false - start new journal
+	 * @throws IOException error read or create file, bad record in journal
+	 */
+	public SendJournal(File file, boolean resume) throws IOException
+	{
+		this.file = file;
+		long length = 0;
+		if(resume && file.exists())
+			length = readJournal();
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		//remove not complete record
+		channel.truncate(length);
+		channel.position(length);
+		writer = new Thread("qwertomailer-journal")
+		{
+			@Override
+			public void run()
+			{
+				writeRecords();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Set max time between record and sync of disk
+	 * @param interval milliseconds (default 100)
+	 */
+	public void setSyncInterval(long interval)
+	{
+		if(interval < 1)
+			interval = 1;
+		this.syncInterval = interval;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that row has been sent or is bad
+	 * @param row index of row
+	 * @return true - row must be skipped
+	 */
+	public synchronized boolean isDone(int row)
+	{
+		return done.get(row);
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return count of rows that are sent or bad
+	 */
+	public synchronized int getDoneCount()
+	{
+		return doneCount;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Add record. It is written to disk by journal thread.
+	 * @param row index of row
+	 * @param outcome {@link #SENT}, {@link #FAILED} or {@link #BAD}
+	 * @throws IllegalStateException journal is closed or records can't be written
+	 */
+	synchronized void record(int row, char outcome)
+	{
+		if(closed)
+			throw new IllegalStateException("Journal is closed");
+		if(error != null)
+			throw new IllegalStateException("Error write journal " + file, error);
+		pending.append(row).append(' ').append(outcome).append('\n');
+		pendingCount++;
+		setOutcome(row, outcome);
+		if(pendingCount >= BATCH_SIZE)
+			notifyAll();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that records are written
+	 * @throws IOException error write journal, next records are not written
+	 */
+	void checkError() throws IOException
+	{
+		if(error != null)
+			throw new IOException("Error write journal " + file, error);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Write all records and close file
+	 * @throws IOException error write journal
+	 */
+	public void close() throws IOException
+	{
+		synchronized(this)
+		{
+			if(closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try
+		{
+			writer.join();
+		} catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		raf.close();
+		if(error != null)
+			throw error;
+	}
+
+	//--------------------------------------------
+	private void setOutcome(int row, char outcome)
+	{
+		boolean wasDone = done.get(row);
+		boolean isDone = outcome != FAILED;
+		if(wasDone == isDone)
+			return;
+		done.set(row, isDone);
+		doneCount += isDone ? 1 : -1;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Write records by groups and sync disk after each group
+	 */
+	private void writeRecords()
+	{
+		while(true)
+		{
+			String records;
+			synchronized(this)
+			{
+				if(!closed && pendingCount < BATCH_SIZE)
+				{
+					try
+					{
+						wait(syncInterval);
+					} catch (InterruptedException ie)
+					{
+						closed = true;
+					}
+				}
+				if(pending.length() == 0)
+				{
+					if(closed)
+						return;
+					continue;
+				}
+				records = pending.toString();
+				pending.setLength(0);
+				pendingCount = 0;
+			}
+			try
+			{
+				ByteBuffer buffer = ByteBuffer.wrap(records.getBytes("US-ASCII"));
+				while(buffer.hasRemaining())
+				{
+					channel.write(buffer);
+				}
+				channel.force(false);
+			} catch (IOException ioe)
+			{
+				logger.error("Error write journal " + file + " (" + ioe.getMessage() + ")");
+				error = ioe;
+				return;
+			}
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Read outcomes of rows
+	 * @return length of complete records
+	 * @throws IOException error read file, bad record
+	 */
+	private long readJournal() throws IOException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		long complete = 0;
+		long position = 0;
+		StringBuilder line = new StringBuilder();
+		try
+		{
+			int b;
+			while((b = in.read()) != -1)
+			{
+				position++;
+				if(b != '\n')
+				{
+					line.append((char) b);
+					continue;
+				}
+				parseRecord(line.toString(), complete);
+				line.setLength(0);
+				complete = position;
+			}
+		} finally
+		{
+			in.close();
+		}
+		if(line.length() > 0)
+			logger.warn("Not complete record is removed from journal " + file);
+		return complete;
+	}
+
+	//--------------------------------------------
+	private void parseRecord(String line, long position) throws IOException
+	{
+		int space = line.indexOf(' ');
+		if(space > 0 && space == line.length() - 2)
+		{
+			char outcome = line.charAt(space + 1);
+			if(outcome == SENT || outcome == FAILED || outcome == BAD)
+			{
+				try
+				{
+					int row = Integer.parseInt(line.substring(0, space));
+					if(row >= 0)
+					{
+						setOutcome(row, outcome);
+						return;
+					}
+				} catch (NumberFormatException nfe)
+				{
+					//bad record
+				}
+			}
+		}
+		throw new IOException("Bad record in journal " + file + " at " + position);
+	}
+}
@@ -0,0 +1,39 @@
+package com.qwertovsky.mailer;
+
+import java.util.Map;
+
+/**
+ * Receiver of sending results.
+ * <br />Results are passed as soon as they are known, so sent messages
+ * need not be kept until the end of sending.
+ * <br />Methods are called from sending threads, implementation must be thread-safe.
+ * @author Qwertovsky
+ * @see Sender#setSendListener(SendListener)
+ */
+public interface SendListener
+{
+	/**
+	 * Message is accepted by server.
+	 * Some recipients may be rejected, they are passed to {@link #onBadAddress(String)}
+	 * @param result accepted recipients and reply of server
+	 */
+	void onSent(SendResult result);
+
+	/**
+	 * Message is not sent
+	 * @param result recipients and error
+	 */
+	void onFailed(SendResult result);
+
+	/**
+	 * Email is incorrect or is rejected by server
+	 * @param email address
+	 */
+	void onBadAddress(String email);
+
+	/**
+	 * Message has not been created for parameters
+	 * @param parameters parameters of recipient
+	 */
+	void onBadParameters(Map<String, String> parameters);
+}
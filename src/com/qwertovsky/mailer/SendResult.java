@@ -0,0 +1,96 @@
+package com.qwertovsky.mailer;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of one message. Contains no message content.
+ * @author Qwertovsky
+ * @see SendListener
+ */
+public class SendResult
+{
+	private List<String> recipients;
+	private String messageId;
+	private String serverResponse;
+	private long startTime;
+	private long duration;
+	private Map<String, String> parameters;
+	private Exception error;
+
+	//--------------------------------------------
+	SendResult(List<String> recipients, String messageId, String serverResponse
+			, long startTime, long duration, Map<String, String> parameters, Exception error)
+	{
+		this.recipients = recipients;
+		this.messageId = messageId;
+		this.serverResponse = serverResponse;
+		this.startTime = startTime;
+		this.duration = duration;
+		this.parameters = parameters;
+		this.error = error;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return accepted recipients if message is sent, all recipients otherwise
+	 */
+	public List<String> getRecipients()
+	{
+		return recipients;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return Message-ID header
+	 */
+	public String getMessageId()
+	{
+		return messageId;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return last reply of SMTP server or error message. May be null
+	 */
+	public String getServerResponse()
+	{
+		return serverResponse;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return time of the last sending try (milliseconds since epoch)
+	 */
+	public long getStartTime()
+	{
+		return startTime;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return milliseconds from start of sending to reply of server
+	 */
+	public long getDuration()
+	{
+		return duration;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return parameters of recipient or null if message is created for email only
+	 */
+	public Map<String, String> getParameters()
+	{
+		return parameters;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return reason if message is not sent or some recipients are rejected
+	 */
+	public Exception getError()
+	{
+		return error;
+	}
+}
@@ -2,14 +2,25 @@ package com.qwertovsky.mailer;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.mail.Address;
 import javax.mail.Authenticator;
@@ -17,13 +28,13 @@ import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
-import org.apache.velocity.app.Velocity;
-import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,6 +84,39 @@ public class Sender
 	private List<Map<String, String>> badParametersMap;
 	private List<Message> notSentMessages;
 	private List<Message> sentMessages;
+	private boolean reuseConnection = false;
+	private int messagesPerConnection = 0;
+	private boolean pipelining = false;
+	private int threads = 1;
+	private int poolMinSize = 0;
+	private int poolMaxSize = 0;
+	private long poolIdleTimeout = 60000;
+	private long poolBorrowTimeout = 60000;
+	private List<RelayState> relayStates;
+	private RelayBalancer relayBalancer;
+	private RateLimiter rateLimiter = new RateLimiter();
+	private ConcurrencyLimiter concurrencyLimiter;
+	private int nioThreads = 0;
+	private int nioConnections = 1;
+	private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+	private int maxInFlight = 10000;
+	private int queueSize = 1000;
+	private SendListener sendListener;
+	private Boolean retainMessages;
+	private SendJournal journal;
+	private IdempotencyStore idempotencyStore;
+	private String templateId;
+	private boolean deduplicate = false;
+	private boolean deduplicateExact = false;
+	private AddressSet recipientSet;
+	private Set<String> pendingRecipients;
+	private SuppressionList suppressionList;
+	private List<String> suppressedEmails;
+	private boolean suppressedFound = false;
+	private int buildThreads = 1;
+	private TemplateCache templateCache;
+	private final ThreadLocal<List<Map<String, String>>> rowBadParameters
+		= new ThreadLocal<List<Map<String, String>>>();
 	
 	final Logger logger = LoggerFactory.getLogger(Sender.class);
 
@@ -91,57 +135,172 @@ public class Sender
 			final String smtpPassword, String hostname)
 		throws QwertoMailerException, Exception
 	{
-		if(smtpHostName == null || smtpHostName.length() == 0)
+		this(Collections.singletonList(new Relay(smtpHostName, smtpPort, 1))
+				, smtpUser, smtpPassword, hostname);
+	}
+	
+	//-----------------------------------------------
+	/**
+	 * Create Sender class that sends messages over several SMTP servers.
+	 * <br />Messages are spread over servers by their weights.
+	 * If server does not accept connection, message is sent by another server.
+	 * Server is not used for some time after several failures in a row.
+	 * <br />Servers must accept the same account.
+	 * @param relays SMTP servers
+	 * @param smtpUser SMTP server account
+	 * @param smtpPassword SMTP server password
+	 * @param hostname local machine name
+	 * @throws QwertoMailerException SMTP server is not specified (NULL or empty)
+	 * @throws Exception no one server is available
+	 * @see #setRelayFailover(int, long)
+	 */
+	public Sender(List<Relay> relays, final String smtpUser,
+			final String smtpPassword, String hostname)
+		throws QwertoMailerException, Exception
+	{
+		this(relays, smtpUser, smtpPassword, hostname, true);
+	}
+	
+	//-----------------------------------------------
+	/**
+	 * Create Sender class that sends messages over several SMTP servers.
+	 * <br />If {@code checkConnection} is true, connection to each server is opened.
+	 * Opened connection is used for the first message.
+	 * Result of check is kept for time that is set by {@link #setHealthCheckTtl(long)}.
+	 * <br />If {@code checkConnection} is false, servers are checked by sending.
+	 * @param relays SMTP servers
+	 * @param smtpUser SMTP server account
+	 * @param smtpPassword SMTP server password
+	 * @param hostname local machine name
+	 * @param checkConnection true - check servers now
+	 * @throws QwertoMailerException SMTP server is not specified (NULL or empty)
+	 * @throws Exception no one server is available
+	 * @see #close()
+	 */
+	public Sender(List<Relay> relays, final String smtpUser,
+			final String smtpPassword, String hostname, boolean checkConnection)
+		throws QwertoMailerException, Exception
+	{
+		if(relays == null || relays.isEmpty())
 			throw new QwertoMailerException("SMTP server is not specified");
-		if(smtpPort == 0)
-			smtpPort = 25;
+		for(Relay relay:relays)
+		{
+			if(relay == null || relay.getHost() == null || relay.getHost().length() == 0)
+				throw new QwertoMailerException("SMTP server is not specified");
+		}
 		if(hostname == null)
 			hostname = "";
 		
-		//set mail Properties
-		mailProp = new Properties();
-		mailProp.put("mail.smtp.host", smtpHostName);
-		mailProp.put("mail.smtp.port", smtpPort);
-		mailProp.put("mail.smtp.localhost", hostname);
-		
-		mailProp.put("mail.transport.protocol", "smtp");
-		mailProp.put("mail.smtp.connectiontimeout","5000");
-		mailProp.put("mail.smtp.timeout","5000");
-		
-		mailProp.put("mail.smtp.auth", "true");
-		mailProp.put("mail.smtp.starttls.enable", "true");
-		mailProp.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
-		mailProp.put("mail.smtp.socketFactory.port", smtpPort);
-//		mailProp.put("mail.smtp.socketFactory.fallback", "false");
-		
-		//create session
+		//create authenticator
+		Authenticator authenticator = null;
 		if(smtpUser != null && smtpPassword != null)
 		{
-			Authenticator authenticator = new Authenticator()
+			authenticator = new Authenticator()
 			{
 				protected PasswordAuthentication getPasswordAuthentication()
 				{
 					return new PasswordAuthentication(smtpUser,smtpPassword);
 				}
 			};
-			session = Session.getInstance(mailProp,	authenticator);
 		}
 		else
 		{
-			Authenticator authenticator = new Authenticator()
+			authenticator = new Authenticator()
 			{
 				protected PasswordAuthentication getPasswordAuthentication()
 				{
 					return new PasswordAuthentication("","");
 				}
 			};
-			session = Session.getInstance(mailProp,	authenticator);
 		}
-		//check mail server
-		Transport transport = session.getTransport("smtp");
-		transport.connect();
-		transport.close();
 		
+		//create session for each server
+		relayStates = new ArrayList<RelayState>(relays.size());
+		for(Relay relay:relays)
+		{
+			Properties relayProp = createMailProperties(relay, hostname);
+			Session relaySession = Session.getInstance(relayProp, authenticator);
+			relayStates.add(new RelayState(relay, relaySession));
+		}
+		//messages are created with session of the first server
+		mailProp = relayStates.get(0).session.getProperties();
+		session = relayStates.get(0).session;
+		relayBalancer = new RelayBalancer(relayStates, 3, 60000);
+		
+		if(checkConnection)
+			checkRelays(smtpUser);
+	}
+	
+	//-----------------------------------------------
+	/**
+	 * Open connection to each server. Connection is kept for the first message.
+	 * <br />Result of check is taken from cache if it is not expired.
+	 * @param smtpUser SMTP server account
+	 * @throws MessagingException no one server is available
+	 */
+	private void checkRelays(String smtpUser) throws MessagingException
+	{
+		MessagingException connectException = null;
+		int available = 0;
+		for(RelayState relayState:relayStates)
+		{
+			String key = RelayHealthCache.getKey(relayState.relay, smtpUser);
+			RelayHealthCache.Entry cached = RelayHealthCache.get(key);
+			if(cached != null)
+			{
+				if(cached.healthy)
+				{
+					available++;
+					continue;
+				}
+				logger.warn("SMTP server " + relayState + " is not available: " + cached.error);
+				relayBalancer.markUnhealthy(relayState);
+				connectException = new MessagingException(cached.error);
+				continue;
+			}
+			try
+			{
+				Transport transport = relayState.session.getTransport("smtp");
+				transport.connect();
+				relayState.setProbeTransport(transport);
+				RelayHealthCache.put(key, true, null);
+				available++;
+			} catch (MessagingException me)
+			{
+				logger.warn("SMTP server " + relayState + " is not available: " + me.getMessage());
+				RelayHealthCache.put(key, false, me.getMessage());
+				relayBalancer.markUnhealthy(relayState);
+				connectException = me;
+			}
+		}
+		if(available == 0)
+			throw connectException;
+	}
+	
+	//-----------------------------------------------
+	/**
+	 * Create mail properties for SMTP server
+	 * @param relay SMTP server
+	 * @param hostname local machine name
+	 * @return properties
+	 */
+	private Properties createMailProperties(Relay relay, String hostname)
+	{
+		Properties mailProp = new Properties();
+		mailProp.put("mail.smtp.host", relay.getHost());
+		mailProp.put("mail.smtp.port", relay.getPort());
+		mailProp.put("mail.smtp.localhost", hostname);
+		
+		mailProp.put("mail.transport.protocol", "smtp");
+		mailProp.put("mail.smtp.connectiontimeout","5000");
+		mailProp.put("mail.smtp.timeout","5000");
+		
+		mailProp.put("mail.smtp.auth", "true");
+		mailProp.put("mail.smtp.starttls.enable", "true");
+		mailProp.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
+		mailProp.put("mail.smtp.socketFactory.port", relay.getPort());
+//		mailProp.put("mail.smtp.socketFactory.fallback", "false");
+		return mailProp;
 	}
 		
 	//-----------------------------------------------
@@ -183,7 +342,7 @@ public class Sender
 	 * @see #send(MessageContent, List) 
 	 * 
 	 */
-	public void send(MessageContent messageContent, Set<InternetAddress> emailsTo
+	public void send(final MessageContent messageContent, final Set<InternetAddress> emailsTo
 			, boolean haltOnFailure)
 	throws QwertoMailerException, Exception
 		
@@ -200,48 +359,70 @@ public class Sender
 			throw new QwertoMailerException("Recipients list is empty");
 		}
 		
-		mailProp.put("mail.mime.charset", charset);
-		
-		//create messages
-		ArrayList<Message> messages = new ArrayList<Message>();
-		logger.info("Create personal messages");
-		badEmails = new ArrayList<String>();
-		for(InternetAddress emailTo:emailsTo)
+		for(RelayState relayState:relayStates)
 		{
-			try
-			{
-				emailTo.validate();
-				Message message = new Message(session);
-				makeMessage(message, messageContent);
-				message.setRecipient(RecipientType.TO, emailTo);
-				messages.add(message);
-			} catch(AddressException ae)
-			{
-				//bad address of recipient
-				logger.error("Email " + emailTo.getAddress() + " is incorrect: "
-						+ ae.getMessage());
-				badEmails.add(emailTo.getAddress());
-			} catch (MessagingException e)
-			{
-				logger.error("Message has not been created for "+ emailTo + "("+e.getMessage()+")");
-				throw e;
-			}
+			relayState.session.getProperties().put("mail.mime.charset", charset);
 		}
 		
+		badEmails = Collections.synchronizedList(new ArrayList<String>());
+		suppressedEmails = Collections.synchronizedList(new ArrayList<String>());
+		suppressedFound = false;
+		
 		//halt on failure
-		if(haltOnFailure && !badEmails.isEmpty())
+		if(haltOnFailure)
 		{
-			throw new QwertoMailerException("Halt on failure");
+			//check all addresses before sending
+			for(InternetAddress emailTo:emailsTo)
+			{
+				try
+				{
+					emailTo.validate();
+				} catch(AddressException ae)
+				{
+					logger.error("Email " + emailTo.getAddress() + " is incorrect: "
+							+ ae.getMessage());
+					badEmail(emailTo.getAddress());
+				}
+			}
+			if(!badEmails.isEmpty())
+				throw new QwertoMailerException("Halt on failure");
 		}
 		
-		//send messages
-		logger.info("Start sending: " + messages.size() + " messages");
-		notSentMessages = new ArrayList<Message>();
-		sentMessages = new ArrayList<Message>();
-		for(Message message:messages)
+		//create messages while previous messages are sent
+		logger.info("Start sending");
+		final DeliveryQueue<Message> queue = new DeliveryQueue<Message>(queueSize);
+		sendMessages(new MessageProducer(queue)
 		{
-			sendMessage(message);
-		}
+			@Override
+			void produce() throws Exception
+			{
+				for(InternetAddress emailTo:emailsTo)
+				{
+					try
+					{
+						emailTo.validate();
+						if(isSuppressed(emailTo.getAddress()))
+							continue;
+						if(isSent(emailTo, IdempotencyStore.hashContent(null)))
+							continue;
+						Message message = new Message(session);
+						makeMessage(message, messageContent);
+						message.setRecipient(RecipientType.TO, emailTo);
+						queue.put(message);
+					} catch(AddressException ae)
+					{
+						//bad address of recipient
+						logger.error("Email " + emailTo.getAddress() + " is incorrect: "
+								+ ae.getMessage());
+						badEmail(emailTo.getAddress());
+					} catch (MessagingException e)
+					{
+						logger.error("Message has not been created for "+ emailTo + "("+e.getMessage()+")");
+						throw e;
+					}
+				}
+			}
+		});
 		logger.info("End sending");
 	}
 	
@@ -297,36 +478,68 @@ public class Sender
 			List<String[]> personParameters, boolean haltOnFailure)
 	throws QwertoMailerException, Exception
 	{
-		//create list of parameters maps
-		int listSize = personParameters.size();
-		int mapSize = personParamHeaders.length;
-		List<Map<String, String>> parametersMapList = new ArrayList<Map<String, String>>(listSize);
-		for(String[] parameters:personParameters)
-		{
-			Map<String, String> parametersMap = new HashMap<String,String>(mapSize);
-			for(int i=0; i<personParamHeaders.length; i++)
-			{
-				String parameterValue = null;
-				if(i < parameters.length)
-					parameterValue = parameters[i];
-				String header = personParamHeaders[i];
-				if(parametersMap.containsKey(header))
-	    		{
-					int index = 0;
-					do
+		send(messageContent, personParamHeaders, (Iterable<String[]>) personParameters
+				, haltOnFailure);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send messages. One array of parameters - one message.
+	 * <br />Rows are converted to parameters maps while they are sent
+	 * , so rows may be read from file or database on demand.
+	 * If {@code haltOnFailure} is true, rows are iterated twice: for check and for sending.
+	 * <br />Headers must contain "email*". Headers may contain "person" and "attach*".
+	 * <br />If {@code haltOnFailure} is true and bad emails present or bad parameters present
+	 * , throw {@link QwertoMailerException}.
+	 * @param messageContent message content
+	 * @param personParamHeaders headers of parameters
+	 * @param personParameters rows of parameters
+	 * @param haltOnFailure
+	 * @throws QwertoMailerException Message is null
+	 * , From email has not been specified
+	 * , Recipients list is empty
+	 * , Halt on failure (bad emails present)
+	 * @throws Exception 
+	 * @see CsvRecipientSource
+	 * 
+	 */
+	public void send(MessageContent messageContent, final String[] personParamHeaders,
+			final Iterable<String[]> personParameters, boolean haltOnFailure)
+	throws QwertoMailerException, Exception
+	{
+		if(personParameters == null || (personParameters instanceof Collection
+				&& ((Collection<?>) personParameters).isEmpty()))
+		{
+			throw new QwertoMailerException("Recipients list is empty");
+		}
+		
+		//columns are resolved once, rows are wrapped on demand
+		final RowSchema schema = new RowSchema(personParamHeaders);
+		Iterable<Map<String, String>> parametersMaps = new Iterable<Map<String, String>>()
+		{
+			public Iterator<Map<String, String>> iterator()
+			{
+				final Iterator<String[]> rows = personParameters.iterator();
+				return new Iterator<Map<String, String>>()
+				{
+					public boolean hasNext()
+					{
+						return rows.hasNext();
+					}
+					
+					public Map<String, String> next()
+					{
+						return schema.createRow(rows.next());
+					}
+					
+					public void remove()
 					{
-						index++;
+						throw new UnsupportedOperationException();
 					}
-					while(parametersMap.containsKey(header + "_" + index));
-					header = header + "_" + index;
-			    }
-				parametersMap.put(header, parameterValue);
+				};
 			}
-			parametersMapList.add(parametersMap);
-		}
-		
-		//invoke #send(MessageContent, List)
-		send(messageContent, parametersMapList, haltOnFailure);
+		};
+		sendParameters(messageContent, parametersMaps, haltOnFailure);
 	}
 	
 	//--------------------------------------------
@@ -377,8 +590,93 @@ public class Sender
 	 * @see #send(MessageContent, List) 
 	 * 
 	 */
-	public void send(MessageContent messageContent, List<Map<String, String>> personParameters
-			, boolean haltOnFailure)
+	public void send(MessageContent messageContent
+			, List<Map<String, String>> personParameters, boolean haltOnFailure)
+	throws QwertoMailerException, Exception
+	{
+		if(personParameters == null || personParameters.isEmpty())
+		{
+			throw new QwertoMailerException("Recipients list is empty");
+		}
+		sendParameters(messageContent, personParameters, haltOnFailure);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send messages. One parameters map - one message.
+	 * <br />Maps are taken while messages are sent. Builder waits if queue of built messages
+	 * is full, so only part of parameters is in memory.
+	 * Results are passed to {@link SendListener} if it is set.
+	 * <br />If {@code haltOnFailure} is true, parameters are iterated twice
+	 * : for check and for sending.
+	 * @param messageContent message content
+	 * @param personParameters parameters maps
+	 * @param haltOnFailure
+	 * @throws QwertoMailerException Message is null
+	 * , From email has not been specified
+	 * , Recipients list is empty
+	 * , Halt on failure (bad emails present)
+	 * @throws Exception 
+	 * @see #setQueueSize(int)
+	 * @see #setSendListener(SendListener)
+	 * 
+	 */
+	public void send(MessageContent messageContent
+			, Iterable<Map<String, String>> personParameters, boolean haltOnFailure)
+	throws QwertoMailerException, Exception
+	{
+		if(personParameters == null || (personParameters instanceof Collection
+				&& ((Collection<?>) personParameters).isEmpty()))
+		{
+			throw new QwertoMailerException("Recipients list is empty");
+		}
+		sendParameters(messageContent, personParameters, haltOnFailure);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send messages. One parameters map - one message.
+	 * <br />Maps are taken from iterator (database cursor, queue, {@code Stream.iterator()})
+	 * while messages are sent. Iterator is read once
+	 * , so parameters can't be checked before sending.
+	 * Results are passed to {@link SendListener} if it is set.
+	 * @param messageContent message content
+	 * @param personParameters parameters maps
+	 * @throws QwertoMailerException Message is null
+	 * , From email has not been specified
+	 * , Recipients list is empty
+	 * @throws Exception 
+	 * @see #send(MessageContent, Iterable, boolean)
+	 * 
+	 */
+	public void send(MessageContent messageContent
+			, final Iterator<Map<String, String>> personParameters)
+	throws QwertoMailerException, Exception
+	{
+		if(personParameters == null)
+			throw new QwertoMailerException("Recipients list is empty");
+		sendParameters(messageContent, new Iterable<Map<String, String>>()
+		{
+			public Iterator<Map<String, String>> iterator()
+			{
+				return personParameters;
+			}
+		}, false);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Build messages from parameters maps and send them
+	 * @param messageContent message content
+	 * @param personParameters parameters maps
+	 * @param haltOnFailure check all parameters before sending
+	 * @throws QwertoMailerException Message is null
+	 * , From email has not been specified
+	 * , Halt on failure
+	 * @throws Exception
+	 */
+	private void sendParameters(final MessageContent messageContent
+			, final Iterable<Map<String, String>> personParameters, boolean haltOnFailure)
 	throws QwertoMailerException, Exception
 	{
 		if(messageContent == null)
@@ -387,188 +685,1670 @@ public class Sender
 		Address from = messageContent.getAddressFrom();
 		if(from == null)
 			throw new QwertoMailerException("From email has not been specified");
-	
-		if(personParameters == null || personParameters.isEmpty())
+		
+		for(RelayState relayState:relayStates)
 		{
-			throw new QwertoMailerException("Recipients list is empty");
+			relayState.session.getProperties().put("mail.mime.charset", charset);
 		}
 		
-		mailProp.put("mail.mime.charset", charset);
-		Velocity.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
-	      "org.apache.velocity.slf4j.Slf4jLogChute");
-		Velocity.setProperty("runtime.log.logsystem.slf4j.name",
-			"com.qwertovsky.mailer");
-		Velocity.init();
-		
-		badEmails = new ArrayList<String>();
-		badParametersMap = new ArrayList<Map<String, String>>(); 
-		
-		//create messages
-		ArrayList<Message> messages = new ArrayList<Message>();
-		
-		logger.info("Create personal messages");
+		badEmails = Collections.synchronizedList(new ArrayList<String>());
+		suppressedEmails = Collections.synchronizedList(new ArrayList<String>());
+		suppressedFound = false;
+		badParametersMap = Collections.synchronizedList(new ArrayList<Map<String, String>>());
 		
-		for(Map<String, String> parameters:personParameters)
+		//halt on failure
+		if(haltOnFailure)
 		{
-			//get emails
-			Set<InternetAddress> recipients = getRecipientsList(parameters);
-			//error if list is empty
-			if(recipients == null)
+			//check all parameters before sending, messages are not kept
+			int row = 0;
+			for(Map<String, String> parameters:personParameters)
 			{
-				StringBuilder sb = new StringBuilder();
-				Set<String> keys = parameters.keySet();
-				for(String key:keys)
-				{
-					if(sb.length() > 0)
-						sb.append(", ");
-					sb.append("\"" + parameters.get(key) + "\"");
-				}
-				logger.error("Recipients list is empty: " + sb.toString());
-				continue;
+				if(!isJournaled(row++))
+					buildMessage(messageContent, parameters);
 			}
-			
-			//get attachments
-			List<File> attachments = getAttachments(parameters);
-			
-			//create individual message content
-			MessageContent content = new MessageContent(messageContent);
-			if(attachments != null && !attachments.isEmpty())
-				content.addAttachments(attachments);
-			try
-			{
-				content.setParameters(parameters);
-			} catch (QwertoMailerException qme)
+			if(!badEmails.isEmpty() || !badParametersMap.isEmpty())
+				throw new QwertoMailerException("Halt on failure");
+			//same emails are suppressed while sending, list is complete
+			suppressedFound = true;
+		}
+		
+		logger.info("Start sending");
+		//repeated recipients of other rows are skipped
+		recipientSet = deduplicate ? new AddressSet(deduplicateExact) : null;
+		pendingRecipients = deduplicate ? new HashSet<String>() : null;
+		try
+		{
+			if(executionMode == ExecutionMode.VIRTUAL_THREADS && nioThreads == 0)
 			{
-				String errorMessage = "Message has not been created (" + qme.getMessage() + ") for: ";
-				StringBuilder sb = new StringBuilder();
-				Set<String> headers = parameters.keySet();
-				for(String header:headers)
-				{
-					if(sb.length() > 0)
-						sb.append(", ");
-					sb.append("\"" + parameters.get(header) + "\"");
-				}
-				logger.error(errorMessage + sb.toString());
-				badParametersMap.add(parameters);
-				continue;
+				//build and send each message in own thread
+				buildAndSendVirtual(messageContent, personParameters);
 			}
-			
-			
-			Message message = new Message(session);
-			try
-			{
-				makeMessage(message, content);
-				message.setRecipients(RecipientType.TO, recipients.toArray(new InternetAddress[0]));
-			} catch (MessagingException e)
+			else
 			{
-				logger.error("Message has not been created for "
-						+ recipients.toArray() + "("+e.getMessage()+")");
-				throw e;
+				//create messages while previous messages are sent
+				final DeliveryQueue<Message> queue = new DeliveryQueue<Message>(queueSize);
+				sendMessages(new MessageProducer(queue)
+				{
+					@Override
+					void produce() throws Exception
+					{
+						if(buildThreads > 1)
+						{
+							buildParallel(messageContent, personParameters, queue);
+							return;
+						}
+						int row = 0;
+						for(Map<String, String> parameters:personParameters)
+						{
+							if(isJournaled(row))
+							{
+								row++;
+								continue;
+							}
+							Message message = buildMessage(messageContent, parameters);
+							if(message != null)
+							{
+								message.setRow(row);
+								queue.put(message);
+							}
+							else
+								journal(row, SendJournal.BAD);
+							row++;
+						}
+					}
+				});
 			}
-			message.setParameters(parameters);
-			messages.add(message);
-		}
-		
-		//halt on failure
-		if(haltOnFailure && (!badEmails.isEmpty() || !badParametersMap.isEmpty()))
-			throw new QwertoMailerException("Halt on failure");
-		
-		//send messages
-		logger.info("Start sending");
-		notSentMessages = new ArrayList<Message>();
-		sentMessages = new ArrayList<Message>();
-		for(Message message:messages)
+		} finally
 		{
-			sendMessage(message);
+			closeRecipientSet();
 		}
 		logger.info("End sending");
-		
 	}
 	
 	//--------------------------------------------
 	/**
-	 * Send MimeMessage
-	 * @param message MimeMessage
+	 * Create message for one array of parameters.
+	 * <br />Bad parameters are added to list of bad parameters.
+	 * @param messageContent message content
+	 * @param parameters parameters of recipient
+	 * @return message or null if recipients list is empty or parameters are bad
+	 * @throws MessagingException error create message
+	 * @throws Exception
 	 */
-	protected void sendMessage(Message message)
+	private Message buildMessage(MessageContent messageContent, Map<String, String> parameters)
+		throws MessagingException, Exception
 	{
+		Set<InternetAddress> recipients = selectRecipients(parameters);
+		if(recipients == null)
+			return null;
+		Message message = null;
 		try
 		{
-			//update message-id
-			message.saveChanges();
-			
-			//send message
-			Transport.send(message);
-			
-			if(traceMessages || logger.isTraceEnabled())
-			{
-				//save message to file messageId.eml and write log
-				String messageId = null;
-				try
-				{
-					messageId = message.getMessageID();
-					messageId = messageId.substring(1, messageId.length()-1);
-					File dir = new File("messages");
-					if(!dir.exists())
-						dir.mkdir();
-					File file = new File("messages/" + messageId + ".eml");
-					message.writeTo(new FileOutputStream(file));
-				} catch (Exception e)
-				{
-					logger.warn("Error save message: " + messageId
-							+ "(" + e.getMessage() + ")");
-				} 
-				
-				//log about send message
-				//append recipients to log message
-				StringBuilder sb = new StringBuilder();
-				Address[] recipients = null;
-				try
-				{
-					recipients = message.getAllRecipients();
-					int i=0;
-					for(; i < 3 && i < recipients.length; i++)
-					{
-						if(sb.length() > 0)
-							sb.append(", ");
-						sb.append(((InternetAddress)recipients[i]).getAddress());
-					}
-					if(i < recipients.length)
-						sb.append("...");
-				} catch (Exception e1)
-				{
-					sb.append("error get recipients");
-				}
-				logger.trace("Message " + messageId +" has been send to: " + sb.toString());
-			}
-			
-			sentMessages.add(message);
-		} catch (Exception me)
+			message = buildMessage(messageContent, parameters, recipients);
+		} finally
+		{
+			if(message == null)
+				releaseRecipients(recipients, null);
+		}
+		return message;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get recipients of parameters that must get message.
+	 * <br />Bad emails are added to list of bad emails. Suppressed recipients
+	 * , recipients that have got message and recipients of previous rows are skipped.
+	 * <br />Selected recipients are claimed until message is sent or is not built.
+	 * @param parameters parameters of recipient
+	 * @return recipients or null if there are no recipients
+	 * @throws IOException error read spill file of repeated recipients
+	 */
+	private Set<InternetAddress> selectRecipients(Map<String, String> parameters)
+		throws IOException
+	{
+		//get emails
+		Set<InternetAddress> recipients = getRecipientsList(parameters);
+		//error if list is empty
+		if(recipients == null)
 		{
-			//log about not send message
-			//append recipients to log message
 			StringBuilder sb = new StringBuilder();
-			Address[] recipients = null;
-			try
+			Set<String> keys = parameters.keySet();
+			for(String key:keys)
 			{
-				recipients = message.getAllRecipients();
-				int i=0;
-				for(; i < 3 && i < recipients.length; i++)
-				{
-					if(sb.length() > 0)
-						sb.append(", ");
-					sb.append(((InternetAddress)recipients[i]).getAddress());
-				}
-				if(i < recipients.length)
-					sb.append("...");
-			} catch (Exception e1)
-			{
-				sb.append("error get recipients");
+				if(sb.length() > 0)
+					sb.append(", ");
+				sb.append("\"" + parameters.get(key) + "\"");
 			}
-			notSentMessages.add(message);			
-			logger.error("Error ("+ me.getMessage() +") send message to: " + sb.toString());
+			logger.error("Recipients list is empty: " + sb.toString());
+			return null;
 		}
 		
+		//skip unsubscribed and bounced recipients
+		if(suppressionList != null)
+		{
+			Iterator<InternetAddress> iterator = recipients.iterator();
+			while(iterator.hasNext())
+			{
+				if(isSuppressed(iterator.next().getAddress()))
+					iterator.remove();
+			}
+			if(recipients.isEmpty())
+				return null;
+		}
+		
+		//skip recipients that have got this message
+		if(idempotencyStore != null)
+		{
+			String contentHash = IdempotencyStore.hashContent(parameters);
+			Iterator<InternetAddress> iterator = recipients.iterator();
+			while(iterator.hasNext())
+			{
+				if(isSent(iterator.next(), contentHash))
+					iterator.remove();
+			}
+			if(recipients.isEmpty())
+				return null;
+		}
+		
+		//skip recipients of previous rows
+		if(recipientSet != null)
+		{
+			Iterator<InternetAddress> iterator = recipients.iterator();
+			while(iterator.hasNext())
+			{
+				String email = iterator.next().getAddress();
+				if(!claimRecipient(email))
+				{
+					logger.info("Email " + email + " is repeated. Skip");
+					iterator.remove();
+				}
+			}
+			if(recipients.isEmpty())
+				return null;
+		}
+		return recipients;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Create message for selected recipients.
+	 * <br />Bad parameters are added to list of bad parameters.
+	 * @param messageContent message content
+	 * @param parameters parameters of recipient
+	 * @param recipients recipients of message
+	 * @return message or null if parameters are bad
+	 * @throws MessagingException error create message
+	 * @throws Exception
+	 */
+	private Message buildMessage(MessageContent messageContent, Map<String, String> parameters
+			, Set<InternetAddress> recipients)
+		throws MessagingException, Exception
+	{
+		//get attachments
+		List<File> attachments = getAttachments(parameters);
+		
+		//create individual message content
+		MessageContent content;
+		try
+		{
+			content = createContent(messageContent, parameters, attachments);
+		} catch (QwertoMailerException qme)
+		{
+			String errorMessage = "Message has not been created (" + qme.getMessage() + ") for: ";
+			StringBuilder sb = new StringBuilder();
+			Set<String> headers = parameters.keySet();
+			for(String header:headers)
+			{
+				if(sb.length() > 0)
+					sb.append(", ");
+				sb.append("\"" + parameters.get(header) + "\"");
+			}
+			logger.error(errorMessage + sb.toString());
+			badParameters(parameters);
+			return null;
+		}
+		
+		
+		Message message = new Message(session);
+		try
+		{
+			makeMessage(message, content);
+			message.setRecipients(RecipientType.TO, recipients.toArray(new InternetAddress[0]));
+		} catch (MessagingException e)
+		{
+			logger.error("Message has not been created for "
+					+ recipients.toArray() + "("+e.getMessage()+")");
+			throw e;
+		}
+		message.setParameters(parameters);
+		return message;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Build messages in fork/join pool and put them to queue in order of rows.
+	 * <br />Rows are taken by batches. Recipients of batch are selected in current thread
+	 * , so bad, suppressed and repeated emails are found in order of rows.
+	 * Messages of batch are built by workers, bad parameters of row are kept
+	 * with row and are added to list of bad parameters in order of rows.
+	 * @param messageContent message content
+	 * @param personParameters parameters maps
+	 * @param queue queue of built messages
+	 * @throws Exception error create message
+	 */
+	private void buildParallel(MessageContent messageContent
+			, Iterable<Map<String, String>> personParameters, DeliveryQueue<Message> queue)
+		throws Exception
+	{
+		ForkJoinPool pool = new ForkJoinPool(buildThreads);
+		ThreadLocal<MessageContent> workerContent = new ThreadLocal<MessageContent>();
+		int batchSize = Math.max(buildThreads, Math.min(queueSize, buildThreads * 16));
+		try
+		{
+			Iterator<Map<String, String>> iterator = personParameters.iterator();
+			int row = 0;
+			while(iterator.hasNext())
+			{
+				List<BuildRow> batch = new ArrayList<BuildRow>(batchSize);
+				while(batch.size() < batchSize && iterator.hasNext())
+				{
+					Map<String, String> parameters = iterator.next();
+					int messageRow = row++;
+					if(isJournaled(messageRow))
+						continue;
+					Set<InternetAddress> recipients = selectRecipients(parameters);
+					if(recipients == null)
+						journal(messageRow, SendJournal.BAD);
+					else
+						batch.add(new BuildRow(messageRow, parameters, recipients));
+				}
+				pool.invoke(new BuildTask(messageContent, workerContent, batch, 0, batch.size()));
+				
+				//results in order of rows
+				for(BuildRow buildRow:batch)
+				{
+					for(Map<String, String> parameters:buildRow.badParameters)
+					{
+						badParameters(parameters);
+					}
+					if(buildRow.error != null)
+						throw buildRow.error;
+					if(buildRow.message != null)
+					{
+						buildRow.message.setRow(buildRow.row);
+						queue.put(buildRow.message);
+					}
+					else
+					{
+						releaseRecipients(buildRow.recipients, null);
+						journal(buildRow.row, SendJournal.BAD);
+					}
+				}
+			}
+		} finally
+		{
+			pool.shutdown();
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Row of batch for parallel build and its result
+	 */
+	private static class BuildRow
+	{
+		final int row;
+		final Map<String, String> parameters;
+		final Set<InternetAddress> recipients;
+		final List<Map<String, String>> badParameters = new ArrayList<Map<String, String>>(1);
+		Message message;
+		Exception error;
+		
+		//--------------------------------------------
+		BuildRow(int row, Map<String, String> parameters, Set<InternetAddress> recipients)
+		{
+			this.row = row;
+			this.parameters = parameters;
+			this.recipients = recipients;
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Build messages of rows range. Range is split while it is large.
+	 * <br />Each worker builds messages from own copy of message content
+	 * , so workers don't wait each other.
+	 */
+	private class BuildTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private static final int THRESHOLD = 4;
+		private MessageContent messageContent;
+		private ThreadLocal<MessageContent> workerContent;
+		private List<BuildRow> rows;
+		private int start;
+		private int end;
+		
+		//--------------------------------------------
+		BuildTask(MessageContent messageContent, ThreadLocal<MessageContent> workerContent
+				, List<BuildRow> rows, int start, int end)
+		{
+			this.messageContent = messageContent;
+			this.workerContent = workerContent;
+			this.rows = rows;
+			this.start = start;
+			this.end = end;
+		}
+		
+		//--------------------------------------------
+		@Override
+		protected void compute()
+		{
+			if(end - start > THRESHOLD)
+			{
+				int middle = (start + end) >>> 1;
+				invokeAll(new BuildTask(messageContent, workerContent, rows, start, middle)
+					, new BuildTask(messageContent, workerContent, rows, middle, end));
+				return;
+			}
+			for(int i = start; i < end; i++)
+			{
+				BuildRow row = rows.get(i);
+				//bad parameters of row are kept by worker
+				rowBadParameters.set(row.badParameters);
+				try
+				{
+					row.message = buildMessage(getWorkerContent(), row.parameters, row.recipients);
+				} catch (Exception e)
+				{
+					row.error = e;
+				} finally
+				{
+					rowBadParameters.remove();
+				}
+			}
+		}
+		
+		//--------------------------------------------
+		/**
+		 * Multipart content is copied for worker once
+		 */
+		private MessageContent getWorkerContent() throws Exception
+		{
+			if(!(messageContent.getContent() instanceof Multipart))
+				return messageContent;
+			MessageContent content = workerContent.get();
+			if(content == null)
+			{
+				content = messageContent.copyParts();
+				workerContent.set(content);
+			}
+			return content;
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Copy message content and put parameters to it
+	 * @param messageContent common message content
+	 * @param parameters parameters of recipient
+	 * @param attachments personal attachments or null
+	 * @return personal message content
+	 * @throws QwertoMailerException bad parameters
+	 * @throws Exception
+	 */
+	private MessageContent createContent(MessageContent messageContent
+			, Map<String, String> parameters, List<File> attachments)
+		throws QwertoMailerException, Exception
+	{
+		if(messageContent.getContent() instanceof Multipart)
+		{
+			//copy shares nested parts with common content
+			//, parallel build uses own content for each worker
+			synchronized(messageContent)
+			{
+				return createContentUnsafe(messageContent, parameters, attachments);
+			}
+		}
+		return createContentUnsafe(messageContent, parameters, attachments);
+	}
+	
+	//--------------------------------------------
+	private MessageContent createContentUnsafe(MessageContent messageContent
+			, Map<String, String> parameters, List<File> attachments)
+		throws QwertoMailerException, Exception
+	{
+		MessageContent content = new MessageContent(messageContent);
+		//common content is not changed, personal copy uses templates of sender
+		content.setTemplateCache(getTemplateCache());
+		if(attachments != null && !attachments.isEmpty())
+			content.addAttachments(attachments);
+		content.setParameters(parameters);
+		return content;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send MimeMessage
+	 * <br />Recipients rejected by server are added to bad emails.
+	 * Message is not sent if all its recipients are rejected.
+	 * <br />Waits if rate limits are exceeded.
+	 * @param message MimeMessage
+	 */
+	protected void sendMessage(Message message)
+	{
+		long delay;
+		while((delay = trySendMessage(message)) > 0)
+		{
+			try
+			{
+				TimeUnit.NANOSECONDS.sleep(delay);
+			} catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				messageNotSent(message, System.currentTimeMillis(), ie);
+				return;
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send MimeMessage if rate limits allow it
+	 * @param message MimeMessage
+	 * @return 0 if message is sent or not sent
+	 * , nanoseconds to wait before next try if rate limits are exceeded
+	 */
+	private long trySendMessage(Message message)
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			//update message-id
+			message.saveChanges();
+			
+			//send message
+			if(concurrencyLimiter != null)
+				deliverAdaptive(message, concurrencyLimiter);
+			else
+				deliver(message);
+		} catch (ThrottledException te)
+		{
+			return te.getDelay();
+		} catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			messageNotSent(message, start, ie);
+			return 0;
+		} catch (SendFailedException sfe)
+		{
+			messageRejected(message, start, sfe);
+			return 0;
+		} catch (Exception me)
+		{
+			messageNotSent(message, start, me);
+			return 0;
+		}
+		messageSent(message, start, null);
+		return 0;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Add recipients rejected by server to bad emails.
+	 * Message is sent if some recipients are accepted.
+	 * @param message message
+	 * @param start time of sending
+	 * @param sfe reply of server
+	 */
+	private void messageRejected(Message message, long start, SendFailedException sfe)
+	{
+		Address[] invalidAddresses = sfe.getInvalidAddresses();
+		if(invalidAddresses != null)
+		{
+			for(Address address:invalidAddresses)
+			{
+				logger.warn("Email " + ((InternetAddress)address).getAddress()
+						+ " is rejected by server");
+				badEmail(((InternetAddress)address).getAddress());
+			}
+		}
+		Address[] validSentAddresses = sfe.getValidSentAddresses();
+		if(validSentAddresses == null || validSentAddresses.length == 0)
+			messageNotSent(message, start, sfe);
+		else
+			messageSent(message, start, sfe);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send message when count of sending messages is less than adaptive limit.
+	 * Result of send changes limit.
+	 * @param message message with updated headers
+	 * @param limiter adaptive limit
+	 * @throws MessagingException error send message
+	 * @throws InterruptedException interrupted while waiting
+	 */
+	private void deliverAdaptive(Message message, ConcurrencyLimiter limiter)
+		throws MessagingException, InterruptedException
+	{
+		long start = limiter.acquire();
+		MessagingException error = null;
+		try
+		{
+			deliver(message);
+		} catch (MessagingException me)
+		{
+			error = me;
+			throw me;
+		} finally
+		{
+			limiter.release(start, ConcurrencyLimiter.getOutcome(error));
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send message by one of SMTP servers.
+	 * <br />If server is not available, message is sent by another server.
+	 * Server is skipped if its rate limits or rate limits of recipient domains
+	 * are exceeded.
+	 * @param message message with updated headers
+	 * @throws ThrottledException rate limits of all available servers are exceeded
+	 * @throws MessagingException error send message
+	 */
+	private void deliver(Message message) throws MessagingException
+	{
+		List<RelayState> failedRelays = null;
+		MessagingException relayException = null;
+		long throttleDelay = 0;
+		while(true)
+		{
+			RelayState relayState = relayBalancer.next(failedRelays);
+			if(relayState == null)
+			{
+				if(throttleDelay > 0)
+					throw new ThrottledException(throttleDelay);
+				if(relayException != null)
+					throw relayException;
+				throw new MessagingException("No available SMTP server");
+			}
+			long delay = rateLimiter.acquire(relayState, message);
+			if(delay > 0)
+			{
+				if(throttleDelay == 0 || delay < throttleDelay)
+					throttleDelay = delay;
+				if(failedRelays == null)
+					failedRelays = new ArrayList<RelayState>();
+				failedRelays.add(relayState);
+				continue;
+			}
+			try
+			{
+				deliver(message, relayState);
+				relayBalancer.success(relayState);
+				return;
+			} catch (SendFailedException sfe)
+			{
+				//server is available but rejects message
+				relayBalancer.success(relayState);
+				throw sfe;
+			} catch (MessagingException me)
+			{
+				relayBalancer.failure(relayState);
+				relayException = me;
+				if(failedRelays == null)
+					failedRelays = new ArrayList<RelayState>();
+				failedRelays.add(relayState);
+				if(relayStates.size() > 1)
+					logger.warn("Message is not sent by " + relayState
+						+ " (" + me.getMessage() + ")");
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send message by connection from pool of SMTP server or by new connection
+	 * @param message message with updated headers
+	 * @param relayState SMTP server
+	 * @throws MessagingException error send message
+	 */
+	private void deliver(Message message, RelayState relayState) throws MessagingException
+	{
+		SmtpConnectionPool connectionPool = relayState.connectionPool;
+		if(connectionPool == null)
+		{
+			//connection of server check is used once
+			Transport transport = relayState.takeProbeTransport();
+			if(transport == null || !transport.isConnected())
+			{
+				transport = relayState.session.getTransport("smtp");
+				transport.connect();
+			}
+			try
+			{
+				transport.sendMessage(message, message.getAllRecipients());
+				message.setServerResponse(SmtpConnection.getLastServerResponse(transport));
+			} finally
+			{
+				transport.close();
+			}
+			return;
+		}
+		SmtpConnection connection = connectionPool.borrow();
+		try
+		{
+			connection.send(message);
+		} catch (MessagingException me)
+		{
+			if(connection.isConnected())
+				connectionPool.release(connection);
+			else
+				connectionPool.invalidate(connection);
+			connection = null;
+			throw me;
+		} finally
+		{
+			if(connection != null)
+				connectionPool.release(connection);
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Add message to sent messages if messages are kept and pass result to listener.
+	 * Save message to file if trace is on
+	 * @param message sent message
+	 * @param start time of sending
+	 * @param sfe rejected recipients or null
+	 */
+	private void messageSent(Message message, long start, SendFailedException sfe)
+	{
+		if(traceMessages || logger.isTraceEnabled())
+		{
+			//save message to file messageId.eml and write log
+			String messageId = null;
+			try
+			{
+				messageId = message.getMessageID();
+				messageId = messageId.substring(1, messageId.length()-1);
+				File dir = new File("messages");
+				if(!dir.exists())
+					dir.mkdir();
+				File file = new File("messages/" + messageId + ".eml");
+				message.writeTo(new FileOutputStream(file));
+			} catch (Exception e)
+			{
+				logger.warn("Error save message: " + messageId
+						+ "(" + e.getMessage() + ")");
+			} 
+			
+			//log about send message
+			logger.trace("Message " + messageId +" has been send to: " + getRecipientsLine(message));
+		}
+		
+		if(idempotencyStore != null)
+			rememberSent(message, sfe);
+		if(recipientSet != null)
+		{
+			List<String> sent;
+			if(sfe != null)
+				sent = getAddresses(sfe.getValidSentAddresses());
+			else
+				sent = getRecipients(message);
+			releaseEmails(getRecipients(message), sent);
+		}
+		if(isRetainMessages())
+			sentMessages.add(message);
+		if(sendListener != null)
+		{
+			List<String> recipients;
+			if(sfe != null)
+				recipients = getAddresses(sfe.getValidSentAddresses());
+			else
+				recipients = getRecipients(message);
+			try
+			{
+				sendListener.onSent(createResult(message, recipients, start, sfe));
+			} catch (RuntimeException re)
+			{
+				logger.error("Error of send listener: " + re.getMessage(), re);
+			}
+		}
+		journal(message.getRow(), SendJournal.SENT);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Add message to not sent messages if messages are kept
+	 * , pass result to listener and write log
+	 * @param message not sent message
+	 * @param start time of sending
+	 * @param e reason
+	 */
+	private void messageNotSent(Message message, long start, Exception e)
+	{
+		if(recipientSet != null)
+			releaseEmails(getRecipients(message), null);
+		if(isRetainMessages())
+			notSentMessages.add(message);
+		if(sendListener != null)
+		{
+			try
+			{
+				sendListener.onFailed(createResult(message, getRecipients(message), start, e));
+			} catch (RuntimeException re)
+			{
+				logger.error("Error of send listener: " + re.getMessage(), re);
+			}
+		}
+		logger.error("Error ("+ e.getMessage() +") send message to: " + getRecipientsLine(message));
+		journal(message.getRow(), SendJournal.FAILED);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Create result of message for listener
+	 * @param message message
+	 * @param recipients recipients of result
+	 * @param start time of sending
+	 * @param e error or null
+	 * @return result without message content
+	 */
+	private SendResult createResult(Message message, List<String> recipients, long start
+			, Exception e)
+	{
+		String messageId = null;
+		try
+		{
+			messageId = message.getMessageID();
+		} catch (MessagingException me)
+		{
+			logger.debug("Error get Message-ID: " + me.getMessage());
+		}
+		String response = message.getServerResponse();
+		if(response == null && e != null)
+			response = e.getMessage();
+		return new SendResult(recipients, messageId, response, start
+				, System.currentTimeMillis() - start, message.getParameters(), e);
+	}
+	
+	//--------------------------------------------
+	private List<String> getRecipients(Message message)
+	{
+		try
+		{
+			return getAddresses(message.getAllRecipients());
+		} catch (MessagingException me)
+		{
+			return new ArrayList<String>();
+		}
+	}
+	
+	//--------------------------------------------
+	private List<String> getAddresses(Address[] addresses)
+	{
+		List<String> emails = new ArrayList<String>();
+		if(addresses == null)
+			return emails;
+		for(Address address:addresses)
+		{
+			emails.add(((InternetAddress)address).getAddress());
+		}
+		return emails;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Add email to bad emails and pass it to listener
+	 * @param email incorrect or rejected address
+	 */
+	private void badEmail(String email)
+	{
+		if(badEmails != null)
+			badEmails.add(email);
+		if(sendListener != null)
+		{
+			try
+			{
+				sendListener.onBadAddress(email);
+			} catch (RuntimeException re)
+			{
+				logger.error("Error of send listener: " + re.getMessage(), re);
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Add parameters to bad parameters and pass them to listener
+	 * @param parameters parameters of recipient
+	 */
+	private void badParameters(Map<String, String> parameters)
+	{
+		List<Map<String, String>> badParametersOfRow = rowBadParameters.get();
+		if(badParametersOfRow != null)
+		{
+			//parallel build, parameters are added in order of rows later
+			badParametersOfRow.add(parameters);
+			return;
+		}
+		if(badParametersMap != null)
+			badParametersMap.add(parameters);
+		if(sendListener != null)
+		{
+			try
+			{
+				sendListener.onBadParameters(parameters);
+			} catch (RuntimeException re)
+			{
+				logger.error("Error of send listener: " + re.getMessage(), re);
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Check that row is sent or bad in journal
+	 * @param row index of parameters row
+	 * @return true - row must be skipped
+	 * @throws IOException error write journal, sending is stopped
+	 */
+	private boolean isJournaled(int row) throws IOException
+	{
+		if(journal == null)
+			return false;
+		journal.checkError();
+		return journal.isDone(row);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Check that address is in suppression list and add it to suppressed emails
+	 * <br />Suppressed emails that have been found by check of halt on failure
+	 * are not added again.
+	 * @param email address of recipient
+	 * @return true - recipient must be skipped
+	 */
+	private boolean isSuppressed(String email)
+	{
+		if(suppressionList == null || !suppressionList.contains(email))
+			return false;
+		if(suppressedFound)
+			return true;
+		logger.info("Email " + email + " is suppressed. Skip");
+		if(suppressedEmails != null)
+			suppressedEmails.add(email);
+		return true;
+	}
+	
+	//--------------------------------------------
+	private void closeRecipientSet()
+	{
+		if(recipientSet == null)
+			return;
+		try
+		{
+			recipientSet.close();
+		} catch (IOException ioe)
+		{
+			logger.warn("Error delete spill file of recipients (" + ioe.getMessage() + ")");
+		}
+		recipientSet = null;
+		pendingRecipients = null;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Claim recipient for message of current row. Recipient is repeated
+	 * if message has been sent to it or message to it is being sent.
+	 * @param email address of recipient
+	 * @return false if recipient is repeated
+	 * @throws IOException error read spill file of recipients
+	 */
+	private boolean claimRecipient(String email) throws IOException
+	{
+		String normalized = AddressSet.normalize(email);
+		synchronized(pendingRecipients)
+		{
+			if(recipientSet.contains(normalized))
+				return false;
+			return pendingRecipients.add(normalized);
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Release recipients of message that is not built
+	 */
+	private void releaseRecipients(Set<InternetAddress> recipients, List<String> sent)
+	{
+		if(recipientSet != null)
+			releaseEmails(getAddresses(recipients.toArray(new Address[0])), sent);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Remove claims of recipients and remember recipients that have got message.
+	 * <br />Recipients that have not got message may get message of next rows.
+	 * @param recipients claimed recipients
+	 * @param sent recipients that have got message or null
+	 */
+	private void releaseEmails(List<String> recipients, List<String> sent)
+	{
+		AddressSet set = recipientSet;
+		Set<String> pending = pendingRecipients;
+		if(set == null || pending == null)
+			return;
+		synchronized(pending)
+		{
+			if(sent != null)
+			{
+				for(String email:sent)
+				{
+					try
+					{
+						set.add(email);
+					} catch (IOException ioe)
+					{
+						logger.error("Error add " + email + " to sent recipients ("
+								+ ioe.getMessage() + ")");
+					}
+				}
+			}
+			for(String email:recipients)
+			{
+				pending.remove(AddressSet.normalize(email));
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Check that message has been sent to recipient according to idempotency store
+	 * @param address recipient
+	 * @param contentHash hash of personal parameters
+	 * @return true - recipient must be skipped
+	 */
+	private boolean isSent(InternetAddress address, String contentHash)
+	{
+		if(idempotencyStore == null
+				|| !idempotencyStore.contains(address.getAddress(), templateId, contentHash))
+			return false;
+		logger.info("Email " + address.getAddress() + " has got this message already. Skip");
+		return true;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Add accepted recipients of message to idempotency store
+	 * @param message sent message
+	 * @param sfe rejected recipients or null
+	 */
+	private void rememberSent(Message message, SendFailedException sfe)
+	{
+		List<String> recipients;
+		if(sfe != null)
+			recipients = getAddresses(sfe.getValidSentAddresses());
+		else
+			recipients = getRecipients(message);
+		String contentHash = IdempotencyStore.hashContent(message.getParameters());
+		for(String recipient:recipients)
+		{
+			try
+			{
+				idempotencyStore.add(recipient, templateId, contentHash);
+			} catch (IOException ioe)
+			{
+				logger.error("Error add " + recipient + " to idempotency store ("
+						+ ioe.getMessage() + ")");
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Add outcome of row to journal if journal is set
+	 * @param row index of parameters row or -1
+	 * @param outcome outcome of row
+	 * @throws IllegalStateException error write journal
+	 */
+	private void journal(int row, char outcome)
+	{
+		if(journal != null && row >= 0)
+			journal.record(row, outcome);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * @return true - sent and not sent messages are kept
+	 */
+	private boolean isRetainMessages()
+	{
+		if(retainMessages != null)
+			return retainMessages;
+		return sendListener == null;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get first three recipients of message for log
+	 * @param message
+	 * @return comma separated recipients
+	 */
+	private String getRecipientsLine(Message message)
+	{
+		StringBuilder sb = new StringBuilder();
+		Address[] recipients = null;
+		try
+		{
+			recipients = message.getAllRecipients();
+			int i=0;
+			for(; i < 3 && i < recipients.length; i++)
+			{
+				if(sb.length() > 0)
+					sb.append(", ");
+				sb.append(((InternetAddress)recipients[i]).getAddress());
+			}
+			if(i < recipients.length)
+				sb.append("...");
+		} catch (Exception e1)
+		{
+			sb.append("error get recipients");
+		}
+		return sb.toString();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Send messages in one or several threads while producer builds next messages
+	 * <br />Results are put to lists of sent and not sent messages.
+	 * Message that exceeds rate limits is put back to queue with delay
+	 * and thread takes next message.
+	 * <br />If producer fails, messages that it has built are sent and error is thrown.
+	 * @param producer thread that builds messages and puts them to queue
+	 * @throws InterruptedException sending has been interrupted
+	 * @throws IOException error start non-blocking SMTP client
+	 * @throws Exception error create message
+	 */
+	private void sendMessages(MessageProducer producer) throws Exception
+	{
+		notSentMessages = Collections.synchronizedList(new ArrayList<Message>());
+		sentMessages = Collections.synchronizedList(new ArrayList<Message>());
+		final DeliveryQueue<Message> queue = producer.queue;
+		producer.start();
+		try
+		{
+			sendQueueAll(queue);
+		} finally
+		{
+			//producer waits for free place in queue if sending is broken
+			producer.interrupt();
+			producer.join();
+		}
+		if(producer.error != null)
+			throw producer.error;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send messages from queue by non-blocking client, by virtual threads
+	 * or by one or several platform threads
+	 * @param queue messages to send
+	 * @throws InterruptedException sending has been interrupted
+	 * @throws IOException error start non-blocking SMTP client
+	 */
+	private void sendQueueAll(final DeliveryQueue<Message> queue)
+		throws InterruptedException, IOException
+	{
+		if(nioThreads > 0)
+		{
+			sendQueueNonBlocking(queue);
+			return;
+		}
+		openConnectionPool();
+		try
+		{
+			if(executionMode == ExecutionMode.VIRTUAL_THREADS)
+			{
+				ExecutorService executor = newVirtualThreadExecutor();
+				Semaphore permits = new Semaphore(maxInFlight);
+				Message message;
+				while((message = queue.take()) != null)
+				{
+					final Message virtualMessage = message;
+					executeVirtual(executor, permits, new Runnable()
+					{
+						public void run()
+						{
+							try
+							{
+								sendMessage(virtualMessage);
+							} catch (RuntimeException re)
+							{
+								logger.error("Error send message: " + re.getMessage(), re);
+							} finally
+							{
+								queue.done();
+							}
+						}
+					});
+				}
+				awaitVirtual(executor, permits);
+				return;
+			}
+			if(threads <= 1)
+			{
+				sendQueue(queue);
+				return;
+			}
+			//workers take messages from common queue
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			for(int i = 0; i < threads; i++)
+			{
+				executor.execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							sendQueue(queue);
+						} catch (InterruptedException ie)
+						{
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			try
+			{
+				while(!executor.awaitTermination(1, TimeUnit.MINUTES))
+				{
+					logger.debug("Wait for sending, messages in queue: " + queue.size());
+				}
+			} catch (InterruptedException ie)
+			{
+				executor.shutdownNow();
+				throw ie;
+			}
+		} finally
+		{
+			closeConnectionPool();
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Thread that builds messages and puts them to bounded queue.
+	 * Queue is closed when all messages are built or error occurs.
+	 */
+	private abstract static class MessageProducer extends Thread
+	{
+		final DeliveryQueue<Message> queue;
+		volatile Exception error;
+		
+		//--------------------------------------------
+		MessageProducer(DeliveryQueue<Message> queue)
+		{
+			super("qwertomailer-builder");
+			setDaemon(true);
+			this.queue = queue;
+		}
+		
+		//--------------------------------------------
+		/**
+		 * Build messages and put them to queue
+		 * @throws Exception error create message
+		 */
+		abstract void produce() throws Exception;
+		
+		//--------------------------------------------
+		@Override
+		public void run()
+		{
+			try
+			{
+				produce();
+			} catch (InterruptedException ie)
+			{
+				//sending is broken
+			} catch (Exception e)
+			{
+				error = e;
+			} finally
+			{
+				queue.close();
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Build and send each message in own virtual thread.
+	 * <br />Error of message creation stops sending as error of producer
+	 * : next rows are not started, started messages are finished.
+	 * @param messageContent message content
+	 * @param personParameters parameters maps
+	 * @throws InterruptedException sending has been interrupted
+	 * @throws Exception first error of message creation, error write journal
+	 */
+	private void buildAndSendVirtual(final MessageContent messageContent
+			, Iterable<Map<String, String>> personParameters)
+		throws InterruptedException, Exception
+	{
+		notSentMessages = Collections.synchronizedList(new ArrayList<Message>());
+		sentMessages = Collections.synchronizedList(new ArrayList<Message>());
+		final AtomicReference<Exception> buildError = new AtomicReference<Exception>();
+		openConnectionPool();
+		try
+		{
+			ExecutorService executor = newVirtualThreadExecutor();
+			Semaphore permits = new Semaphore(maxInFlight);
+			try
+			{
+				int row = 0;
+				for(final Map<String, String> parameters:personParameters)
+				{
+					if(buildError.get() != null)
+						break;
+					final int messageRow = row++;
+					if(isJournaled(messageRow))
+						continue;
+					executeVirtual(executor, permits, new Runnable()
+					{
+						public void run()
+						{
+							Message message;
+							try
+							{
+								message = buildMessage(messageContent, parameters);
+								if(message == null)
+								{
+									journal(messageRow, SendJournal.BAD);
+									return;
+								}
+							} catch (Exception e)
+							{
+								buildError.compareAndSet(null, e);
+								return;
+							}
+							message.setRow(messageRow);
+							try
+							{
+								sendMessage(message);
+							} catch (RuntimeException re)
+							{
+								logger.error("Error send message: " + re.getMessage(), re);
+							}
+						}
+					});
+				}
+			} finally
+			{
+				//pool is not closed while messages are sent
+				awaitVirtual(executor, permits);
+			}
+			if(buildError.get() != null)
+				throw buildError.get();
+		} finally
+		{
+			closeConnectionPool();
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Run task in own virtual thread.
+	 * Wait if count of running tasks reaches max messages in progress.
+	 * @param executor virtual thread executor
+	 * @param permits free places for tasks
+	 * @param task task
+	 * @throws InterruptedException waiting has been interrupted
+	 */
+	private void executeVirtual(ExecutorService executor, final Semaphore permits
+			, final Runnable task) throws InterruptedException
+	{
+		try
+		{
+			permits.acquire();
+		} catch (InterruptedException ie)
+		{
+			executor.shutdownNow();
+			throw ie;
+		}
+		executor.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					task.run();
+				} finally
+				{
+					permits.release();
+				}
+			}
+		});
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Wait until all tasks of executor are finished
+	 * @param executor virtual thread executor
+	 * @param permits free places for tasks
+	 * @throws InterruptedException waiting has been interrupted
+	 */
+	private void awaitVirtual(ExecutorService executor, Semaphore permits)
+		throws InterruptedException
+	{
+		executor.shutdown();
+		try
+		{
+			while(!executor.awaitTermination(1, TimeUnit.MINUTES))
+			{
+				logger.debug("Wait for sending, messages in progress: "
+						+ (maxInFlight - permits.availablePermits()));
+			}
+		} catch (InterruptedException ie)
+		{
+			executor.shutdownNow();
+			throw ie;
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Create executor that starts virtual thread for each task.
+	 * Virtual threads are got by reflection, so library runs on old JVM too.
+	 * @return virtual thread executor or cached thread pool if JVM has no virtual threads
+	 */
+	private ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e)
+		{
+			logger.warn("Virtual threads are not supported by JVM. Platform threads are used");
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send messages from queue until it is finished.
+	 * <br />Error of one message is logged, message is marked as done
+	 * , so other workers don't wait it.
+	 * @param queue messages to send
+	 * @throws InterruptedException sending has been interrupted
+	 */
+	private void sendQueue(DeliveryQueue<Message> queue) throws InterruptedException
+	{
+		Message message;
+		while((message = queue.take()) != null)
+		{
+			long delay = 0;
+			try
+			{
+				delay = trySendMessage(message);
+			} catch (RuntimeException re)
+			{
+				logger.error("Error send message: " + re.getMessage(), re);
+			} finally
+			{
+				if(delay > 0)
+					queue.retry(message, delay);
+				else
+					queue.done();
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send messages from queue by non-blocking SMTP client.
+	 * Count of messages in progress is limited by count of connections.
+	 * @param queue messages to send
+	 * @throws InterruptedException sending has been interrupted
+	 * @throws IOException error start SMTP client
+	 */
+	private void sendQueueNonBlocking(DeliveryQueue<Message> queue)
+		throws InterruptedException, IOException
+	{
+		for(RelayState relayState:relayStates)
+		{
+			relayState.closeProbeTransport();
+		}
+		NioSmtpClient client = new NioSmtpClient(nioThreads, nioConnections, messagesPerConnection);
+		Semaphore permits = new Semaphore(nioConnections * relayStates.size());
+		try
+		{
+			Message message;
+			while((message = queue.take()) != null)
+			{
+				permits.acquire();
+				new AsyncDelivery(message, queue, client, permits).start();
+			}
+		} finally
+		{
+			client.close();
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Message that is sent by non-blocking SMTP client.
+	 * <br />Like {@link Sender#deliver(Message)}, message is sent by another server
+	 * if server is not available. Result is handled in thread of SMTP client.
+	 */
+	private class AsyncDelivery implements NioSmtpClient.Callback
+	{
+		private Message message;
+		private DeliveryQueue<Message> queue;
+		private NioSmtpClient client;
+		private Semaphore permits;
+		private RelayState relayState;
+		private List<RelayState> failedRelays = new ArrayList<RelayState>();
+		private MessagingException relayException;
+		private ConcurrencyLimiter limiter;
+		private long start;
+		private long startTime;
+		
+		//--------------------------------------------
+		AsyncDelivery(Message message, DeliveryQueue<Message> queue
+				, NioSmtpClient client, Semaphore permits)
+		{
+			this.message = message;
+			this.queue = queue;
+			this.client = client;
+			this.permits = permits;
+		}
+		
+		//--------------------------------------------
+		/**
+		 * Update headers and pass message to SMTP client
+		 * @throws InterruptedException interrupted while waiting adaptive limit
+		 */
+		void start() throws InterruptedException
+		{
+			startTime = System.currentTimeMillis();
+			try
+			{
+				//update message-id
+				message.saveChanges();
+			} catch (MessagingException me)
+			{
+				end(me);
+				return;
+			}
+			if(concurrencyLimiter != null)
+			{
+				limiter = concurrencyLimiter;
+				start = limiter.acquire();
+			}
+			next();
+		}
+		
+		//--------------------------------------------
+		/**
+		 * Pass message to next available SMTP server
+		 */
+		private void next()
+		{
+			List<RelayState> excludedRelays = new ArrayList<RelayState>(failedRelays);
+			long throttleDelay = 0;
+			while(true)
+			{
+				relayState = relayBalancer.next(excludedRelays);
+				if(relayState == null)
+				{
+					if(throttleDelay > 0)
+					{
+						//send later
+						if(limiter != null)
+							limiter.release(start, ConcurrencyLimiter.Outcome.IGNORED);
+						permits.release();
+						queue.retry(message, throttleDelay);
+						return;
+					}
+					if(relayException != null)
+						end(relayException);
+					else
+						end(new MessagingException("No available SMTP server"));
+					return;
+				}
+				try
+				{
+					long delay = rateLimiter.acquire(relayState, message);
+					if(delay > 0)
+					{
+						if(throttleDelay == 0 || delay < throttleDelay)
+							throttleDelay = delay;
+						excludedRelays.add(relayState);
+						continue;
+					}
+					client.send(relayState.session, message, this);
+				} catch (MessagingException me)
+				{
+					end(me);
+				}
+				return;
+			}
+		}
+		
+		//--------------------------------------------
+		public void completed(Message message)
+		{
+			relayBalancer.success(relayState);
+			end(null);
+		}
+		
+		//--------------------------------------------
+		public void failed(Message message, MessagingException me)
+		{
+			if(me instanceof SendFailedException)
+			{
+				//server is available but rejects message
+				relayBalancer.success(relayState);
+				end(me);
+				return;
+			}
+			relayBalancer.failure(relayState);
+			relayException = me;
+			failedRelays.add(relayState);
+			if(relayStates.size() > 1)
+				logger.warn("Message is not sent by " + relayState
+					+ " (" + me.getMessage() + ")");
+			next();
+		}
+		
+		//--------------------------------------------
+		/**
+		 * Save result of message
+		 * @param e error or null if message is sent
+		 */
+		private void end(Exception e)
+		{
+			try
+			{
+				if(limiter != null)
+					limiter.release(start, ConcurrencyLimiter.getOutcome(e));
+				if(e == null)
+					messageSent(message, startTime, null);
+				else if(e instanceof SendFailedException)
+					messageRejected(message, startTime, (SendFailedException) e);
+				else
+					messageNotSent(message, startTime, e);
+			} catch (RuntimeException re)
+			{
+				logger.error("Error save result of message: " + re.getMessage(), re);
+			} finally
+			{
+				permits.release();
+				queue.done();
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Create connection pool for each SMTP server if connection reuse is on
+	 * , pipelining is on or messages are sent in several threads
+	 */
+	private void openConnectionPool()
+	{
+		if(!reuseConnection && !pipelining && threads <= 1)
+			return;
+		int maxSize = poolMaxSize;
+		if(maxSize <= 0)
+			maxSize = executionMode == ExecutionMode.VIRTUAL_THREADS ? maxInFlight : threads;
+		for(RelayState relayState:relayStates)
+		{
+			relayState.connectionPool = new SmtpConnectionPool(relayState.session
+					, poolMinSize, maxSize, poolIdleTimeout, poolBorrowTimeout
+					, messagesPerConnection, pipelining);
+			//connection of server check becomes the first connection of pool
+			Transport transport = relayState.takeProbeTransport();
+			if(transport != null)
+			{
+				if(pipelining || !transport.isConnected())
+					closeQuietly(transport);
+				else
+					relayState.connectionPool.add(new SmtpConnection(relayState.session
+							, messagesPerConnection, transport));
+			}
+		}
+	}
+	
+	//--------------------------------------------
+	private void closeQuietly(Transport transport)
+	{
+		try
+		{
+			transport.close();
+		} catch (MessagingException e)
+		{
+			logger.debug("Error close SMTP connection: " + e.getMessage());
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Close connection pools of send operation
+	 */
+	private void closeConnectionPool()
+	{
+		for(RelayState relayState:relayStates)
+		{
+			if(relayState.connectionPool != null)
+			{
+				relayState.connectionPool.close();
+				relayState.connectionPool = null;
+			}
+		}
 	}
 
 	//--------------------------------------------
@@ -617,38 +2397,57 @@ public class Sender
 			return null;
 		
 		List<File> attachments = new ArrayList<File>();
+		if(parameters instanceof RowSchema.Row)
+		{
+			//columns are found by schema
+			RowSchema.Row row = (RowSchema.Row) parameters;
+			RowSchema schema = row.getSchema();
+			for(int column:schema.getAttachColumns())
+			{
+				addAttachment(attachments, schema.getNames()[column], row.getValue(column)
+						, parameters);
+			}
+			return attachments;
+		}
 		Set<String> headers = parameters.keySet();
 		for(String header:headers)
 		{
 			if(header.toLowerCase().trim().startsWith("attach"))
-			{
-				String fileString = parameters.get(header);
-				if(fileString == null)
-				{
-					logger.warn("Attachment not present in column '" + header + "':");
-					badParametersMap.add(parameters);
-					continue;
-				}
-				fileString = fileString.trim();
-				if(fileString.length() == 0)
-				{
-					logger.warn("Attachment not present in column '" + header + "':");
-					badParametersMap.add(parameters);
-					continue;
-				}
-				File file = new File(fileString);
-				if(file.exists())
-					attachments.add(file);
-				else
-				{
-					logger.error("File " + fileString + " not exists");
-					if(badParametersMap != null)
-						badParametersMap.add(parameters);
-				}
-			}
+				addAttachment(attachments, header, parameters.get(header), parameters);
 		}
 		return attachments;
 	}
+	
+	//--------------------------------------------
+	/**
+	 * Add file of attachment column to attachments
+	 * <br />Missing file is added to bad parameters.
+	 */
+	private void addAttachment(List<File> attachments, String header, String fileString
+			, Map<String, String> parameters)
+	{
+		if(fileString == null)
+		{
+			logger.warn("Attachment not present in column '" + header + "':");
+			badParameters(parameters);
+			return;
+		}
+		fileString = fileString.trim();
+		if(fileString.length() == 0)
+		{
+			logger.warn("Attachment not present in column '" + header + "':");
+			badParameters(parameters);
+			return;
+		}
+		File file = new File(fileString);
+		if(file.exists())
+			attachments.add(file);
+		else
+		{
+			logger.error("File " + fileString + " not exists");
+			badParameters(parameters);
+		}
+	}
 
 	//--------------------------------------------
 	/**
@@ -661,39 +2460,30 @@ public class Sender
 		if(parameters == null || parameters.size() == 0)
 			return null;
 		Set<InternetAddress> recipientsList = new HashSet<InternetAddress>();
-		Set<String> keys = parameters.keySet();
 		String personal = null;
-		for(String header:keys)
+		if(parameters instanceof RowSchema.Row)
 		{
-			if(header.toLowerCase().trim().equals("person"))
+			//columns are found by schema
+			RowSchema.Row row = (RowSchema.Row) parameters;
+			RowSchema schema = row.getSchema();
+			if(schema.getPersonColumn() >= 0)
+				personal = row.getValue(schema.getPersonColumn());
+			for(int column:schema.getEmailColumns())
 			{
-				personal = parameters.get(header);
+				addRecipients(recipientsList, row.getValue(column));
 			}
-			if(header.toLowerCase().trim().startsWith("email"))
+		}
+		else
+		{
+			Set<String> keys = parameters.keySet();
+			for(String header:keys)
 			{
-				String emailString = parameters.get(header);
-				if(emailString == null)
-					continue;
-				emailString = emailString.trim();
-				if(emailString.length() == 0)
-					continue;
-				String[] emails = emailString.split(",| ");
-				for(String email:emails)
+				if(header.toLowerCase().trim().equals("person"))
 				{
-					if(email == null || email.length() == 0)
-						continue;
-					try
-					{
-						InternetAddress address = new InternetAddress(email);
-						address.validate();
-						recipientsList.add(address);
-					}catch(AddressException ae)
-					{
-						logger.warn("Email " + email + " is incorrect: " + ae.getMessage());
-						if(badEmails != null)
-							badEmails.add(email);
-					}
+					personal = parameters.get(header);
 				}
+				if(header.toLowerCase().trim().startsWith("email"))
+					addRecipients(recipientsList, parameters.get(header));
 			}
 		}
 		if(recipientsList == null || recipientsList.isEmpty())
@@ -715,6 +2505,37 @@ public class Sender
 		}
 		return recipientsList;
 	}
+	
+	//--------------------------------------------
+	/**
+	 * Add valid emails of parameter to recipients
+	 * <br />Incorrect emails are added to bad emails.
+	 * @param emailString emails separated by comma or space
+	 */
+	private void addRecipients(Set<InternetAddress> recipientsList, String emailString)
+	{
+		if(emailString == null)
+			return;
+		emailString = emailString.trim();
+		if(emailString.length() == 0)
+			return;
+		String[] emails = emailString.split(",| ");
+		for(String email:emails)
+		{
+			if(email == null || email.length() == 0)
+				continue;
+			try
+			{
+				InternetAddress address = new InternetAddress(email);
+				address.validate();
+				recipientsList.add(address);
+			}catch(AddressException ae)
+			{
+				logger.warn("Email " + email + " is incorrect: " + ae.getMessage());
+				badEmail(email);
+			}
+		}
+	}
 
 	//-----------------------------------------------
 	/**
@@ -748,6 +2569,402 @@ public class Sender
 		this.traceMessages = trace;
 	}
 	
+	//--------------------------------------------
+	/**
+	 * Send all messages of one send operation over one SMTP connection.
+	 * <br />By default new connection is opened for each message.
+	 * Dropped connection is opened again.
+	 * @param reuse true - use one connection
+	 * @see #setMessagesPerConnection(int)
+	 */
+	public void setReuseConnection(boolean reuse)
+	{
+		this.reuseConnection = reuse;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Reopen connection after specified count of messages.
+	 * Works if connection reuse is on.
+	 * @param count count of messages (0 - no limit)
+	 * @see #setReuseConnection(boolean)
+	 */
+	public void setMessagesPerConnection(int count)
+	{
+		if(count < 0)
+			count = 0;
+		this.messagesPerConnection = count;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send envelope commands (MAIL FROM, RCPT TO, DATA) in one packet
+	 * if server supports PIPELINING extension (RFC 2920).
+	 * Connections are reused like with {@link #setReuseConnection(boolean)}.
+	 * <br />Recipients rejected by server are handled like without pipelining
+	 * , see {@link #setSendPartial(boolean)}.
+	 * @param pipelining true - use pipelining
+	 */
+	public void setPipelining(boolean pipelining)
+	{
+		this.pipelining = pipelining;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send message to accepted recipients if server rejects some of them
+	 * (property mail.smtp.sendpartial). By default message is not sent then.
+	 * <br />Recipients rejected permanently (5xx) are added to bad emails.
+	 * Recipients rejected temporarily (4xx, ex. greylisting) are not bad
+	 * , message is not sent to them.
+	 * @param sendPartial true - send message to accepted recipients
+	 */
+	public void setSendPartial(boolean sendPartial)
+	{
+		for(RelayState relayState:relayStates)
+		{
+			relayState.session.getProperties().put("mail.smtp.sendpartial"
+					, String.valueOf(sendPartial));
+			//transport of check has read properties already
+			relayState.closeProbeTransport();
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send messages in several threads. Each thread uses own SMTP connection
+	 * from connection pool.
+	 * @param threads count of threads (default 1)
+	 * @see #setConnectionPool(int, int, long, long)
+	 */
+	public void setThreads(int threads)
+	{
+		if(threads < 1)
+			threads = 1;
+		this.threads = threads;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Set parameters of SMTP connection pool.
+	 * Pool is used if connection reuse is on or messages are sent in several threads.
+	 * @param minSize count of connections that are not closed when idle
+	 * @param maxSize max count of opened connections (0 - equal to count of threads)
+	 * @param idleTimeout milliseconds after that idle connection is closed (0 - never)
+	 * @param borrowTimeout milliseconds to wait free connection (0 - wait forever).
+	 * Message is not sent if timeout expired
+	 * @see #setThreads(int)
+	 * @see #setReuseConnection(boolean)
+	 */
+	public void setConnectionPool(int minSize, int maxSize, long idleTimeout, long borrowTimeout)
+	{
+		this.poolMinSize = minSize;
+		this.poolMaxSize = maxSize;
+		this.poolIdleTimeout = idleTimeout;
+		this.poolBorrowTimeout = borrowTimeout;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Set max count of built messages that wait for sending.
+	 * Next messages are built while previous messages are sent
+	 * , so memory does not depend on count of recipients.
+	 * @param size max count of messages in queue (default 1000)
+	 */
+	public void setQueueSize(int size)
+	{
+		this.queueSize = size;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Set when SMTP server is considered unavailable.
+	 * Works if Sender has been created with several servers.
+	 * @param maxFailures count of connection failures in a row (default 3)
+	 * @param retryInterval milliseconds while unavailable server is not used (default 60000)
+	 * @see #Sender(List, String, String, String)
+	 */
+	public void setRelayFailover(int maxFailures, long retryInterval)
+	{
+		relayBalancer.configure(maxFailures, retryInterval);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Choose count of messages that are sent at the same time by server replies.
+	 * <br />Count grows while latency of server stays flat and is halved
+	 * on 4xx replies, timeouts and refused connections.
+	 * Messages are sent in max limit threads.
+	 * @param minLimit initial and min count of messages sent at the same time
+	 * @param maxLimit max count of messages sent at the same time (0 - adaptive mode is off)
+	 * @see #getConcurrencyLimit()
+	 * @see #setThreads(int)
+	 */
+	public void setAdaptiveConcurrency(int minLimit, int maxLimit)
+	{
+		if(maxLimit <= 0)
+		{
+			concurrencyLimiter = null;
+			return;
+		}
+		concurrencyLimiter = new ConcurrencyLimiter(minLimit, maxLimit);
+		setThreads(maxLimit);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get count of messages that are sent at the same time.
+	 * It can change while sending if adaptive mode is on.
+	 * @return current limit in adaptive mode or count of threads
+	 * @see #setAdaptiveConcurrency(int, int)
+	 */
+	public int getConcurrencyLimit()
+	{
+		ConcurrencyLimiter limiter = concurrencyLimiter;
+		if(limiter != null)
+			return limiter.getLimit();
+		return threads;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Set time while result of SMTP server check is used by all Sender objects.
+	 * Server is not checked again while result is not expired.
+	 * @param ttl milliseconds (0 - server is checked by each Sender, default)
+	 * @see #Sender(List, String, String, String, boolean)
+	 */
+	public static void setHealthCheckTtl(long ttl)
+	{
+		RelayHealthCache.setTtl(ttl);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Close connections that were opened by check of servers and were not used.
+	 * Sender can be used after closing.
+	 */
+	public void close()
+	{
+		for(RelayState relayState:relayStates)
+		{
+			relayState.closeProbeTransport();
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Set how messages are built and sent.
+	 * <br />In {@link ExecutionMode#VIRTUAL_THREADS} mode each message is built
+	 * and sent in own virtual thread, so many messages can wait for slow servers
+	 * at the same time.
+	 * @param mode execution mode (default {@link ExecutionMode#PLATFORM_THREADS})
+	 * @param maxInFlight max count of messages in progress in virtual threads mode
+	 * (default 10000)
+	 * @see #setThreads(int)
+	 */
+	public void setExecutionMode(ExecutionMode mode, int maxInFlight)
+	{
+		if(maxInFlight < 1)
+			maxInFlight = 1;
+		this.executionMode = mode;
+		this.maxInFlight = maxInFlight;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send messages by non-blocking SMTP client instead of JavaMail transport.
+	 * <br />Few threads drive all SMTP connections, so many connections can be used
+	 * without thread for each connection. STARTTLS, AUTH and PIPELINING are supported.
+	 * Count of threads that is set by {@link #setThreads(int)} is not used.
+	 * @param ioThreads count of threads that drive connections (0 - JavaMail transport is used)
+	 * @param connections max count of connections to each SMTP server
+	 */
+	public void setNonBlocking(int ioThreads, int connections)
+	{
+		if(connections < 1)
+			connections = 1;
+		this.nioThreads = ioThreads;
+		this.nioConnections = connections;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Limit sending rate to each SMTP server.
+	 * If limit is exceeded, message is sent by another server or later.
+	 * @param messagesPerSecond messages per second (0 - unlimited)
+	 * @param bytesPerSecond bytes per second (0 - unlimited)
+	 */
+	public void setRelayRateLimit(double messagesPerSecond, long bytesPerSecond)
+	{
+		rateLimiter.setRelayRate(messagesPerSecond, bytesPerSecond);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Limit sending rate to each recipient domain.
+	 * If limit is exceeded, message is sent later. Messages to other domains
+	 * are sent meanwhile.
+	 * @param messagesPerSecond messages per second (0 - unlimited)
+	 * @param bytesPerSecond bytes per second (0 - unlimited)
+	 * @see #setDomainRateLimit(String, double, long)
+	 */
+	public void setDomainRateLimit(double messagesPerSecond, long bytesPerSecond)
+	{
+		rateLimiter.setDomainRate(messagesPerSecond, bytesPerSecond);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Limit sending rate to recipient domain.
+	 * Overrides limit that is set for all domains.
+	 * @param domain domain of recipients, e.g. gmail.com
+	 * @param messagesPerSecond messages per second (0 - unlimited)
+	 * @param bytesPerSecond bytes per second (0 - unlimited)
+	 * @see #setDomainRateLimit(double, long)
+	 */
+	public void setDomainRateLimit(String domain, double messagesPerSecond, long bytesPerSecond)
+	{
+		rateLimiter.setDomainRate(domain, messagesPerSecond, bytesPerSecond);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Set receiver of results. Results are passed while sending goes on.
+	 * <br />Sent and not sent messages are not kept if listener is set
+	 * , see {@link #setRetainMessages(boolean)}.
+	 * @param listener receiver of results or null
+	 */
+	public void setSendListener(SendListener listener)
+	{
+		this.sendListener = listener;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Keep sent and not sent messages until next send operation.
+	 * By default messages are kept only if there is no send listener.
+	 * @param retain true - messages are returned by {@link #getSentMessages()}
+	 * and {@link #getNotSentMessages()}
+	 */
+	public void setRetainMessages(boolean retain)
+	{
+		this.retainMessages = retain;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Write outcome of each parameters row to journal and skip rows
+	 * that are already sent or bad in it.
+	 * <br />Row is index of parameters map in send operation
+	 * , so resumed sending must get the same parameters in the same order.
+	 * Sending to set of addresses is not journaled.
+	 * @param journal opened journal or null
+	 * @see SendJournal#SendJournal(File, boolean)
+	 */
+	public void setJournal(SendJournal journal)
+	{
+		this.journal = journal;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Skip recipients that have got the same message in previous runs.
+	 * <br />Store is checked before message is built. Key is address, template id
+	 * and hash of personal parameters, so changed parameters give new message.
+	 * Accepted recipients are added to store after sending.
+	 * @param store opened store or null
+	 * @param templateId id of message template, e.g. name of campaign
+	 */
+	public void setIdempotencyStore(IdempotencyStore store, String templateId)
+	{
+		this.idempotencyStore = store;
+		this.templateId = templateId == null ? "" : templateId;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Send one message to address that is in several rows or email columns.
+	 * Message is built for first row with address, address is removed from next rows.
+	 * <br />Address is remembered when message is sent to it. While message is sent
+	 * , address is removed from next rows too. If message is not sent
+	 * , address gets message of next row.
+	 * <br />Addresses of send operation are kept as 64-bit hashes (8 bytes for address).
+	 * Exact check compares addresses with equal hash by addresses in temporary file
+	 * , it takes 8 bytes more for address.
+	 * @param deduplicate true - skip repeated addresses (default false)
+	 * @param exactCheck true - check hash matches by addresses
+	 */
+	public void setDeduplicateRecipients(boolean deduplicate, boolean exactCheck)
+	{
+		this.deduplicate = deduplicate;
+		this.deduplicateExact = exactCheck;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Skip recipients that are in suppression list (unsubscribed, bounced).
+	 * Recipients are checked before message is built.
+	 * @param list opened list or null
+	 * @see #getSuppressedEmails()
+	 */
+	public void setSuppressionList(SuppressionList list)
+	{
+		this.suppressionList = list;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Build messages with parameters in several threads of fork/join pool.
+	 * <br />Messages are sent and bad emails and parameters are reported in order of rows
+	 * , as in one thread. Not used in {@link ExecutionMode#VIRTUAL_THREADS} mode
+	 * , where each message is built in own thread.
+	 * @param threads count of threads that build messages (default 1)
+	 */
+	public void setBuildThreads(int threads)
+	{
+		if(threads < 1)
+			threads = 1;
+		this.buildThreads = threads;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get Velocity runtime of sender. Runtime is configured and initialized
+	 * on first send and is used by all sends of this sender.
+	 * <br />Senders don't use global {@code Velocity} singleton
+	 * , so they can render messages at the same time.
+	 * @return initialized runtime instance
+	 */
+	synchronized RuntimeInstance getTemplateRuntime()
+	{
+		return getTemplateCache().getRuntime();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get templates that are parsed by runtime of sender.
+	 * Templates are kept by text, so sends of different contents share them.
+	 * @return template cache of sender
+	 */
+	synchronized TemplateCache getTemplateCache()
+	{
+		if(templateCache == null)
+			templateCache = new TemplateCache(TemplateCache.createRuntime());
+		return templateCache;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get emails of recipients that were skipped by suppression list
+	 * in the last send operation. These emails are not in bad emails.
+	 * @return suppressed email addresses
+	 * @see #setSuppressionList(SuppressionList)
+	 */
+	public List<String> getSuppressedEmails()
+	{
+		return suppressedEmails;
+	}
+	
 	//--------------------------------------------
 	/**
 	 * Get bad emails of recipients, that were in the last send operation.
@@ -771,7 +2988,8 @@ public class Sender
 	//--------------------------------------------
 	/**
 	 * Get not sent messages that were in the last send operation.
-	 * @return not sent messages
+	 * @return not sent messages. Empty if messages are not kept
+	 * @see #setRetainMessages(boolean)
 	 */
 	public List<Message> getNotSentMessages()
 	{
@@ -780,8 +2998,9 @@ public class Sender
 	
 	//--------------------------------------------
 	/**
-	 * Get not sent messages that were in the last send operation.
-	 * @return not sent messages
+	 * Get sent messages that were in the last send operation.
+	 * @return sent messages. Empty if messages are not kept
+	 * @see #setRetainMessages(boolean)
 	 */
 	public List<Message> getSentMessages()
 	{
@@ -0,0 +1,173 @@
+package com.qwertovsky.mailer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.velocity.context.Context;
+
+/**
+ * Template that contains only simple references $name and ${name}.
+ * <br />Text is split once to static segments and names of references.
+ * Merge writes segments and values of references without Velocity syntax tree.
+ * Reference without value is written as is, like Velocity does.
+ * <br />Templates with directives, macros, comments, escapes, quiet references,
+ * properties and methods are not simple and are parsed by Velocity.
+ * @author Qwertovsky
+ *
+ */
+class SimpleTemplate implements TemplateCache.Renderer
+{
+	private static final String[] DIRECTIVES = {"set", "if", "else", "end", "foreach"
+		, "include", "parse", "macro", "stop", "break", "evaluate", "define"};
+
+	private String[] segments;
+	private String[] names;
+	private String[] references;
+
+	//--------------------------------------------
+	private SimpleTemplate(String[] segments, String[] names, String[] references)
+	{
+		this.segments = segments;
+		this.names = names;
+		this.references = references;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Split template to segments and references
+	 * @param text template text
+	 * @return template or null if text is not simple
+	 */
+	static SimpleTemplate compile(String text)
+	{
+		List<String> segments = new ArrayList<String>();
+		List<String> names = new ArrayList<String>();
+		List<String> references = new ArrayList<String>();
+		int length = text.length();
+		int segmentStart = 0;
+		int i = 0;
+		while(i < length)
+		{
+			char c = text.charAt(i);
+			char next = i + 1 < length ? text.charAt(i + 1) : 0;
+			if(c == '\\' && (next == '$' || next == '#' || next == '\\'))
+				return null;
+			if(c == '#' && (next == '{' || next == '#' || next == '*' || next == '['
+					|| next == '@' || isDirective(text, i + 1)))
+				return null;
+			if(c != '$')
+			{
+				i++;
+				continue;
+			}
+			if(next == '$' || next == '!')
+				return null;
+			boolean braces = next == '{';
+			int nameStart = braces ? i + 2 : i + 1;
+			if(nameStart >= length || !isIdentifierStart(text.charAt(nameStart)))
+			{
+				if(braces)
+					return null;
+				//single $ is text
+				i++;
+				continue;
+			}
+			int nameEnd = nameStart + 1;
+			while(nameEnd < length && isIdentifierPart(text.charAt(nameEnd)))
+			{
+				nameEnd++;
+			}
+			int end;
+			char after = nameEnd < length ? text.charAt(nameEnd) : 0;
+			if(braces)
+			{
+				if(after != '}')
+					return null;
+				end = nameEnd + 1;
+			}
+			else
+			{
+				//hyphen is part of name, property, method or index
+				if(after == '-' || after == '(' || after == '[')
+					return null;
+				if(after == '.' && nameEnd + 1 < length
+						&& (isIdentifierStart(text.charAt(nameEnd + 1))
+								|| text.charAt(nameEnd + 1) == '$'))
+					return null;
+				end = nameEnd;
+			}
+			segments.add(text.substring(segmentStart, i));
+			names.add(text.substring(nameStart, nameEnd));
+			references.add(text.substring(i, end));
+			segmentStart = end;
+			i = end;
+		}
+		segments.add(text.substring(segmentStart));
+		return new SimpleTemplate(segments.toArray(new String[segments.size()])
+				, names.toArray(new String[names.size()])
+				, references.toArray(new String[references.size()]));
+	}
+
+	//--------------------------------------------
+	public void merge(Context context, Writer writer) throws IOException
+	{
+		for(int i = 0; i < names.length; i++)
+		{
+			writer.write(segments[i]);
+			Object value = context.get(names[i]);
+			String string = value == null ? null : value.toString();
+			writer.write(string == null ? references[i] : string);
+		}
+		writer.write(segments[names.length]);
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return count of references
+	 */
+	int getReferenceCount()
+	{
+		return names.length;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that name after '#' is directive or macro call.
+	 * Other names (ex. #fff in html) are text.
+	 */
+	private static boolean isDirective(String text, int start)
+	{
+		int length = text.length();
+		if(start >= length || !isIdentifierStart(text.charAt(start)))
+			return false;
+		for(String directive:DIRECTIVES)
+		{
+			if(text.startsWith(directive, start))
+				return true;
+		}
+		int end = start + 1;
+		while(end < length && (isIdentifierPart(text.charAt(end)) || text.charAt(end) == '-'))
+		{
+			end++;
+		}
+		while(end < length && Character.isWhitespace(text.charAt(end)))
+		{
+			end++;
+		}
+		return end < length && text.charAt(end) == '(';
+	}
+
+	//--------------------------------------------
+	private static boolean isIdentifierStart(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+	}
+
+	//--------------------------------------------
+	private static boolean isIdentifierPart(char c)
+	{
+		return isIdentifierStart(c) || (c >= '0' && c <= '9');
+	}
+}
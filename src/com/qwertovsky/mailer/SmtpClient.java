@@ -0,0 +1,666 @@
+package com.qwertovsky.mailer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simple SMTP client with support of PIPELINING (RFC 2920).
+ * <br />If server advertises PIPELINING, commands MAIL FROM, RCPT TO and DATA
+ * are sent in one packet and replies are read together.
+ * Otherwise each command waits for its reply.
+ * <br />Settings are taken from mail session: host, port, local host name, timeouts,
+ * socket factory (SMTPS), STARTTLS and authentication (PLAIN or LOGIN).
+ * <br />Rejected recipients are reported by {@link SendFailedException} like JavaMail does:
+ * recipients with 5xx reply are invalid, recipients with 4xx reply are valid unsent.
+ * If some recipients are rejected, message is not sent. With property
+ * mail.smtp.sendpartial message is sent to accepted recipients.
+ * @author Qwertovsky
+ *
+ */
+class SmtpClient
+{
+	private Session session;
+	private String host;
+	private int port;
+	private Socket socket;
+	private InputStream input;
+	private OutputStream output;
+	private Set<String> extensions = new HashSet<String>();
+	private int lastReturnCode;
+	private String lastServerResponse;
+
+	final Logger logger = LoggerFactory.getLogger(SmtpClient.class);
+
+	//--------------------------------------------
+	/**
+	 * @param session mail session with server settings
+	 */
+	SmtpClient(Session session)
+	{
+		this.session = session;
+		Properties properties = session.getProperties();
+		host = properties.getProperty("mail.smtp.host");
+		port = getIntProperty(properties, "mail.smtp.port", 25);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Connect to server, say EHLO, start TLS and authenticate if it is possible
+	 * @throws MessagingException error connect to server
+	 */
+	void connect() throws MessagingException
+	{
+		Properties properties = session.getProperties();
+		int connectionTimeout = getIntProperty(properties, "mail.smtp.connectiontimeout", 0);
+		int timeout = getIntProperty(properties, "mail.smtp.timeout", 0);
+		try
+		{
+			socket = createSocket(properties, connectionTimeout, timeout);
+			openStreams();
+		} catch (UnknownHostException uhe)
+		{
+			close();
+			throw new MessagingException("Unknown SMTP host: " + host, uhe);
+		} catch (IOException ioe)
+		{
+			close();
+			throw new MessagingException("Could not connect to SMTP host: "
+					+ host + ", port: " + port, ioe);
+		}
+		try
+		{
+			if(readReply() != 220)
+				throw new MessagingException("Could not connect to SMTP host: "
+						+ host + ", port: " + port + ", response: " + lastServerResponse);
+			ehlo();
+			if("true".equals(properties.getProperty("mail.smtp.starttls.enable"))
+					&& extensions.contains("STARTTLS") && !(socket instanceof SSLSocket))
+			{
+				command("STARTTLS", 220);
+				SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+				SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+				sslSocket.startHandshake();
+				socket = sslSocket;
+				openStreams();
+				ehlo();
+			}
+			if("true".equals(properties.getProperty("mail.smtp.auth")))
+				authenticate();
+		} catch (IOException ioe)
+		{
+			close();
+			throw new MessagingException("Exception reading response", ioe);
+		} catch (MessagingException me)
+		{
+			close();
+			throw me;
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Open socket like JavaMail transport does.
+	 * <br />If property mail.smtp.ssl.enable is true, connection is SSL from the start (SMTPS).
+	 * If mail.smtp.socketFactory.class is set, socket of this factory is connected
+	 * to mail.smtp.socketFactory.port. If it fails and mail.smtp.socketFactory.fallback
+	 * is not false, plain socket is connected to port of server.
+	 * <br />Handshake of SSL socket is done here, so SSL error of plain server
+	 * leads to fallback.
+	 */
+	private Socket createSocket(Properties properties, int connectionTimeout, int timeout)
+		throws IOException
+	{
+		String factoryClass = properties.getProperty("mail.smtp.socketFactory.class");
+		boolean ssl = "true".equals(properties.getProperty("mail.smtp.ssl.enable"));
+		if(ssl || (factoryClass != null && factoryClass.length() > 0))
+		{
+			int factoryPort = ssl ? port
+				: getIntProperty(properties, "mail.smtp.socketFactory.port", port);
+			boolean fallback = !ssl
+				&& !"false".equals(properties.getProperty("mail.smtp.socketFactory.fallback"));
+			Socket factorySocket = null;
+			try
+			{
+				SocketFactory factory = ssl ? SSLSocketFactory.getDefault()
+					: getSocketFactory(factoryClass);
+				factorySocket = factory.createSocket();
+				factorySocket.connect(new InetSocketAddress(host, factoryPort), connectionTimeout);
+				factorySocket.setSoTimeout(timeout);
+				if(factorySocket instanceof SSLSocket)
+					((SSLSocket) factorySocket).startHandshake();
+				return factorySocket;
+			} catch (IOException ioe)
+			{
+				if(factorySocket != null)
+					factorySocket.close();
+				if(!fallback)
+					throw ioe;
+				logger.debug("Could not connect by socket factory " + factoryClass
+						+ " (" + ioe.getMessage() + "). Connect by plain socket");
+			}
+		}
+		Socket plainSocket = new Socket();
+		try
+		{
+			plainSocket.connect(new InetSocketAddress(host, port), connectionTimeout);
+			plainSocket.setSoTimeout(timeout);
+		} catch (IOException ioe)
+		{
+			plainSocket.close();
+			throw ioe;
+		}
+		return plainSocket;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get factory by static method getDefault() of factory class
+	 */
+	private static SocketFactory getSocketFactory(String className) throws IOException
+	{
+		try
+		{
+			Class<?> factoryClass = Class.forName(className);
+			return (SocketFactory) factoryClass.getMethod("getDefault").invoke(null);
+		} catch (Exception e)
+		{
+			throw new IOException("Could not create socket factory " + className, e);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Send message to all its recipients
+	 * @param message message with updated headers
+	 * @throws SendFailedException some recipients are rejected
+	 * @throws MessagingException message is not sent
+	 */
+	void send(Message message) throws MessagingException
+	{
+		Address[] from = message.getFrom();
+		Address[] recipients = message.getAllRecipients();
+		if(from == null || from.length == 0)
+			throw new MessagingException("From email has not been specified");
+		if(recipients == null || recipients.length == 0)
+			throw new SendFailedException("No recipient addresses");
+
+		List<Address> validAddresses = new ArrayList<Address>();
+		List<Address> validUnsentAddresses = new ArrayList<Address>();
+		List<Address> invalidAddresses = new ArrayList<Address>();
+		StringBuilder rejectReplies = new StringBuilder();
+		boolean sendPartial = "true".equals(
+				session.getProperties().getProperty("mail.smtp.sendpartial"));
+		try
+		{
+			boolean pipelining = extensions.contains("PIPELINING");
+			//without partial send DATA waits replies of recipients
+			boolean pipelineData = pipelining && sendPartial;
+			String mailFrom = "MAIL FROM:<" + ((InternetAddress)from[0]).getAddress() + ">";
+			//send envelope
+			if(pipelining)
+			{
+				write(mailFrom);
+				for(Address recipient:recipients)
+				{
+					write("RCPT TO:<" + ((InternetAddress)recipient).getAddress() + ">");
+				}
+				if(pipelineData)
+					write("DATA");
+				output.flush();
+			}
+			else
+			{
+				write(mailFrom);
+				output.flush();
+			}
+
+			//read replies
+			int mailReply = readReply();
+			String mailResponse = lastServerResponse;
+			for(Address recipient:recipients)
+			{
+				if(!pipelining)
+				{
+					if(mailReply != 250)
+						break;
+					write("RCPT TO:<" + ((InternetAddress)recipient).getAddress() + ">");
+					output.flush();
+				}
+				int rcptReply = readReply();
+				if(rcptReply == 250 || rcptReply == 251)
+					validAddresses.add(recipient);
+				else
+				{
+					//temporary failure (ex. greylisting) is not bad address
+					if(rcptReply >= 500)
+						invalidAddresses.add(recipient);
+					else
+						validUnsentAddresses.add(recipient);
+					if(rejectReplies.length() > 0)
+						rejectReplies.append("; ");
+					rejectReplies.append(lastServerResponse);
+				}
+			}
+			boolean rejected = !invalidAddresses.isEmpty() || !validUnsentAddresses.isEmpty();
+			//recipients that don't get message if it fails
+			Address[] unsentAddresses = concat(validAddresses, validUnsentAddresses);
+			int dataReply = 0;
+			if(pipelineData)
+				dataReply = readReply();
+			else if(mailReply == 250 && !validAddresses.isEmpty() && (sendPartial || !rejected))
+			{
+				write("DATA");
+				output.flush();
+				dataReply = readReply();
+			}
+
+			if(mailReply != 250)
+			{
+				if(dataReply == 354)
+					finishData();
+				reset();
+				throw new MessagingException(mailResponse);
+			}
+			if(validAddresses.isEmpty() || (rejected && !sendPartial))
+			{
+				//server may accept DATA even if all recipients are rejected
+				if(dataReply == 354)
+					finishData();
+				reset();
+				throw new SendFailedException("Invalid Addresses (" + rejectReplies + ")", null
+						, null, unsentAddresses, invalidAddresses.toArray(new Address[0]));
+			}
+			if(dataReply != 354)
+			{
+				String dataResponse = lastServerResponse;
+				reset();
+				throw new SendFailedException(dataResponse, null, null
+						, unsentAddresses, invalidAddresses.toArray(new Address[0]));
+			}
+
+			//send content
+			DotStuffingOutputStream dataStream = new DotStuffingOutputStream(output);
+			try
+			{
+				message.writeTo(dataStream);
+			} catch (MessagingException me)
+			{
+				//transaction can't be finished correctly
+				close();
+				throw me;
+			}
+			dataStream.finish();
+			if(readReply() != 250)
+			{
+				String endResponse = lastServerResponse;
+				reset();
+				throw new SendFailedException(endResponse, null, null
+						, unsentAddresses, invalidAddresses.toArray(new Address[0]));
+			}
+			message.setServerResponse(lastServerResponse);
+		} catch (IOException ioe)
+		{
+			close();
+			throw new MessagingException("Exception reading response", ioe);
+		}
+
+		if(!invalidAddresses.isEmpty() || !validUnsentAddresses.isEmpty())
+			throw new SendFailedException("Invalid Addresses (" + rejectReplies + ")", null
+					, validAddresses.toArray(new Address[0])
+					, validUnsentAddresses.toArray(new Address[0])
+					, invalidAddresses.toArray(new Address[0]));
+	}
+
+	//--------------------------------------------
+	static Address[] concat(List<Address> first, List<Address> second)
+	{
+		List<Address> addresses = new ArrayList<Address>(first.size() + second.size());
+		addresses.addAll(first);
+		addresses.addAll(second);
+		return addresses.toArray(new Address[addresses.size()]);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Say QUIT and close socket. Errors are ignored.
+	 */
+	void close()
+	{
+		if(socket == null)
+			return;
+		try
+		{
+			if(!socket.isClosed() && output != null)
+			{
+				write("QUIT");
+				output.flush();
+				readReply();
+			}
+		} catch (IOException e)
+		{
+			//nothing
+		}
+		try
+		{
+			socket.close();
+		} catch (IOException e)
+		{
+			//nothing
+		}
+		socket = null;
+		input = null;
+		output = null;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that socket is opened. Server is not asked.
+	 */
+	boolean isConnected()
+	{
+		return socket != null && !socket.isClosed();
+	}
+
+	//--------------------------------------------
+	boolean supportsExtension(String extension)
+	{
+		return extensions.contains(extension.toUpperCase(Locale.ENGLISH));
+	}
+
+	//--------------------------------------------
+	int getLastReturnCode()
+	{
+		return lastReturnCode;
+	}
+
+	//--------------------------------------------
+	String getLastServerResponse()
+	{
+		return lastServerResponse;
+	}
+
+	//--------------------------------------------
+	private void openStreams() throws IOException
+	{
+		input = new BufferedInputStream(socket.getInputStream());
+		output = new BufferedOutputStream(socket.getOutputStream());
+	}
+
+	//--------------------------------------------
+	/**
+	 * Send EHLO and get list of extensions
+	 */
+	private void ehlo() throws IOException, MessagingException
+	{
+		String localHost = getLocalHost(session.getProperties());
+		write("EHLO " + localHost);
+		output.flush();
+		if(readReply() != 250)
+			command("HELO " + localHost, 250);
+		parseExtensions(lastServerResponse, extensions);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get host name for EHLO from property mail.smtp.localhost or from local address
+	 */
+	static String getLocalHost(Properties properties)
+	{
+		String localHost = properties.getProperty("mail.smtp.localhost");
+		if(localHost == null || localHost.length() == 0)
+		{
+			try
+			{
+				localHost = InetAddress.getLocalHost().getCanonicalHostName();
+			} catch (UnknownHostException e)
+			{
+				localHost = "localhost";
+			}
+		}
+		return localHost;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get extensions from EHLO reply
+	 * @param response reply lines separated by \n
+	 * @param extensions set to fill. Extension is added with parameters and without them
+	 */
+	static void parseExtensions(String response, Set<String> extensions)
+	{
+		extensions.clear();
+		String[] lines = response.split("\n");
+		//the first line is greeting
+		for(int i = 1; i < lines.length; i++)
+		{
+			String line = lines[i].trim();
+			if(line.length() < 4)
+				continue;
+			String extension = line.substring(4).toUpperCase(Locale.ENGLISH);
+			extensions.add(extension);
+			int space = extension.indexOf(' ');
+			if(space > 0)
+				extensions.add(extension.substring(0, space));
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Authenticate with credentials from session authenticator
+	 */
+	private void authenticate() throws IOException, MessagingException
+	{
+		if(!extensions.contains("AUTH"))
+			return;
+		PasswordAuthentication credentials = session.requestPasswordAuthentication(
+				null, port, "smtp", null, null);
+		if(credentials == null || credentials.getUserName() == null
+				|| credentials.getUserName().length() == 0)
+			return;
+		String user = credentials.getUserName();
+		String password = credentials.getPassword();
+		int reply;
+		if(hasAuthMechanism(extensions, "PLAIN"))
+		{
+			write("AUTH PLAIN " + base64("\0" + user + "\0" + password));
+			output.flush();
+			reply = readReply();
+		}
+		else
+		{
+			write("AUTH LOGIN");
+			output.flush();
+			reply = readReply();
+			if(reply == 334)
+			{
+				write(base64(user));
+				output.flush();
+				reply = readReply();
+			}
+			if(reply == 334)
+			{
+				write(base64(password));
+				output.flush();
+				reply = readReply();
+			}
+		}
+		if(reply != 235)
+			throw new AuthenticationFailedException(lastServerResponse);
+	}
+
+	//--------------------------------------------
+	static boolean hasAuthMechanism(Set<String> extensions, String mechanism)
+	{
+		for(String extension:extensions)
+		{
+			if(extension.startsWith("AUTH ")
+					&& (" " + extension.substring(5) + " ").contains(" " + mechanism + " "))
+				return true;
+		}
+		return false;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Send command and check reply
+	 */
+	private void command(String command, int expectedReply) throws IOException, MessagingException
+	{
+		write(command);
+		output.flush();
+		if(readReply() != expectedReply)
+			throw new MessagingException(lastServerResponse);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Terminate message content after failure
+	 */
+	private void finishData() throws IOException
+	{
+		output.write(".\r\n".getBytes("US-ASCII"));
+		output.flush();
+		readReply();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Reset transaction. Errors are ignored.
+	 */
+	private void reset() throws IOException
+	{
+		write("RSET");
+		output.flush();
+		readReply();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Put command to output buffer
+	 */
+	private void write(String command) throws IOException
+	{
+		if(logger.isTraceEnabled())
+			logger.trace("C: " + (command.startsWith("AUTH") ? "AUTH ..." : command));
+		output.write((command + "\r\n").getBytes("US-ASCII"));
+	}
+
+	//--------------------------------------------
+	/**
+	 * Read reply (may be multiline)
+	 * @return reply code
+	 */
+	private int readReply() throws IOException
+	{
+		StringBuilder response = new StringBuilder();
+		String line;
+		do
+		{
+			line = readLine();
+			if(line == null)
+				throw new IOException("Connection closed by server");
+			if(response.length() > 0)
+				response.append("\n");
+			response.append(line);
+		}
+		while(line.length() > 3 && line.charAt(3) == '-');
+		lastServerResponse = response.toString();
+		if(logger.isTraceEnabled())
+			logger.trace("S: " + lastServerResponse);
+		try
+		{
+			lastReturnCode = Integer.parseInt(line.substring(0, 3));
+		} catch (RuntimeException e)
+		{
+			lastReturnCode = -1;
+		}
+		return lastReturnCode;
+	}
+
+	//--------------------------------------------
+	private String readLine() throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int b;
+		while((b = input.read()) != -1)
+		{
+			if(b == '\n')
+				break;
+			if(b != '\r')
+				line.append((char) b);
+		}
+		if(b == -1 && line.length() == 0)
+			return null;
+		return line.toString();
+	}
+
+	//--------------------------------------------
+	static int getIntProperty(Properties properties, String name, int defaultValue)
+	{
+		Object value = properties.get(name);
+		if(value instanceof Integer)
+			return (Integer) value;
+		if(value instanceof String)
+		{
+			try
+			{
+				return Integer.parseInt((String) value);
+			} catch (NumberFormatException e)
+			{
+				return defaultValue;
+			}
+		}
+		return defaultValue;
+	}
+
+	//--------------------------------------------
+	private static final char[] BASE64 =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	static String base64(String text) throws UnsupportedEncodingException
+	{
+		byte[] bytes = text.getBytes("UTF-8");
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < bytes.length; i += 3)
+		{
+			int b = (bytes[i] & 0xff) << 16;
+			if(i + 1 < bytes.length)
+				b |= (bytes[i + 1] & 0xff) << 8;
+			if(i + 2 < bytes.length)
+				b |= bytes[i + 2] & 0xff;
+			sb.append(BASE64[(b >> 18) & 0x3f]);
+			sb.append(BASE64[(b >> 12) & 0x3f]);
+			sb.append(i + 1 < bytes.length ? BASE64[(b >> 6) & 0x3f] : '=');
+			sb.append(i + 2 < bytes.length ? BASE64[b & 0x3f] : '=');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,187 @@
+package com.qwertovsky.mailer;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * Authenticated SMTP connection that is kept open between messages.
+ * <br />Connection is opened on first message, reopened if server has closed it
+ * and recycled after specified count of messages.
+ * <br />Messages are sent by JavaMail transport or by {@link SmtpClient}
+ * if pipelining is on.
+ * @author Qwertovsky
+ *
+ */
+class SmtpConnection
+{
+	private Session session;
+	private Transport transport;
+	private SmtpClient client;
+	private boolean pipelining;
+	private int messagesPerConnection;
+	private int messageCount = 0;
+	private long lastUsed = System.currentTimeMillis();
+
+	final Logger logger = LoggerFactory.getLogger(SmtpConnection.class);
+
+	//--------------------------------------------
+	/**
+	 * @param session mail session with server settings
+	 * @param messagesPerConnection count of messages after that connection will be reopened
+	 * (0 - never)
+	 * @param pipelining true - send commands by {@link SmtpClient} with PIPELINING extension
+	 */
+	SmtpConnection(Session session, int messagesPerConnection, boolean pipelining)
+	{
+		this.session = session;
+		this.messagesPerConnection = messagesPerConnection;
+		this.pipelining = pipelining;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Create connection from opened JavaMail transport
+	 * @param session mail session with server settings
+	 * @param messagesPerConnection count of messages after that connection will be reopened
+	 * (0 - never)
+	 * @param transport opened transport
+	 */
+	SmtpConnection(Session session, int messagesPerConnection, Transport transport)
+	{
+		this(session, messagesPerConnection, false);
+		this.transport = transport;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Send message to all its recipients.
+	 * <br />If connection has been dropped, it will be opened again
+	 * and message will be sent once more.
+	 * @param message message with updated headers
+	 * @throws MessagingException error send message
+	 */
+	void send(Message message) throws MessagingException
+	{
+		if(messagesPerConnection > 0 && messageCount >= messagesPerConnection)
+		{
+			logger.debug("Recycle SMTP connection after " + messageCount + " messages");
+			close();
+		}
+		connect();
+		try
+		{
+			deliver(message);
+		} catch (MessagingException me)
+		{
+			if(isConnected())
+				throw me;
+			//connection has been dropped
+			logger.debug("SMTP connection is lost (" + me.getMessage() + "). Reconnect");
+			close();
+			connect();
+			deliver(message);
+		}
+		messageCount++;
+	}
+	
+	//--------------------------------------------
+	private void deliver(Message message) throws MessagingException
+	{
+		if(pipelining)
+			client.send(message);
+		else
+		{
+			transport.sendMessage(message, message.getAllRecipients());
+			message.setServerResponse(getLastServerResponse(transport));
+		}
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get last reply of JavaMail transport
+	 * @return reply or null if transport is not SMTP transport
+	 */
+	static String getLastServerResponse(Transport transport)
+	{
+		if(transport instanceof SMTPTransport)
+			return ((SMTPTransport) transport).getLastServerResponse();
+		return null;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Open connection if it is not opened
+	 * @throws MessagingException error connect to server
+	 */
+	void connect() throws MessagingException
+	{
+		if(pipelining)
+		{
+			if(client == null)
+				client = new SmtpClient(session);
+			if(!client.isConnected())
+			{
+				client.connect();
+				messageCount = 0;
+			}
+			return;
+		}
+		if(transport == null)
+			transport = session.getTransport("smtp");
+		if(!transport.isConnected())
+		{
+			transport.connect();
+			messageCount = 0;
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Mark connection as used now
+	 */
+	void touch()
+	{
+		lastUsed = System.currentTimeMillis();
+	}
+	
+	//--------------------------------------------
+	long getLastUsed()
+	{
+		return lastUsed;
+	}
+	
+	//--------------------------------------------
+	boolean isConnected()
+	{
+		if(pipelining)
+			return client != null && client.isConnected();
+		return transport != null && transport.isConnected();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Close connection. Errors are ignored.
+	 */
+	void close()
+	{
+		if(client != null)
+			client.close();
+		if(transport != null)
+		{
+			try
+			{
+				transport.close();
+			} catch (MessagingException e)
+			{
+				logger.debug("Error close SMTP connection: " + e.getMessage());
+			}
+		}
+		messageCount = 0;
+	}
+}
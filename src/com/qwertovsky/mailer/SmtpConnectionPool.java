@@ -0,0 +1,218 @@
+package com.qwertovsky.mailer;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of SMTP connections to one server.
+ * <br />Connection is opened when no idle connection exists and pool is not full.
+ * If pool is full, borrower waits until connection is returned or borrow timeout expires.
+ * Connections that are idle longer than idle timeout are closed, but pool keeps
+ * at least min size of connections.
+ * @author Qwertovsky
+ *
+ */
+class SmtpConnectionPool
+{
+	private Session session;
+	private int minSize;
+	private int maxSize;
+	private long idleTimeout;
+	private long borrowTimeout;
+	private int messagesPerConnection;
+	private boolean pipelining;
+
+	private LinkedList<SmtpConnection> idleConnections = new LinkedList<SmtpConnection>();
+	private int size = 0;
+	private boolean closed = false;
+
+	final Logger logger = LoggerFactory.getLogger(SmtpConnectionPool.class);
+
+	//--------------------------------------------
+	/**
+	 * @param session mail session with server settings
+	 * @param minSize count of connections that are not closed when idle
+	 * @param maxSize max count of opened connections
+	 * @param idleTimeout milliseconds after that idle connection is closed
+	 * @param borrowTimeout milliseconds to wait free connection (0 - wait forever)
+	 * @param messagesPerConnection count of messages after that connection will be reopened
+	 * (0 - never)
+	 * @param pipelining true - connections send commands with PIPELINING extension
+	 */
+	SmtpConnectionPool(Session session, int minSize, int maxSize
+			, long idleTimeout, long borrowTimeout, int messagesPerConnection
+			, boolean pipelining)
+	{
+		if(maxSize < 1)
+			maxSize = 1;
+		if(minSize > maxSize)
+			minSize = maxSize;
+		this.session = session;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+		this.borrowTimeout = borrowTimeout;
+		this.messagesPerConnection = messagesPerConnection;
+		this.pipelining = pipelining;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get connection from pool. Connection must be returned by
+	 * {@link #release(SmtpConnection)} or {@link #invalidate(SmtpConnection)}
+	 * @return opened connection
+	 * @throws MessagingException error open connection
+	 * , timeout while waiting free connection
+	 */
+	SmtpConnection borrow() throws MessagingException
+	{
+		SmtpConnection connection = null;
+		synchronized(this)
+		{
+			long deadline = System.currentTimeMillis() + borrowTimeout;
+			while(connection == null)
+			{
+				if(closed)
+					throw new MessagingException("Connection pool is closed");
+				evictIdle();
+				if(!idleConnections.isEmpty())
+				{
+					return idleConnections.removeFirst();
+				}
+				if(size < maxSize)
+				{
+					//open new connection outside of lock
+					size++;
+					connection = new SmtpConnection(session, messagesPerConnection, pipelining);
+					break;
+				}
+				try
+				{
+					if(borrowTimeout <= 0)
+						wait();
+					else
+					{
+						long waitTime = deadline - System.currentTimeMillis();
+						if(waitTime <= 0)
+							throw new MessagingException("Timeout waiting for SMTP connection");
+						wait(waitTime);
+					}
+				} catch (InterruptedException ie)
+				{
+					Thread.currentThread().interrupt();
+					throw new MessagingException("Interrupted while waiting for SMTP connection");
+				}
+			}
+		}
+		try
+		{
+			connection.connect();
+		} catch (MessagingException me)
+		{
+			invalidate(connection);
+			throw me;
+		}
+		return connection;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Return connection to pool
+	 * @param connection connection that was got by {@link #borrow()}
+	 */
+	synchronized void release(SmtpConnection connection)
+	{
+		if(closed)
+		{
+			connection.close();
+			size--;
+		}
+		else
+		{
+			connection.touch();
+			idleConnections.addFirst(connection);
+		}
+		evictIdle();
+		notifyAll();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Put connection that was opened outside of pool.
+	 * Connection is closed if pool is full.
+	 * @param connection opened connection
+	 */
+	synchronized void add(SmtpConnection connection)
+	{
+		if(closed || size >= maxSize)
+		{
+			connection.close();
+			return;
+		}
+		size++;
+		connection.touch();
+		idleConnections.addFirst(connection);
+		notifyAll();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Close broken connection and remove it from pool
+	 * @param connection connection that was got by {@link #borrow()}
+	 */
+	void invalidate(SmtpConnection connection)
+	{
+		connection.close();
+		synchronized(this)
+		{
+			size--;
+			notifyAll();
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Close idle connections and mark pool closed.
+	 * Borrowed connections will be closed on return.
+	 */
+	synchronized void close()
+	{
+		closed = true;
+		for(SmtpConnection connection:idleConnections)
+		{
+			connection.close();
+			size--;
+		}
+		idleConnections.clear();
+		notifyAll();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Close connections that are idle too long.
+	 * The oldest connections are at the end of the list.
+	 */
+	private void evictIdle()
+	{
+		if(idleTimeout <= 0)
+			return;
+		long now = System.currentTimeMillis();
+		Iterator<SmtpConnection> iterator = idleConnections.descendingIterator();
+		while(iterator.hasNext() && size > minSize)
+		{
+			SmtpConnection connection = iterator.next();
+			if(now - connection.getLastUsed() < idleTimeout)
+				break;
+			iterator.remove();
+			connection.close();
+			size--;
+			logger.debug("Idle SMTP connection is closed");
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.qwertovsky.mailer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Addresses that must not get messages (unsubscribed, bounced).
+ * <br />List file contains one address in line. Empty lines and lines
+ * that start with '#' are ignored.
+ * <br />List is converted to cache file: Bloom filter and sorted 64-bit hashes
+ * of addresses. Cache file is memory-mapped. Most addresses are not in list
+ * and are passed by Bloom filter, matches of filter are checked by binary search
+ * of hash.
+ * <br />Cache file is saved next to list file (list.txt.cache) and is built again
+ * when list file is changed.
+ * @author Qwertovsky
+ * @see Sender#setSuppressionList(SuppressionList)
+ */
+public class SuppressionList implements Closeable
+{
+	private static final long MAGIC = 0x514D535550310000L;
+	private static final int HEADER_SIZE = 48;
+	private static final int BITS_PER_ADDRESS = 10;
+	private static final int HASH_COUNT = 7;
+
+	private RandomAccessFile raf;
+	private MappedByteBuffer bloom;
+	private MappedByteBuffer index;
+	private long bloomBits;
+	private int count;
+
+	final Logger logger = LoggerFactory.getLogger(SuppressionList.class);
+
+	//--------------------------------------------
+	/**
+	 * Open cache of list or build it
+	 * @param listFile file with addresses
+	 * @throws FileNotFoundException file not exists
+	 * @throws IOException error read list, error write cache
+	 */
+	public SuppressionList(File listFile) throws IOException
+	{
+		if(!listFile.exists())
+			throw new FileNotFoundException(listFile.getPath());
+		File cacheFile = new File(listFile.getPath() + ".cache");
+		if(!openCache(cacheFile, listFile))
+		{
+			logger.info("Build cache of suppression list " + listFile);
+			try
+			{
+				buildCache(cacheFile, listFile);
+			} catch (IOException ioe)
+			{
+				//directory of list is read-only
+				logger.warn("Error write cache " + cacheFile + " (" + ioe.getMessage() + ")");
+				cacheFile = File.createTempFile("qwertomailer", ".cache");
+				cacheFile.deleteOnExit();
+				buildCache(cacheFile, listFile);
+			}
+			if(!openCache(cacheFile, listFile))
+				throw new IOException("Bad cache of suppression list " + cacheFile);
+		}
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that address is in list. Case of letters is ignored.
+	 * @param email address
+	 * @return true if address must not get messages
+	 */
+	public boolean contains(String email)
+	{
+		long hash = AddressSet.hash(AddressSet.normalize(email));
+		if(!mayContain(hash))
+			return false;
+		//binary search of hash
+		int low = 0;
+		int high = count - 1;
+		while(low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			long value = index.getLong(middle * 8);
+			if(value < hash)
+				low = middle + 1;
+			else if(value > hash)
+				high = middle - 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return count of addresses in list
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	//--------------------------------------------
+	public void close() throws IOException
+	{
+		bloom = null;
+		index = null;
+		raf.close();
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check bits of Bloom filter
+	 * @return false if address is not in list
+	 */
+	private boolean mayContain(long hash)
+	{
+		for(int i = 0; i < HASH_COUNT; i++)
+		{
+			long bit = getBit(hash, i, bloomBits);
+			if((bloom.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get bit of filter for hash function i. Functions are combinations
+	 * of two halves of address hash.
+	 */
+	private static long getBit(long hash, int i, long bits)
+	{
+		long combined = hash + i * ((hash >>> 32) | 1);
+		return (combined & Long.MAX_VALUE) % bits;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Map cache file if it is built for current list file
+	 * @return false if cache not exists or is old
+	 */
+	private boolean openCache(File cacheFile, File listFile) throws IOException
+	{
+		if(!cacheFile.exists() || cacheFile.length() < HEADER_SIZE)
+			return false;
+		RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+		FileChannel channel = file.getChannel();
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		long bloomBytes = header.getLong(32);
+		long indexCount = header.getLong(40);
+		if(header.getLong(0) != MAGIC || header.getLong(8) != listFile.length()
+				|| header.getLong(16) != listFile.lastModified()
+				|| header.getLong(24) != HASH_COUNT
+				|| channel.size() != HEADER_SIZE + bloomBytes + indexCount * 8)
+		{
+			file.close();
+			return false;
+		}
+		raf = file;
+		bloomBits = bloomBytes * 8;
+		count = (int) indexCount;
+		bloom = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, bloomBytes);
+		index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + bloomBytes
+				, indexCount * 8);
+		return true;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Read addresses, sort their hashes and write filter and hashes to cache file
+	 */
+	private void buildCache(File cacheFile, File listFile) throws IOException
+	{
+		long listLength = listFile.length();
+		long listModified = listFile.lastModified();
+		long[] hashes = new long[1024];
+		int size = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(listFile), "UTF-8"));
+		try
+		{
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#"))
+					continue;
+				if(size == hashes.length)
+					hashes = Arrays.copyOf(hashes, size * 2);
+				hashes[size++] = AddressSet.hash(AddressSet.normalize(line));
+			}
+		} finally
+		{
+			reader.close();
+		}
+		Arrays.sort(hashes, 0, size);
+		int unique = 0;
+		for(int i = 0; i < size; i++)
+		{
+			if(unique == 0 || hashes[i] != hashes[unique - 1])
+				hashes[unique++] = hashes[i];
+		}
+		if((long) unique * 8 > Integer.MAX_VALUE)
+			throw new IOException("Suppression list is too large: " + unique);
+
+		//filter size is multiple of 8 bytes
+		long bloomBytes = Math.max(8, ((long) unique * BITS_PER_ADDRESS + 63) / 64 * 8);
+		byte[] filter = new byte[(int) bloomBytes];
+		for(int i = 0; i < unique; i++)
+		{
+			for(int j = 0; j < HASH_COUNT; j++)
+			{
+				long bit = getBit(hashes[i], j, bloomBytes * 8);
+				filter[(int) (bit >>> 3)] |= 1 << (bit & 7);
+			}
+		}
+
+		File tmpFile = new File(cacheFile.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(tmpFile, "rw");
+		try
+		{
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putLong(MAGIC).putLong(listLength).putLong(listModified)
+				.putLong(HASH_COUNT).putLong(bloomBytes).putLong(unique);
+			header.flip();
+			write(channel, header);
+			write(channel, ByteBuffer.wrap(filter));
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			for(int i = 0; i < unique; i++)
+			{
+				if(!buffer.hasRemaining())
+				{
+					buffer.flip();
+					write(channel, buffer);
+					buffer.clear();
+				}
+				buffer.putLong(hashes[i]);
+			}
+			buffer.flip();
+			write(channel, buffer);
+			channel.force(false);
+		} finally
+		{
+			file.close();
+		}
+		if(!tmpFile.renameTo(cacheFile))
+		{
+			if(!cacheFile.delete() || !tmpFile.renameTo(cacheFile))
+				throw new IOException("Error replace cache file " + cacheFile);
+		}
+	}
+
+	//--------------------------------------------
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+}
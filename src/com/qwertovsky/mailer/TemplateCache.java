@@ -0,0 +1,206 @@
+package com.qwertovsky.mailer;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+
+/**
+ * Compiled Velocity templates of message parts.
+ * <br />Text of part is parsed to syntax tree once and tree is merged with
+ * parameters of each recipient. Templates are kept by text, so copies of message
+ * use templates that are parsed for original message.
+ * <br />Template with only simple references ($name, ${name}) is split to segments
+ * by {@link SimpleTemplate} and is merged without Velocity.
+ * <br />Templates are parsed by own runtime instance, not by singleton {@code Velocity}.
+ * <br />Count of templates is limited, first parsed template is removed when limit is reached
+ * , so cache of sender that sends many contents does not grow.
+ * @author Qwertovsky
+ *
+ */
+class TemplateCache
+{
+	static final int MAX_SIZE = 256;
+	private static RuntimeInstance defaultRuntime;
+
+	private RuntimeInstance runtime;
+	private int maxSize;
+	private ConcurrentMap<String, Renderer> templates
+		= new ConcurrentHashMap<String, Renderer>();
+	//texts in order of parsing
+	private Queue<String> order = new ConcurrentLinkedQueue<String>();
+
+	//--------------------------------------------
+	/**
+	 * Compiled template
+	 */
+	interface Renderer
+	{
+		void merge(Context context, Writer writer) throws IOException;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Cache that uses shared runtime instance
+	 */
+	TemplateCache()
+	{
+		this(getDefaultRuntime());
+	}
+
+	//--------------------------------------------
+	/**
+	 * @param runtime initialized runtime instance
+	 */
+	TemplateCache(RuntimeInstance runtime)
+	{
+		this(runtime, MAX_SIZE);
+	}
+
+	//--------------------------------------------
+	/**
+	 * @param runtime initialized runtime instance
+	 * @param maxSize max count of templates
+	 */
+	TemplateCache(RuntimeInstance runtime, int maxSize)
+	{
+		this.runtime = runtime;
+		this.maxSize = maxSize;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Merge template with parameters. Template is parsed on first use.
+	 * @param context parameters of recipient
+	 * @param writer output
+	 * @param text template text
+	 * @throws ParseException bad template
+	 * @throws IOException error write
+	 */
+	void merge(Context context, Writer writer, String text) throws ParseException, IOException
+	{
+		getTemplate(text).merge(context, writer);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Check that text has no references and directives, so result of merge is text.
+	 * Part with static text is equal for all recipients and is not rebuilt.
+	 * @param text template text
+	 * @return true if text is static
+	 * @throws ParseException bad template
+	 */
+	boolean isStatic(String text) throws ParseException
+	{
+		Renderer template = getTemplate(text);
+		return template instanceof SimpleTemplate
+			&& ((SimpleTemplate) template).getReferenceCount() == 0;
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return count of parsed templates
+	 */
+	int size()
+	{
+		return templates.size();
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return compiled template of text or null if text is not parsed
+	 */
+	Renderer get(String text)
+	{
+		return templates.get(text);
+	}
+
+	//--------------------------------------------
+	/**
+	 * Get compiled template. Template is parsed on first use.
+	 */
+	private Renderer getTemplate(String text) throws ParseException
+	{
+		Renderer template = templates.get(text);
+		if(template == null)
+		{
+			template = compile(text);
+			//other thread may parse same text, both templates are equal
+			Renderer previous = templates.putIfAbsent(text, template);
+			if(previous != null)
+				return previous;
+			order.add(text);
+			String eldest;
+			while(templates.size() > maxSize && (eldest = order.poll()) != null)
+			{
+				templates.remove(eldest);
+			}
+		}
+		return template;
+	}
+
+	//--------------------------------------------
+	private Renderer compile(String text) throws ParseException
+	{
+		SimpleTemplate simpleTemplate = SimpleTemplate.compile(text);
+		if(simpleTemplate != null)
+			return simpleTemplate;
+		final Template template = new Template();
+		template.setRuntimeServices(runtime);
+		template.setName("message body");
+		template.setData(runtime.parse(new StringReader(text), "message body"));
+		template.initDocument();
+		return new Renderer()
+		{
+			public void merge(Context context, Writer writer)
+			{
+				template.merge(context, writer);
+			}
+		};
+	}
+
+	//--------------------------------------------
+	/**
+	 * @return runtime instance that parses templates
+	 */
+	RuntimeInstance getRuntime()
+	{
+		return runtime;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Create and initialize runtime instance with log to slf4j
+	 */
+	static RuntimeInstance createRuntime()
+	{
+		RuntimeInstance runtime = new RuntimeInstance();
+		runtime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
+				"org.apache.velocity.slf4j.Slf4jLogChute");
+		runtime.setProperty("runtime.log.logsystem.slf4j.name",
+				"com.qwertovsky.mailer");
+		runtime.init();
+		return runtime;
+	}
+
+	//--------------------------------------------
+	/**
+	 * Runtime instance of message content that is not sent by {@link Sender}.
+	 * It is initialized once.
+	 */
+	static synchronized RuntimeInstance getDefaultRuntime()
+	{
+		if(defaultRuntime == null)
+			defaultRuntime = createRuntime();
+		return defaultRuntime;
+	}
+}
@@ -0,0 +1,34 @@
+package com.qwertovsky.mailer;
+
+import javax.mail.MessagingException;
+
+/**
+ * Message can't be sent now because of rate limits.
+ * It must be sent again after delay.
+ * @author Qwertovsky
+ *
+ */
+class ThrottledException extends MessagingException
+{
+	private static final long serialVersionUID = 1L;
+	private long delay;
+	
+	//--------------------------------------------
+	/**
+	 * @param delay nanoseconds to wait
+	 */
+	ThrottledException(long delay)
+	{
+		super("Rate limit is exceeded");
+		this.delay = delay;
+	}
+	
+	//--------------------------------------------
+	/**
+	 * @return nanoseconds to wait
+	 */
+	long getDelay()
+	{
+		return delay;
+	}
+}
@@ -0,0 +1,65 @@
+package com.qwertovsky.mailer;
+
+/**
+ * Token bucket. Tokens are added with constant rate up to capacity of one second.
+ * <br />Amount that is bigger than capacity is allowed when bucket is full,
+ * then bucket goes to debt.
+ * <br />Not thread safe.
+ * @author Qwertovsky
+ *
+ */
+class TokenBucket
+{
+	private double rate;
+	private double capacity;
+	private double tokens;
+	private long lastRefill;
+	
+	//--------------------------------------------
+	/**
+	 * @param rate tokens per second
+	 */
+	TokenBucket(double rate)
+	{
+		this.rate = rate;
+		this.capacity = Math.max(rate, 1);
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Get time to wait until amount of tokens is available
+	 * @param amount tokens
+	 * @param now current time in nanoseconds
+	 * @return nanoseconds (0 - available now)
+	 */
+	long getWaitTime(double amount, long now)
+	{
+		refill(now);
+		double needed = Math.min(amount, capacity);
+		if(tokens >= needed)
+			return 0;
+		return (long) Math.ceil((needed - tokens) / rate * 1000000000L);
+	}
+	
+	//--------------------------------------------
+	/**
+	 * Take tokens
+	 * @param amount tokens
+	 */
+	void consume(double amount)
+	{
+		tokens -= amount;
+	}
+	
+	//--------------------------------------------
+	private void refill(long now)
+	{
+		long elapsed = now - lastRefill;
+		if(elapsed <= 0)
+			return;
+		tokens = Math.min(capacity, tokens + elapsed * rate / 1000000000L);
+		lastRefill = now;
+	}
+}
@@ -1,12 +1,16 @@
 package com.qwertovsky.mailer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,6 +23,7 @@ import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import org.apache.velocity.VelocityContext;
 import org.junit.Test;
 
 import com.qwertovsky.mailer.errors.QwertoMailerException;
@@ -1448,6 +1453,115 @@ public class MessageContentTest
 		}
 	}
 	
+	//--------------------------------------------
+	@Test
+	public void testTemplateCache() throws Exception
+	{
+		MessageContent message = new MessageContent(new File("test_files/test.eml"));
+		message.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		MessageContent first = new MessageContent(message);
+		MessageContent second = new MessageContent(message);
+		assertTrue(first.getTemplateCache() == second.getTemplateCache());
+		
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("message", "first message");
+		parameters.put("subject", "first subject");
+		first.setParameters(parameters);
+		parameters.put("message", "second message");
+		parameters.put("subject", "second subject");
+		second.setParameters(parameters);
+		
+		//html and subject are parsed once
+		assertEquals(2, message.getTemplateCache().size());
+		assertTrue(((String) first.getContent()).contains("<br />first message"));
+		assertTrue(first.getSubject().contains("first subject"));
+		assertTrue(((String) second.getContent()).contains("<br />second message"));
+		assertTrue(second.getSubject().contains("second subject"));
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testTemplateCacheLimit() throws Exception
+	{
+		TemplateCache cache = new TemplateCache(TemplateCache.getDefaultRuntime(), 2);
+		assertFalse(cache.isStatic("first $name"));
+		assertFalse(cache.isStatic("second $name"));
+		assertFalse(cache.isStatic("first $name"));
+		assertEquals(2, cache.size());
+		
+		//first parsed template is removed
+		assertFalse(cache.isStatic("third $name"));
+		assertEquals(2, cache.size());
+		assertNull(cache.get("first $name"));
+		assertNotNull(cache.get("second $name"));
+		assertNotNull(cache.get("third $name"));
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testSimpleTemplate() throws Exception
+	{
+		SimpleTemplate template = SimpleTemplate.compile(
+				"Hello ${name}, tariff $tariff. Price $ 5, color #fff, $missing");
+		assertEquals(3, template.getReferenceCount());
+		VelocityContext context = new VelocityContext();
+		context.put("name", "user");
+		context.put("tariff", "gold");
+		StringWriter writer = new StringWriter();
+		template.merge(context, writer);
+		assertEquals("Hello user, tariff gold. Price $ 5, color #fff, $missing", writer.toString());
+		
+		//Velocity syntax
+		assertNull(SimpleTemplate.compile("#if($name)$name#end"));
+		assertNull(SimpleTemplate.compile("## comment"));
+		assertNull(SimpleTemplate.compile("$user.name"));
+		assertNull(SimpleTemplate.compile("$!name"));
+		assertNull(SimpleTemplate.compile("\\$name"));
+		
+		//directive is rendered by Velocity
+		MessageContent message = new MessageContent("Dear $name"
+				, "text/plain", "#if($name)$name#end", "utf-8");
+		message.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("name", "user");
+		MessageContent copy = new MessageContent(message);
+		copy.setParameters(parameters);
+		assertEquals("Dear user", copy.getContent());
+		assertEquals("user", copy.getSubject());
+		assertTrue(message.getTemplateCache().get("Dear $name") instanceof SimpleTemplate);
+		assertFalse(message.getTemplateCache().get("#if($name)$name#end") instanceof SimpleTemplate);
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testStaticParts() throws Exception
+	{
+		/*
+		 * -alternative (content)
+		 * \-text
+		 * |-html
+		 */
+		MessageContent message = new MessageContent("Dear $name"
+				, "text/html", "subject", "utf-8");
+		message.setAlternativeText("static text", "utf-8");
+		message.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("name", "user");
+		MessageContent copy = new MessageContent(message);
+		copy.setParameters(parameters);
+		
+		//static part is shared, part with references is rebuilt
+		Multipart original = (Multipart) message.getContent();
+		Multipart personal = (Multipart) copy.getContent();
+		assertTrue(original.getBodyPart(0) == personal.getBodyPart(0));
+		assertFalse(original.getBodyPart(1) == personal.getBodyPart(1));
+		assertEquals("Dear $name", original.getBodyPart(1).getContent());
+		assertEquals("Dear user", personal.getBodyPart(1).getContent());
+		assertEquals("subject", copy.getSubject());
+		assertTrue(message.getTemplateCache().isStatic("static text"));
+		assertFalse(message.getTemplateCache().isStatic("## comment"));
+	}
+	
 	//--------------------------------------------
 	@Test
 	public void testToByteArray() throws Exception
@@ -0,0 +1,738 @@
+package com.qwertovsky.mailer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+public class SenderConnectionTest
+{
+	public static Logger logger1 = Logger.getLogger("org.subethamail");
+	public static Logger logger2 = Logger.getLogger("com.qwertovsky.mailer");
+	private Wiser wiser;
+
+	public SenderConnectionTest()
+	{
+		String pattern = "[%d{yyyy-MM-dd HH:mm:ss} %-4r][%-5p] %m%n";
+	    PatternLayout layout = new PatternLayout(pattern);
+		ConsoleAppender appender = new ConsoleAppender(layout);
+		logger1.addAppender(appender);
+		logger1.setLevel(Level.WARN);
+		logger2.addAppender(appender);
+
+		wiser = new Wiser(2500);
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testReuseConnection()
+	throws Exception
+	{
+		wiser.start();
+
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setReuseConnection(true);
+		sender.setMessagesPerConnection(2);
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 5; i++)
+		{
+			personParameters.add(new String[]{"message" + i, "address" + i + "@domain"});
+		}
+		sender.send(messageContent, personParamHeaders, personParameters);
+
+		assertEquals(5, wiser.getMessages().size());
+		assertEquals(5, sender.getSentMessages().size());
+		assertEquals(0, sender.getNotSentMessages().size());
+		for(int i = 0; i < 5; i++)
+		{
+			assertEquals("address" + i + "@domain"
+					, wiser.getMessages().get(i).getEnvelopeReceiver());
+		}
+
+		wiser.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testThreads()
+	throws Exception
+	{
+		wiser.start();
+
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setThreads(4);
+		sender.setConnectionPool(1, 2, 1000, 0);
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 20; i++)
+		{
+			personParameters.add(new String[]{"message" + i, "address" + i + "@domain"});
+		}
+		sender.send(messageContent, personParamHeaders, personParameters);
+
+		assertEquals(20, wiser.getMessages().size());
+		assertEquals(20, sender.getSentMessages().size());
+		assertEquals(0, sender.getNotSentMessages().size());
+		Set<String> receivers = new HashSet<String>();
+		for(WiserMessage wiserMessage:wiser.getMessages())
+		{
+			receivers.add(wiserMessage.getEnvelopeReceiver());
+		}
+		assertEquals(20, receivers.size());
+
+		wiser.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testPipelining()
+	throws Exception
+	{
+		Wiser rejectingWiser = new Wiser(2500)
+		{
+			@Override
+			public boolean accept(String from, String recipient)
+			{
+				return !recipient.startsWith("rejected");
+			}
+		};
+		rejectingWiser.start();
+
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		personParameters.add(new String[]{"message1", "address1@domain"});
+		personParameters.add(new String[]{"message2", "address2@domain, rejected2@domain"});
+		personParameters.add(new String[]{"message3", "rejected3@domain"});
+
+		//message with rejected recipient is not sent with pipelining and without it
+		for(boolean pipelining:new boolean[]{true, false})
+		{
+			Sender sender = new Sender("localhost",2500,null,null,null);
+			sender.setPipelining(pipelining);
+			sender.send(messageContent, personParamHeaders, personParameters);
+			assertEquals(1, rejectingWiser.getMessages().size());
+			assertEquals(1, sender.getSentMessages().size());
+			assertEquals(2, sender.getNotSentMessages().size());
+			assertEquals(2, sender.getBadEmails().size());
+			assertTrue(sender.getBadEmails().contains("rejected2@domain"));
+			assertTrue(sender.getBadEmails().contains("rejected3@domain"));
+			rejectingWiser.getMessages().clear();
+		}
+
+		//partial send
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setPipelining(true);
+		sender.setSendPartial(true);
+		sender.send(messageContent, personParamHeaders, personParameters);
+
+		assertEquals(2, rejectingWiser.getMessages().size());
+		assertEquals(2, sender.getSentMessages().size());
+		assertEquals(1, sender.getNotSentMessages().size());
+		assertEquals(2, sender.getBadEmails().size());
+		assertTrue(sender.getBadEmails().contains("rejected2@domain"));
+		assertTrue(sender.getBadEmails().contains("rejected3@domain"));
+		String content = (String) rejectingWiser.getMessages().get(0).getMimeMessage().getContent();
+		assertEquals("message message1", content.trim());
+
+		rejectingWiser.stop();
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testDeduplicateRejectedRecipient()
+	throws Exception
+	{
+		final AtomicInteger attempts = new AtomicInteger();
+		Wiser rejectingWiser = new Wiser(2500)
+		{
+			@Override
+			public boolean accept(String from, String recipient)
+			{
+				//first attempt is rejected
+				return !recipient.startsWith("flaky") || attempts.incrementAndGet() > 1;
+			}
+		};
+		rejectingWiser.start();
+
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setDeduplicateRecipients(true, false);
+		//previous message is sent before row is built
+		sender.setQueueSize(1);
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		personParameters.add(new String[]{"message1", "flaky@domain"});
+		for(int i = 0; i < 5; i++)
+		{
+			personParameters.add(new String[]{"filler", "address" + i + "@domain"});
+		}
+		personParameters.add(new String[]{"message2", "flaky@domain"});
+		personParameters.add(new String[]{"message3", "flaky@domain"});
+		sender.send(messageContent, personParamHeaders, personParameters);
+
+		//not sent recipient gets message of next row, sent recipient is repeated
+		assertEquals(6, rejectingWiser.getMessages().size());
+		assertEquals(6, sender.getSentMessages().size());
+		assertEquals(1, sender.getNotSentMessages().size());
+		String content = (String) rejectingWiser.getMessages().get(5).getMimeMessage().getContent();
+		assertEquals("message message2", content.trim());
+
+		rejectingWiser.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testDomainRateLimit()
+	throws Exception
+	{
+		wiser.start();
+		
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setReuseConnection(true);
+		sender.setDomainRateLimit("slow", 2, 0);
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 5; i++)
+		{
+			personParameters.add(new String[]{"message" + i, "address" + i + "@slow"});
+			personParameters.add(new String[]{"message" + i, "address" + i + "@fast"});
+		}
+		long start = System.currentTimeMillis();
+		sender.send(messageContent, personParamHeaders, personParameters);
+		long time = System.currentTimeMillis() - start;
+		
+		assertEquals(10, wiser.getMessages().size());
+		assertEquals(10, sender.getSentMessages().size());
+		assertEquals(0, sender.getNotSentMessages().size());
+		//2 messages at once, 3 messages at 2 per second
+		assertTrue(time >= 1000);
+		//throttled domain does not delay other domain
+		int lastFast = 0;
+		int lastSlow = 0;
+		for(int i = 0; i < 10; i++)
+		{
+			if(wiser.getMessages().get(i).getEnvelopeReceiver().endsWith("@fast"))
+				lastFast = i;
+			else
+				lastSlow = i;
+		}
+		assertTrue(lastFast < lastSlow);
+		assertEquals(9, lastSlow);
+		
+		wiser.stop();
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testAdaptiveConcurrency()
+	throws Exception
+	{
+		wiser.start();
+		
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setAdaptiveConcurrency(1, 4);
+		assertEquals(1, sender.getConcurrencyLimit());
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 20; i++)
+		{
+			personParameters.add(new String[]{"message" + i, "address" + i + "@domain"});
+		}
+		sender.send(messageContent, personParamHeaders, personParameters);
+		
+		assertEquals(20, wiser.getMessages().size());
+		assertEquals(20, sender.getSentMessages().size());
+		assertTrue(sender.getConcurrencyLimit() >= 1);
+		assertTrue(sender.getConcurrencyLimit() <= 4);
+		
+		wiser.stop();
+		
+		//4xx reply halves limit
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8);
+		for(int i = 0; i < 30; i++)
+		{
+			limiter.release(limiter.acquire(), ConcurrencyLimiter.Outcome.SUCCESS);
+		}
+		int limit = limiter.getLimit();
+		assertTrue(limit > 1);
+		long start = limiter.acquire();
+		limiter.release(start, ConcurrencyLimiter.getOutcome(
+				new MessagingException("421 4.7.0 Try again later")));
+		assertTrue(limiter.getLimit() < limit);
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testNonBlocking()
+	throws Exception
+	{
+		Wiser rejectingWiser = new Wiser(2500)
+		{
+			@Override
+			public boolean accept(String from, String recipient)
+			{
+				return !recipient.startsWith("rejected");
+			}
+		};
+		rejectingWiser.start();
+		
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setNonBlocking(1, 4);
+		sender.setSendPartial(true);
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 20; i++)
+		{
+			personParameters.add(new String[]{"message" + i, "address" + i + "@domain"});
+		}
+		personParameters.add(new String[]{"message20", "address20@domain, rejected20@domain"});
+		personParameters.add(new String[]{"message21", "rejected21@domain"});
+		sender.send(messageContent, personParamHeaders, personParameters);
+		
+		assertEquals(21, rejectingWiser.getMessages().size());
+		assertEquals(21, sender.getSentMessages().size());
+		assertEquals(1, sender.getNotSentMessages().size());
+		assertEquals(2, sender.getBadEmails().size());
+		Set<String> receivers = new HashSet<String>();
+		for(WiserMessage wiserMessage:rejectingWiser.getMessages())
+		{
+			receivers.add(wiserMessage.getEnvelopeReceiver());
+		}
+		assertEquals(21, receivers.size());
+		
+		//message with rejected recipient is not sent without partial send
+		rejectingWiser.getMessages().clear();
+		sender = new Sender("localhost",2500,null,null,null);
+		sender.setNonBlocking(1, 4);
+		sender.send(messageContent, personParamHeaders, personParameters);
+		assertEquals(20, rejectingWiser.getMessages().size());
+		assertEquals(20, sender.getSentMessages().size());
+		assertEquals(2, sender.getNotSentMessages().size());
+		assertEquals(2, sender.getBadEmails().size());
+		
+		rejectingWiser.stop();
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testVirtualThreads()
+	throws Exception
+	{
+		wiser.start();
+		
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setExecutionMode(ExecutionMode.VIRTUAL_THREADS, 8);
+		sender.setReuseConnection(true);
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 30; i++)
+		{
+			personParameters.add(new String[]{"message" + i, "address" + i + "@domain"});
+		}
+		personParameters.add(new String[]{"message30", ""});
+		sender.send(messageContent, personParamHeaders, personParameters);
+		
+		assertEquals(30, wiser.getMessages().size());
+		assertEquals(30, sender.getSentMessages().size());
+		assertEquals(0, sender.getNotSentMessages().size());
+		Set<String> receivers = new HashSet<String>();
+		for(WiserMessage wiserMessage:wiser.getMessages())
+		{
+			receivers.add(wiserMessage.getEnvelopeReceiver());
+		}
+		assertEquals(30, receivers.size());
+		
+		wiser.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testQueueSize()
+	throws Exception
+	{
+		wiser.start();
+
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setQueueSize(2);
+		sender.setThreads(2);
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 30; i++)
+		{
+			personParameters.add(new String[]{"message" + i, "address" + i + "@domain"});
+		}
+		personParameters.add(new String[]{"message30", ""});
+		sender.send(messageContent, personParamHeaders, personParameters);
+
+		assertEquals(30, wiser.getMessages().size());
+		assertEquals(30, sender.getSentMessages().size());
+		assertEquals(0, sender.getNotSentMessages().size());
+		Set<String> receivers = new HashSet<String>();
+		for(WiserMessage wiserMessage:wiser.getMessages())
+		{
+			receivers.add(wiserMessage.getEnvelopeReceiver());
+		}
+		assertEquals(30, receivers.size());
+
+		wiser.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testSendListener()
+	throws Exception
+	{
+		Wiser rejectingWiser = new Wiser(2500)
+		{
+			@Override
+			public boolean accept(String from, String recipient)
+			{
+				return !recipient.startsWith("rejected");
+			}
+		};
+		rejectingWiser.start();
+
+		final List<SendResult> sent = Collections.synchronizedList(new ArrayList<SendResult>());
+		final List<SendResult> failed = Collections.synchronizedList(new ArrayList<SendResult>());
+		final List<String> badAddresses = Collections.synchronizedList(new ArrayList<String>());
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setPipelining(true);
+		sender.setSendPartial(true);
+		sender.setSendListener(new SendListener()
+		{
+			public void onSent(SendResult result)
+			{
+				sent.add(result);
+			}
+
+			public void onFailed(SendResult result)
+			{
+				failed.add(result);
+			}
+
+			public void onBadAddress(String email)
+			{
+				badAddresses.add(email);
+			}
+
+			public void onBadParameters(Map<String, String> parameters)
+			{
+			}
+		});
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		personParameters.add(new String[]{"message1", "address1@domain"});
+		personParameters.add(new String[]{"message2", "address2@domain, rejected2@domain"});
+		personParameters.add(new String[]{"message3", "rejected3@domain"});
+		sender.send(messageContent, personParamHeaders, personParameters);
+
+		assertEquals(2, rejectingWiser.getMessages().size());
+		assertEquals(2, sent.size());
+		assertEquals(1, failed.size());
+		assertEquals(2, badAddresses.size());
+		assertTrue(badAddresses.contains("rejected2@domain"));
+		//messages are not kept if listener is set
+		assertEquals(0, sender.getSentMessages().size());
+		assertEquals(0, sender.getNotSentMessages().size());
+		for(SendResult result:sent)
+		{
+			assertEquals(1, result.getRecipients().size());
+			assertTrue(result.getRecipients().get(0).startsWith("address"));
+			assertNotNull(result.getMessageId());
+			assertNotNull(result.getParameters().get("message"));
+			assertTrue(result.getDuration() >= 0);
+			assertTrue(result.getServerResponse().startsWith("250"));
+		}
+		assertEquals("rejected3@domain", failed.get(0).getRecipients().get(0));
+		assertNotNull(failed.get(0).getError());
+
+		rejectingWiser.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testJournal()
+	throws Exception
+	{
+		wiser.start();
+
+		//journal of crashed sending: row 0 is sent, row 1 is not sent, row 4 is not complete
+		File journalFile = File.createTempFile("journal", ".txt");
+		journalFile.deleteOnExit();
+		FileWriter writer = new FileWriter(journalFile);
+		writer.write("0 S\n1 F\n4 S");
+		writer.close();
+
+		SendJournal journal = new SendJournal(journalFile, true);
+		assertEquals(1, journal.getDoneCount());
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setJournal(journal);
+		MessageContent messageContent = new MessageContent("message", "text/plain"
+				, "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		String[] personParamHeaders = new String[]{"email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 5; i++)
+		{
+			personParameters.add(new String[]{"address" + i + "@domain"});
+		}
+		personParameters.add(new String[]{"bad email"});
+		sender.send(messageContent, personParamHeaders, personParameters);
+		journal.close();
+
+		assertEquals(4, wiser.getMessages().size());
+		for(WiserMessage message:wiser.getMessages())
+		{
+			assertTrue(!message.getEnvelopeReceiver().equals("address0@domain"));
+		}
+		List<String> records = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+		String line;
+		while((line = reader.readLine()) != null)
+		{
+			records.add(line);
+		}
+		reader.close();
+		assertEquals("1 F", records.get(1));
+		assertTrue(records.containsAll(Arrays.asList("1 S", "2 S", "3 S", "4 S", "5 B")));
+		assertEquals(7, records.size());
+
+		//all rows are done
+		journal = new SendJournal(journalFile, true);
+		assertEquals(6, journal.getDoneCount());
+		journal.close();
+
+		wiser.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testIdempotencyStore()
+	throws Exception
+	{
+		wiser.start();
+
+		File indexFile = File.createTempFile("index", ".bin");
+		indexFile.delete();
+		indexFile.deleteOnExit();
+		MessageContent messageContent = new MessageContent("message $message", "text/plain"
+				, "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		String[] personParamHeaders = new String[]{"email", "message"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		personParameters.add(new String[]{"address1@domain", "message1"});
+		personParameters.add(new String[]{"address2@domain", "message2"});
+
+		IdempotencyStore store = new IdempotencyStore(indexFile);
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setIdempotencyStore(store, "campaign");
+		sender.send(messageContent, personParamHeaders, personParameters);
+		store.close();
+		assertEquals(2, wiser.getMessages().size());
+
+		//next run with updated file
+		personParameters.set(1, new String[]{"address2@domain", "message2 updated"});
+		personParameters.add(new String[]{"ADDRESS1@domain", "message1"});
+		personParameters.add(new String[]{"address3@domain", "message3"});
+		store = new IdempotencyStore(indexFile);
+		assertEquals(2, store.size());
+		sender.setIdempotencyStore(store, "campaign");
+		sender.send(messageContent, personParamHeaders, personParameters);
+		assertEquals(4, store.size());
+		store.close();
+		assertEquals(4, wiser.getMessages().size());
+		assertEquals("address2@domain", wiser.getMessages().get(2).getEnvelopeReceiver());
+		assertEquals("address3@domain", wiser.getMessages().get(3).getEnvelopeReceiver());
+
+		wiser.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testIdempotencyStoreGrow()
+	throws Exception
+	{
+		File indexFile = File.createTempFile("index", ".bin");
+		indexFile.delete();
+		indexFile.deleteOnExit();
+
+		//more than 70% of 65536 slots
+		int keyCount = 46000;
+		IdempotencyStore store = new IdempotencyStore(indexFile);
+		for(int i = 0; i < keyCount; i++)
+		{
+			assertTrue(store.add("address" + i + "@domain", "campaign", "hash"));
+		}
+		assertEquals(keyCount, store.size());
+		assertFalse(store.add("address0@domain", "campaign", "hash"));
+		store.close();
+
+		store = new IdempotencyStore(indexFile);
+		assertEquals(keyCount, store.size());
+		for(int i = 0; i < keyCount; i++)
+		{
+			assertTrue(store.contains("address" + i + "@domain", "campaign", "hash"));
+		}
+		assertFalse(store.contains("address" + keyCount + "@domain", "campaign", "hash"));
+		assertFalse(store.add("ADDRESS1@domain", "campaign", "hash"));
+		assertTrue(store.add("address" + keyCount + "@domain", "campaign", "hash"));
+		store.close();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testClientSocketFactory()
+	throws Exception
+	{
+		wiser.start();
+
+		Properties properties = new Properties();
+		properties.put("mail.smtp.host", "localhost");
+		properties.put("mail.smtp.port", "2500");
+		properties.put("mail.smtp.localhost", "localhost");
+		properties.put("mail.smtp.connectiontimeout", "5000");
+		properties.put("mail.smtp.timeout", "5000");
+		properties.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
+		properties.put("mail.smtp.socketFactory.port", "2500");
+
+		//server is not SMTPS, client connects by plain socket
+		SmtpClient client = new SmtpClient(Session.getInstance(properties));
+		client.connect();
+		assertTrue(client.isConnected());
+		client.close();
+
+		//no fallback
+		properties.put("mail.smtp.socketFactory.fallback", "false");
+		client = new SmtpClient(Session.getInstance(properties));
+		try
+		{
+			client.connect();
+			fail("SSL connection to plain server");
+		} catch (MessagingException me)
+		{
+			assertFalse(client.isConnected());
+		}
+
+		wiser.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testListenerError()
+	throws Exception
+	{
+		wiser.start();
+
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 10; i++)
+		{
+			personParameters.add(new String[]{"message" + i, "address" + i + "@domain"});
+		}
+
+		//errors of listener don't stop workers and non-blocking client
+		for(int mode = 0; mode < 2; mode++)
+		{
+			final AtomicInteger calls = new AtomicInteger();
+			Sender sender = new Sender("localhost",2500,null,null,null);
+			if(mode == 0)
+				sender.setThreads(2);
+			else
+				sender.setNonBlocking(1, 2);
+			sender.setSendListener(new SendListener()
+			{
+				public void onSent(SendResult result)
+				{
+					calls.incrementAndGet();
+					throw new IllegalStateException("listener error");
+				}
+
+				public void onFailed(SendResult result)
+				{
+				}
+
+				public void onBadAddress(String email)
+				{
+				}
+
+				public void onBadParameters(Map<String, String> parameters)
+				{
+				}
+			});
+			sender.send(messageContent, personParamHeaders, personParameters);
+			assertEquals(10, calls.get());
+		}
+		assertEquals(20, wiser.getMessages().size());
+
+		wiser.stop();
+	}
+}
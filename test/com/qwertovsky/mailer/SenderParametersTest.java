@@ -1,12 +1,20 @@
 package com.qwertovsky.mailer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -21,10 +29,13 @@ import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
+import org.apache.velocity.runtime.RuntimeInstance;
 import org.junit.Test;
 import org.subethamail.wiser.Wiser;
 import org.subethamail.wiser.WiserMessage;
 
+import au.com.bytecode.opencsv.CSVReader;
+
 import com.qwertovsky.mailer.errors.QwertoMailerException;
 
 
@@ -298,4 +309,420 @@ public class SenderParametersTest
 		
 		wiser.stop();
 	}
+	
+	//--------------------------------------------
+	@Test
+	public void testCsvRecipientSource()
+	throws Exception
+	{
+		wiser.start();
+		
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		CsvRecipientSource source = new CsvRecipientSource(
+				new File("test_files/recipients.csv"), "utf-8");
+		assertEquals(2, source.getHeaders().length);
+		assertEquals("email", source.getHeaders()[0]);
+		sender.send(messageContent, source.getHeaders(), source, true);
+		
+		assertEquals(3, wiser.getMessages().size());
+		assertEquals(3, sender.getSentMessages().size());
+		List<WiserMessage> messages = wiser.getMessages();
+		assertEquals("address1@domain", messages.get(0).getEnvelopeReceiver());
+		assertEquals("message message1"
+				, ((String) messages.get(0).getMimeMessage().getContent()).trim());
+		assertEquals("message message2, quoted"
+				, ((String) messages.get(1).getMimeMessage().getContent()).trim());
+		assertEquals("address3@domain", messages.get(2).getEnvelopeReceiver());
+		assertEquals("message message \"3\""
+				, ((String) messages.get(2).getMimeMessage().getContent()).trim());
+		
+		wiser.stop();
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testSendIterator()
+	throws Exception
+	{
+		wiser.start();
+		
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setQueueSize(2);
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		
+		//parameters are created on demand
+		final int[] produced = new int[1];
+		final int[] sent = new int[1];
+		final int[] maxAhead = new int[1];
+		Iterator<Map<String, String>> personParameters = new Iterator<Map<String, String>>()
+		{
+			public boolean hasNext()
+			{
+				return produced[0] < 20;
+			}
+			
+			public Map<String, String> next()
+			{
+				Map<String, String> parameters = new HashMap<String, String>();
+				parameters.put("email", "address" + produced[0] + "@domain");
+				parameters.put("message", "message" + produced[0]);
+				synchronized(produced)
+				{
+					produced[0]++;
+				}
+				return parameters;
+			}
+			
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+		sender.setSendListener(new SendListener()
+		{
+			public void onSent(SendResult result)
+			{
+				synchronized(produced)
+				{
+					sent[0]++;
+					maxAhead[0] = Math.max(maxAhead[0], produced[0] - sent[0]);
+				}
+			}
+			
+			public void onFailed(SendResult result)
+			{
+			}
+			
+			public void onBadAddress(String email)
+			{
+			}
+			
+			public void onBadParameters(Map<String, String> parameters)
+			{
+			}
+		});
+		sender.send(messageContent, personParameters);
+		
+		assertEquals(20, wiser.getMessages().size());
+		assertEquals(20, sent[0]);
+		//queue of 2 messages, message in builder and message in sending
+		assertTrue(maxAhead[0] <= 4);
+		
+		wiser.stop();
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testMappedCsvReader()
+	throws Exception
+	{
+		File file = new File("test_files/recipients.csv");
+		//small window is mapped again for each row
+		MappedCsvReader reader = new MappedCsvReader(file, "utf-8", 40);
+		reader.setColumns(new boolean[]{true, false});
+		List<String[]> rows = new ArrayList<String[]>();
+		String[] row;
+		while((row = reader.readNext()) != null)
+		{
+			rows.add(row);
+		}
+		reader.close();
+		assertEquals(4, rows.size());
+		assertEquals("address2@domain", rows.get(2)[0]);
+		assertEquals(null, rows.get(2)[1]);
+		assertEquals("address3@domain", rows.get(3)[0]);
+		
+		//same rows as opencsv
+		reader = new MappedCsvReader(file, "utf-8");
+		CSVReader csvReader = new CSVReader(new InputStreamReader(
+				new FileInputStream(file), "utf-8"), ',', '"', false);
+		String[] expected;
+		while((expected = csvReader.readNext()) != null)
+		{
+			row = reader.readNext();
+			assertEquals(Arrays.asList(expected), Arrays.asList(row));
+		}
+		assertNull(reader.readNext());
+		csvReader.close();
+		reader.close();
+		
+		//row must not be longer than window
+		reader = new MappedCsvReader(file, "utf-8", 10);
+		try
+		{
+			reader.readNext();
+			fail("Row is longer than window");
+		} catch (IOException ioe)
+		{
+			//pass
+		} finally
+		{
+			reader.close();
+		}
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testParallelCsvReader()
+	throws Exception
+	{
+		File file = new File("test_files/recipients.csv");
+		List<String> expected = new ArrayList<String>();
+		MappedCsvReader reader = new MappedCsvReader(file, "utf-8");
+		reader.readNext();
+		String[] row;
+		while((row = reader.readNext()) != null)
+		{
+			expected.add(Arrays.toString(row));
+		}
+		reader.close();
+		
+		//small ranges begin inside of rows and quoted fields
+		for(int chunkSize = 1; chunkSize < 30; chunkSize++)
+		{
+			ParallelCsvReader parallelReader = new ParallelCsvReader(file, "utf-8"
+					, null, 3, true, chunkSize);
+			List<String> rows = new ArrayList<String>();
+			while(parallelReader.hasNext())
+			{
+				rows.add(Arrays.toString(parallelReader.next()));
+			}
+			assertEquals(expected, rows);
+			
+			parallelReader = new ParallelCsvReader(file, "utf-8", null, 3, false, chunkSize);
+			Set<String> unorderedRows = new HashSet<String>();
+			while(parallelReader.hasNext())
+			{
+				unorderedRows.add(Arrays.toString(parallelReader.next()));
+			}
+			assertEquals(new HashSet<String>(expected), unorderedRows);
+		}
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testDeduplicateRecipients()
+	throws Exception
+	{
+		wiser.start();
+		
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		String[] personParamHeaders = new String[]{"email1", "email2", "message"};
+		List<String[]> personParameters = new ArrayList<String[]>();
+		personParameters.add(new String[]{"address1@domain", "address2@domain", "message1"});
+		personParameters.add(new String[]{"ADDRESS1@domain", "address3@domain", "message2"});
+		personParameters.add(new String[]{"address2@domain", "", "message3"});
+		personParameters.add(new String[]{"address3@domain", "address4@domain", "message4"});
+		
+		for(boolean exactCheck:new boolean[]{false, true})
+		{
+			Sender sender = new Sender("localhost",2500,null,null,null);
+			sender.setDeduplicateRecipients(true, exactCheck);
+			sender.send(messageContent, personParamHeaders, personParameters);
+			//row 3 has no new addresses
+			assertEquals(3, sender.getSentMessages().size());
+			assertEquals(0, sender.getBadEmails().size());
+		}
+		Set<String> receivers = new HashSet<String>();
+		for(WiserMessage message:wiser.getMessages())
+		{
+			receivers.add(message.getEnvelopeReceiver());
+		}
+		assertEquals(8, wiser.getMessages().size());
+		assertEquals(4, receivers.size());
+		
+		wiser.stop();
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testSuppressionList()
+	throws Exception
+	{
+		wiser.start();
+		
+		File listFile = File.createTempFile("suppression", ".txt");
+		listFile.deleteOnExit();
+		File cacheFile = new File(listFile.getPath() + ".cache");
+		cacheFile.deleteOnExit();
+		FileWriter writer = new FileWriter(listFile);
+		writer.write("# unsubscribed\nADDRESS2@domain\n\nbounced@domain\n");
+		writer.close();
+		SuppressionList suppressionList = new SuppressionList(listFile);
+		assertEquals(2, suppressionList.size());
+		assertTrue(cacheFile.exists());
+		
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		String[] personParamHeaders = new String[]{"email", "message"};
+		List<String[]> personParameters = new ArrayList<String[]>();
+		personParameters.add(new String[]{"address1@domain", "message1"});
+		personParameters.add(new String[]{"address2@domain", "message2"});
+		personParameters.add(new String[]{"address3@domain, bounced@domain", "message3"});
+		Sender sender = new Sender("localhost",2500,null,null,null);
+		sender.setSuppressionList(suppressionList);
+		sender.send(messageContent, personParamHeaders, personParameters);
+		List<String> suppressedEmails = new ArrayList<String>(sender.getSuppressedEmails());
+		//check of halt on failure and sending find suppressed emails once
+		sender.send(messageContent, personParamHeaders, personParameters, true);
+		suppressionList.close();
+		
+		assertEquals(4, wiser.getMessages().size());
+		assertEquals(Arrays.asList("address2@domain", "bounced@domain"), suppressedEmails);
+		assertEquals(suppressedEmails, sender.getSuppressedEmails());
+		assertEquals(0, sender.getBadEmails().size());
+		
+		//cache is used
+		long cacheModified = cacheFile.lastModified();
+		suppressionList = new SuppressionList(listFile);
+		assertTrue(suppressionList.contains("bounced@domain"));
+		assertTrue(!suppressionList.contains("address1@domain"));
+		suppressionList.close();
+		assertEquals(cacheModified, cacheFile.lastModified());
+		
+		wiser.stop();
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testBuildThreads()
+	throws Exception
+	{
+		wiser.start();
+		
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		String[] personParamHeaders = new String[]{"email", "message", "attach"};
+		List<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < 40; i++)
+		{
+			String email = i % 7 == 3 ? "bad" + i : "address" + i + "@domain";
+			String attach = i % 5 == 2 ? "missing" + i + ".txt" : "test_files/recipients.csv";
+			personParameters.add(new String[]{email, "message" + i, attach});
+		}
+		
+		//reports of parallel build are in order of rows
+		List<List<String>> receivers = new ArrayList<List<String>>();
+		List<List<String>> badEmails = new ArrayList<List<String>>();
+		List<List<Map<String, String>>> badParameters = new ArrayList<List<Map<String, String>>>();
+		for(int threads:new int[]{1, 4})
+		{
+			Sender sender = new Sender("localhost",2500,null,null,null);
+			sender.setBuildThreads(threads);
+			sender.setQueueSize(5);
+			sender.send(messageContent, personParamHeaders, personParameters);
+			List<String> messageReceivers = new ArrayList<String>();
+			for(WiserMessage message:wiser.getMessages())
+			{
+				messageReceivers.add(message.getEnvelopeReceiver());
+			}
+			wiser.getMessages().clear();
+			receivers.add(messageReceivers);
+			badEmails.add(new ArrayList<String>(sender.getBadEmails()));
+			badParameters.add(new ArrayList<Map<String, String>>(sender.getBadParameters()));
+		}
+		//message of row with missing attachment is sent, bad email is skipped
+		assertEquals(34, receivers.get(0).size());
+		assertEquals(receivers.get(0), receivers.get(1));
+		assertEquals(6, badEmails.get(0).size());
+		assertEquals(badEmails.get(0), badEmails.get(1));
+		assertEquals(7, badParameters.get(0).size());
+		assertEquals(badParameters.get(0), badParameters.get(1));
+		
+		wiser.stop();
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testTemplateRuntime()
+	throws Exception
+	{
+		wiser.start();
+		
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject $message", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		String[] personParamHeaders = new String[]{"email", "message"};
+		List<String[]> personParameters = new ArrayList<String[]>();
+		personParameters.add(new String[]{"address1@domain", "first"});
+		personParameters.add(new String[]{"address2@domain", "second"});
+		
+		Sender first = new Sender("localhost",2500,null,null,null);
+		Sender second = new Sender("localhost",2500,null,null,null);
+		first.send(messageContent, personParamHeaders, personParameters);
+		//runtime is initialized once for sender
+		RuntimeInstance runtime = first.getTemplateRuntime();
+		assertTrue(runtime == first.getTemplateCache().getRuntime());
+		first.send(messageContent, personParamHeaders, personParameters);
+		assertTrue(runtime == first.getTemplateRuntime());
+		second.send(messageContent, personParamHeaders, personParameters);
+		assertTrue(runtime != second.getTemplateRuntime());
+		//common content is not changed by senders, templates of first sender are kept
+		assertTrue(runtime != messageContent.getTemplateCache().getRuntime());
+		assertEquals(0, messageContent.getTemplateCache().size());
+		assertEquals(2, first.getTemplateCache().size());
+		assertEquals(2, second.getTemplateCache().size());
+		
+		assertEquals(6, wiser.getMessages().size());
+		for(WiserMessage message:wiser.getMessages())
+		{
+			String parameter = message.getEnvelopeReceiver().startsWith("address1")
+				? "first" : "second";
+			assertEquals("subject " + parameter, message.getMimeMessage().getSubject());
+			assertEquals("message " + parameter
+					, ((String) message.getMimeMessage().getContent()).trim());
+		}
+		wiser.getMessages().clear();
+		
+		wiser.stop();
+	}
+	
+	//--------------------------------------------
+	@Test
+	public void testRowSchema()
+	throws Exception
+	{
+		String[] headers = new String[]{"email", "message", "Person", "message", "attach", "EMAIL2"};
+		RowSchema schema = new RowSchema(headers);
+		assertEquals(Arrays.asList("email", "message", "Person", "message_1", "attach", "EMAIL2")
+				, Arrays.asList(schema.getNames()));
+		assertTrue(Arrays.equals(new int[]{0, 5}, schema.getEmailColumns()));
+		assertTrue(Arrays.equals(new int[]{4}, schema.getAttachColumns()));
+		assertEquals(2, schema.getPersonColumn());
+		
+		//row is map of parameters, absent values are null
+		Map<String, String> row = schema.createRow(new String[]{"address1@domain, bad"
+				, "first", "AddressPerson", "second", "test_files/test.png"});
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("email", "address1@domain, bad");
+		expected.put("message", "first");
+		expected.put("Person", "AddressPerson");
+		expected.put("message_1", "second");
+		expected.put("attach", "test_files/test.png");
+		expected.put("EMAIL2", null);
+		assertEquals(expected, row);
+		assertEquals(expected.hashCode(), row.hashCode());
+		
+		//server is not needed to resolve columns
+		List<Relay> relays = new ArrayList<Relay>();
+		relays.add(new Relay("localhost", 2500, 1));
+		Sender sender = new Sender(relays, null, null, null, false);
+		Set<InternetAddress> recipients = sender.getRecipientsList(row);
+		assertEquals(1, recipients.size());
+		InternetAddress recipient = recipients.iterator().next();
+		assertEquals("address1@domain", recipient.getAddress());
+		assertEquals("AddressPerson", recipient.getPersonal());
+		List<File> attachments = sender.getAttachments(row);
+		assertEquals(1, attachments.size());
+		assertEquals("test.png", attachments.get(0).getName());
+	}
 }
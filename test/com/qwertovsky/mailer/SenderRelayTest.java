@@ -0,0 +1,170 @@
+package com.qwertovsky.mailer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+
+public class SenderRelayTest
+{
+	public static Logger logger1 = Logger.getLogger("org.subethamail");
+	public static Logger logger2 = Logger.getLogger("com.qwertovsky.mailer");
+	private Wiser wiser1;
+	private Wiser wiser2;
+
+	public SenderRelayTest()
+	{
+		String pattern = "[%d{yyyy-MM-dd HH:mm:ss} %-4r][%-5p] %m%n";
+	    PatternLayout layout = new PatternLayout(pattern);
+		ConsoleAppender appender = new ConsoleAppender(layout);
+		logger1.addAppender(appender);
+		logger1.setLevel(Level.WARN);
+		logger2.addAppender(appender);
+
+		wiser1 = new Wiser(2500);
+		wiser2 = new Wiser(2501);
+	}
+
+	//--------------------------------------------
+	private void send(Sender sender, int count) throws Exception
+	{
+		MessageContent messageContent = new MessageContent("message $message"
+				, "text/plain", "subject", "utf-8");
+		messageContent.setAddressFrom("from", "addressFrom@domain", "utf-8");
+		String[] personParamHeaders = new String[]{"message", "email"};
+		ArrayList<String[]> personParameters = new ArrayList<String[]>();
+		for(int i = 0; i < count; i++)
+		{
+			personParameters.add(new String[]{"message" + i, "address" + i + "@domain"});
+		}
+		sender.send(messageContent, personParamHeaders, personParameters);
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testWeights()
+	throws Exception
+	{
+		wiser1.start();
+		wiser2.start();
+
+		List<Relay> relays = new ArrayList<Relay>();
+		relays.add(new Relay("localhost", 2500, 2));
+		relays.add(new Relay("localhost", 2501, 1));
+		Sender sender = new Sender(relays, null, null, null);
+		send(sender, 9);
+
+		assertEquals(9, sender.getSentMessages().size());
+		assertEquals(6, wiser1.getMessages().size());
+		assertEquals(3, wiser2.getMessages().size());
+
+		wiser1.stop();
+		wiser2.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testFailover()
+	throws Exception
+	{
+		wiser1.start();
+		wiser2.start();
+
+		List<Relay> relays = new ArrayList<Relay>();
+		relays.add(new Relay("localhost", 2500, 1));
+		relays.add(new Relay("localhost", 2501, 1));
+		Sender sender = new Sender(relays, null, null, null);
+		sender.setRelayFailover(1, 60000);
+		sender.setThreads(2);
+		wiser2.stop();
+		send(sender, 6);
+
+		assertEquals(6, sender.getSentMessages().size());
+		assertEquals(0, sender.getNotSentMessages().size());
+		assertEquals(6, wiser1.getMessages().size());
+
+		wiser1.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testUnavailableOnStart()
+	throws Exception
+	{
+		wiser1.start();
+
+		List<Relay> relays = new ArrayList<Relay>();
+		relays.add(new Relay("localhost", 2501, 1));
+		relays.add(new Relay("localhost", 2500, 1));
+		Sender sender = new Sender(relays, null, null, null);
+		send(sender, 4);
+
+		assertEquals(4, sender.getSentMessages().size());
+		assertEquals(4, wiser1.getMessages().size());
+
+		wiser1.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testLazyCheck()
+	throws Exception
+	{
+		List<Relay> relays = new ArrayList<Relay>();
+		relays.add(new Relay("localhost", 2500, 1));
+		//server is not started yet
+		Sender sender = new Sender(relays, null, null, null, false);
+
+		wiser1.start();
+		send(sender, 3);
+		assertEquals(3, wiser1.getMessages().size());
+		assertEquals(3, sender.getSentMessages().size());
+		wiser1.stop();
+	}
+
+	//--------------------------------------------
+	@Test
+	public void testHealthCheckCache()
+	throws Exception
+	{
+		List<Relay> relays = new ArrayList<Relay>();
+		relays.add(new Relay("localhost", 2500, 1));
+		Sender.setHealthCheckTtl(60000);
+		try
+		{
+			wiser1.start();
+			Sender sender = new Sender(relays, null, null, null);
+			//connection of check is used for message
+			send(sender, 2);
+			assertEquals(2, wiser1.getMessages().size());
+			wiser1.stop();
+
+			//server is not checked again
+			sender = new Sender(relays, null, null, null);
+			sender.close();
+		} finally
+		{
+			Sender.setHealthCheckTtl(0);
+		}
+
+		//server is checked
+		try
+		{
+			new Sender(relays, null, null, null);
+			fail("Server is not available");
+		} catch (MessagingException me)
+		{
+			//ok
+		}
+	}
+}